@@ -16,14 +16,19 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.store.BatchedBlockStore;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +36,12 @@ import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -106,12 +116,16 @@ public abstract class AbstractBlockChain {
 
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
+    // Tells which wallets a transaction may be relevant to, so that with many wallets only those are asked.
+    private final TransactionRelevanceIndex relevanceIndex = new TransactionRelevanceIndex();
 
     // Holds a block header and, optionally, a list of tx hashes or block's transactions
     class OrphanBlock {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        final long addedTime;
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -122,11 +136,35 @@ public abstract class AbstractBlockChain {
                 this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            this.addedTime = System.currentTimeMillis();
+            int size = this.block.transactions == null ? Block.HEADER_SIZE : this.block.bitcoinSerialize().length;
+            if (filtered) {
+                size += filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.bitcoinSerialize().length;
+            }
+            this.size = size;
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. Iteration order is arrival order, so the oldest are evicted first. Orphans are
+    // also indexed by the block they build on, so that connecting a block pulls in its children directly.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final ListMultimap<Sha256Hash, OrphanBlock> orphansByPrev = ArrayListMultimap.create();
+    private long orphanBytes;
+
+    /** Default for the most orphan blocks kept, see {@link #setOrphanLimits(int, long)}. */
+    public static final int DEFAULT_MAX_ORPHAN_BLOCKS = 5000;
+    /** Default for the most bytes of orphan blocks kept, see {@link #setOrphanLimits(int, long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 64 * 1024 * 1024;
+    private int maxOrphanBlocks = DEFAULT_MAX_ORPHAN_BLOCKS;
+    private long maxOrphanBytes = DEFAULT_MAX_ORPHAN_BYTES;
+
+    private final AtomicLong orphansAdded = new AtomicLong();
+    private final AtomicLong orphansConnected = new AtomicLong();
+    private final AtomicLong orphansEvicted = new AtomicLong();
+    private final AtomicLong orphanConnectMillis = new AtomicLong();
+    private final AtomicLong maxOrphanConnectMillis = new AtomicLong();
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -182,13 +220,16 @@ public abstract class AbstractBlockChain {
      */
     public void addListener(BlockChainListener listener, Executor executor) {
         listeners.add(new ListenerRegistration<BlockChainListener>(listener, executor));
+        if (listener instanceof Wallet)
+            relevanceIndex.addWallet((Wallet) listener);
     }
 
     /**
      * Removes the given {@link BlockChainListener} from the chain.
      */
     public void removeListener(BlockChainListener listener) {
-        ListenerRegistration.removeFromList(listener, listeners);
+        if (ListenerRegistration.removeFromList(listener, listeners) && listener instanceof Wallet)
+            relevanceIndex.removeWallet((Wallet) listener);
     }
     
     /**
@@ -294,6 +335,191 @@ public abstract class AbstractBlockChain {
         }
     }
     
+    /**
+     * <p>Adds a run of block headers, each building on the one before it, such as the contents of a headers message.
+     * If the first one builds on the chain head and the chain doesn't verify transactions, the whole run is connected
+     * in one go: proof of work is checked in parallel, the headers are written to the block store in a single write if
+     * it is a {@link BatchedBlockStore}, and the chain head is saved once. Listeners are still told about every header,
+     * in order, and {@link #getChainHead()} returns each header while they are told about it.</p>
+     *
+     * <p>Returns false without doing anything if the headers can't take this path, in which case they should be
+     * passed to {@link #add(Block)} one at a time. If one of the headers fails verification, the ones before it are
+     * connected and an exception is thrown, just as if they had been added one at a time.</p>
+     */
+    public boolean addHeaders(List<Block> headers) throws VerificationException, PrunedException {
+        if (headers.isEmpty() || shouldVerifyTransactions())
+            return false;
+        // Check linkage and proof of work before taking the lock, they don't depend on the state of the chain.
+        Block previous = null;
+        for (Block header : headers) {
+            if (header.transactions != null)
+                return false;
+            if (previous != null && !header.getPrevBlockHash().equals(previous.getHash()))
+                return false;
+            previous = header;
+        }
+        if (!headers.get(0).getPrevBlockHash().equals(getChainHead().getHeader().getHash()))
+            return false;
+        HeaderCheckResult checked = verifyHeaders(headers);
+        lock.lock();
+        try {
+            // Check again, now that nothing else can move the chain head.
+            if (!headers.get(0).getPrevBlockHash().equals(getChainHead().getHeader().getHash()))
+                return false;
+            try {
+                connectHeaders(headers, checked);
+            } catch (BlockStoreException e) {
+                // Unchecked, as add() throws it.
+                throw new RuntimeException(e);
+            }
+            return true;
+        } catch (VerificationException e) {
+            try {
+                notSettingChainHead();
+            } catch (BlockStoreException e1) {
+                throw new RuntimeException(e1);
+            }
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Headers messages at least this long have their proof of work checked on several threads. */
+    private static final int PARALLEL_HEADER_CHECK_THRESHOLD = 256;
+    private static ExecutorService headerCheckExecutor;
+
+    private static synchronized ExecutorService getHeaderCheckExecutor() {
+        if (headerCheckExecutor == null) {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Header verifier %d");
+            headerCheckExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    builder.build());
+        }
+        return headerCheckExecutor;
+    }
+
+    // Checks the proof of work and timestamp of each header. Returns how many of them passed, which is less than all
+    // of them if verification of the next one failed with the returned exception.
+    private HeaderCheckResult verifyHeaders(final List<Block> headers) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (threads < 2 || headers.size() < PARALLEL_HEADER_CHECK_THRESHOLD)
+            return verifyHeaders(headers, 0, headers.size());
+        int chunk = (headers.size() + threads - 1) / threads;
+        List<Future<HeaderCheckResult>> futures = new ArrayList<Future<HeaderCheckResult>>();
+        for (int start = 0; start < headers.size(); start += chunk) {
+            final int from = start, to = Math.min(start + chunk, headers.size());
+            futures.add(getHeaderCheckExecutor().submit(new Callable<HeaderCheckResult>() {
+                @Override
+                public HeaderCheckResult call() {
+                    return verifyHeaders(headers, from, to);
+                }
+            }));
+        }
+        // The first failure in chain order wins.
+        for (Future<HeaderCheckResult> future : futures) {
+            HeaderCheckResult result = Futures.getUnchecked(future);
+            if (result.failure != null)
+                return result;
+        }
+        return new HeaderCheckResult(headers.size(), null);
+    }
+
+    private static HeaderCheckResult verifyHeaders(List<Block> headers, int from, int to) {
+        for (int i = from; i < to; i++) {
+            try {
+                headers.get(i).verifyHeader();
+            } catch (VerificationException e) {
+                return new HeaderCheckResult(i, e);
+            }
+        }
+        return new HeaderCheckResult(to, null);
+    }
+
+    private static class HeaderCheckResult {
+        final int verified;
+        @Nullable final VerificationException failure;
+
+        HeaderCheckResult(int verified, @Nullable VerificationException failure) {
+            this.verified = verified;
+            this.failure = failure;
+        }
+    }
+
+    // Saves the blocks with a single write if the store supports it, one at a time otherwise.
+    private void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        if (blockStore instanceof BatchedBlockStore) {
+            ((BatchedBlockStore) blockStore).putAll(blocks);
+        } else {
+            for (StoredBlock block : blocks)
+                blockStore.put(block);
+        }
+    }
+
+    // Connects headers which build on the chain head, and were checked by verifyHeaders, on top of the chain head.
+    private void connectHeaders(List<Block> headers, HeaderCheckResult checked)
+            throws BlockStoreException, VerificationException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        List<StoredBlock> connected = new ArrayList<StoredBlock>(headers.size());
+        int written = 0;
+        VerificationException failure = checked.failure;
+        StoredBlock storedPrev = getChainHead();
+        try {
+            for (int i = 0; i < checked.verified; i++) {
+                Block header = headers.get(i);
+                int height = storedPrev.getHeight() + 1;
+                if (!params.passesCheckpoint(height, header.getHash()))
+                    throw new VerificationException("Block failed checkpoint lockin at " + height);
+                // Difficulty checks may walk back through the store, so it has to hold everything before this header.
+                if (height % params.getInterval() == 0 || params.getId().equals(NetworkParameters.ID_TESTNET)) {
+                    putAll(connected.subList(written, connected.size()));
+                    written = connected.size();
+                }
+                checkDifficultyTransitions(storedPrev, header);
+                storedPrev = storedPrev.build(header);
+                connected.add(storedPrev);
+            }
+        } catch (VerificationException e) {
+            failure = e;
+        }
+        putAll(connected.subList(written, connected.size()));
+        if (!connected.isEmpty()) {
+            // The head is saved once, but listeners see the chain as if the headers were added one at a time: each
+            // header is the chain head while they are told about it, as with add().
+            StoredBlock last = connected.get(connected.size() - 1);
+            doSetChainHead(last);
+            try {
+                for (StoredBlock block : connected) {
+                    synchronized (chainHeadLock) {
+                        chainHead = block;
+                    }
+/* CSPK-mike START */
+                    addToHeaderStore(block);
+/* CSPK-mike END */
+                    informListenersForNewBlock(block.getHeader(), NewBlockType.BEST_CHAIN, null, null, block);
+                    statsBlocksAdded++;
+                }
+            } finally {
+                // Everything is in the store already, so a listener that throws doesn't leave the head behind it.
+                synchronized (chainHeadLock) {
+                    chainHead = last;
+                }
+            }
+            if (!orphanBlocks.isEmpty()) {
+                for (StoredBlock block : connected)
+                    tryConnectingOrphans(block.getHeader().getHash());
+            }
+            log.debug("Connected {} headers, chain is now {} blocks high", connected.size(), getBestChainHeight());
+        }
+        if (failure != null) {
+            int failed = connected.size();
+            log.error("Failed to verify block header: ", failure);
+            throw new VerificationException("Could not verify block " + headers.get(failed).getHashAsString() +
+                    "\n" + headers.get(failed).toString(), failure);
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -340,8 +566,7 @@ public abstract class AbstractBlockChain {
                 statsLastTime = System.currentTimeMillis();
                 statsBlocksAdded = 0;
             }
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
@@ -390,7 +615,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -399,7 +624,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -506,10 +731,12 @@ public abstract class AbstractBlockChain {
         boolean first = true;
         Set<Transaction> falsePositives = Sets.newHashSet();
         if (filteredTxn != null) falsePositives.addAll(filteredTxn.values());
+        // Matches each transaction against the wallets once, rather than asking every wallet about it.
+        TransactionRelevanceIndex.Matcher matcher = relevanceIndex.newMatcher();
         for (final ListenerRegistration<BlockChainListener> registration : listeners) {
             if (registration.executor == Threading.SAME_THREAD) {
                 informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
-                        newStoredBlock, first, registration.listener, falsePositives);
+                        newStoredBlock, first, registration.listener, falsePositives, matcher);
                 if (newBlockType == NewBlockType.BEST_CHAIN)
                     registration.listener.notifyNewBestBlock(newStoredBlock);
             } else {
@@ -522,7 +749,8 @@ public abstract class AbstractBlockChain {
                             // We can't do false-positive handling when executing on another thread
                             Set<Transaction> ignoredFalsePositives = Sets.newHashSet();
                             informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
-                                    newStoredBlock, notFirst, registration.listener, ignoredFalsePositives);
+                                    newStoredBlock, notFirst, registration.listener, ignoredFalsePositives,
+                                    relevanceIndex.newMatcher());
                             if (newBlockType == NewBlockType.BEST_CHAIN)
                                 registration.listener.notifyNewBestBlock(newStoredBlock);
                         } catch (VerificationException e) {
@@ -545,7 +773,8 @@ public abstract class AbstractBlockChain {
                                                          @Nullable Map<Sha256Hash, Transaction> filteredTxn,
                                                          StoredBlock newStoredBlock, boolean first,
                                                          BlockChainListener listener,
-                                                         Set<Transaction> falsePositives) throws VerificationException {
+                                                         Set<Transaction> falsePositives,
+                                                         TransactionRelevanceIndex.Matcher matcher) throws VerificationException {
         if (block.transactions != null) {
             // If this is not the first wallet, ask for the transactions to be duplicated before being given
             // to the wallet when relevant. This ensures that if we have two connected wallets and a tx that
@@ -554,7 +783,7 @@ public abstract class AbstractBlockChain {
             // the case of multiple wallets to avoid an unnecessary efficiency hit in the common case.
 
             sendTransactionsToListener(newStoredBlock, newBlockType, listener, 0, block.transactions,
-                    !first, falsePositives);
+                    !first, falsePositives, matcher);
         } else if (filteredTxHashList != null) {
             checkNotNull(filteredTxn);
             // We must send transactions to listeners in the order they appeared in the block - thus we iterate over the
@@ -565,7 +794,7 @@ public abstract class AbstractBlockChain {
                 Transaction tx = filteredTxn.get(hash);
                 if (tx != null)
                     sendTransactionsToListener(newStoredBlock, newBlockType, listener, relativityOffset,
-                            Arrays.asList(tx), !first, falsePositives);
+                            Arrays.asList(tx), !first, falsePositives, matcher);
                 else
                     listener.notifyTransactionIsInBlock(hash, newStoredBlock, newBlockType, relativityOffset);
                 relativityOffset++;
@@ -741,10 +970,11 @@ public abstract class AbstractBlockChain {
                                                    int relativityOffset,
                                                    List<Transaction> transactions,
                                                    boolean clone,
-                                                   Set<Transaction> falsePositives) throws VerificationException {
+                                                   Set<Transaction> falsePositives,
+                                                   TransactionRelevanceIndex.Matcher matcher) throws VerificationException {
         for (Transaction tx : transactions) {
             try {
-                if (listener.isTransactionRelevant(tx)) {
+                if (matcher.mayBeRelevant(tx, listener) && listener.isTransactionRelevant(tx)) {
                     falsePositives.remove(tx);
                     if (clone)
                         tx = new Transaction(tx.params, tx.bitcoinSerialize());
@@ -769,40 +999,131 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks which build on the given block, which has just been connected, then the orphans which
+     * build on those, and so on.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                log.debug("Trying to connect {}", orphanBlock.block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
-                }
-                // Otherwise we can connect it now.
+        if (orphanBlocks.isEmpty())
+            return;
+        int blocksConnected = 0;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            Sha256Hash parent = parents.poll();
+            // Copied, as connecting a child modifies the index.
+            for (OrphanBlock orphanBlock : new ArrayList<OrphanBlock>(orphansByPrev.get(parent))) {
+                log.debug("Connecting orphan {}", orphanBlock.block.getHash());
+                removeOrphan(orphanBlock);
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                long latency = System.currentTimeMillis() - orphanBlock.addedTime;
+                orphanConnectMillis.addAndGet(latency);
+                while (true) {
+                    long max = maxOrphanConnectMillis.get();
+                    if (latency <= max || maxOrphanConnectMillis.compareAndSet(max, latency))
+                        break;
+                }
+                orphansConnected.incrementAndGet();
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    private void addOrphan(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.put(orphanBlock.block.getHash(), orphanBlock);
+        orphansByPrev.put(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBytes += orphanBlock.size;
+        orphansAdded.incrementAndGet();
+        evictOrphans();
+    }
+
+    private void removeOrphan(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.remove(orphanBlock.block.getHash());
+        orphansByPrev.remove(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBytes -= orphanBlock.size;
+    }
+
+    // Drops the oldest orphans until we are within the limits.
+    private void evictOrphans() {
+        checkState(lock.isHeldByCurrentThread());
+        int evicted = 0;
+        while (!orphanBlocks.isEmpty() && (orphanBlocks.size() > maxOrphanBlocks || orphanBytes > maxOrphanBytes)) {
+            removeOrphan(orphanBlocks.values().iterator().next());
+            evicted++;
+        }
+        if (evicted > 0) {
+            orphansEvicted.addAndGet(evicted);
+            log.warn("Evicted {} orphan blocks, {} left using {} bytes", evicted, orphanBlocks.size(), orphanBytes);
+        }
+    }
+
+    /**
+     * Sets how many orphan blocks are kept, and how many bytes they may use between them. Once either limit is
+     * exceeded the oldest orphans are dropped; they will be downloaded again if they turn out to be needed.
+     */
+    public void setOrphanLimits(int maxBlocks, long maxBytes) {
+        checkArgument(maxBlocks > 0 && maxBytes > 0);
+        lock.lock();
+        try {
+            maxOrphanBlocks = maxBlocks;
+            maxOrphanBytes = maxBytes;
+            evictOrphans();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks are waiting for their parents. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how many bytes the orphan blocks waiting for their parents use. */
+    public long getOrphanBytes() {
+        lock.lock();
+        try {
+            return orphanBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks have been put aside as orphans. */
+    public long getOrphansAddedCount() {
+        return orphansAdded.get();
+    }
+
+    /** Returns how many orphan blocks were connected once their parent arrived. */
+    public long getOrphansConnectedCount() {
+        return orphansConnected.get();
+    }
+
+    /** Returns how many orphan blocks were dropped to stay within the limits. */
+    public long getOrphansEvictedCount() {
+        return orphansEvicted.get();
+    }
+
+    /** Returns the average time between a block becoming an orphan and it being connected, in milliseconds. */
+    public long getAverageOrphanConnectMillis() {
+        long connected = orphansConnected.get();
+        return connected == 0 ? 0 : orphanConnectMillis.get() / connected;
+    }
+
+    /** Returns the longest time between a block becoming an orphan and it being connected, in milliseconds. */
+    public long getMaxOrphanConnectMillis() {
+        return maxOrphanConnectMillis.get();
     }
 
     // February 16th 2012
@@ -910,11 +1231,13 @@ public abstract class AbstractBlockChain {
      */
     private boolean containsRelevantTransactions(Block block) {
         // Does not need to be locked.
+        TransactionRelevanceIndex.Matcher matcher = relevanceIndex.newMatcher();
         for (Transaction tx : block.transactions) {
             try {
                 for (final ListenerRegistration<BlockChainListener> registration : listeners) {
                     if (registration.executor != Threading.SAME_THREAD) continue;
-                    if (registration.listener.isTransactionRelevant(tx)) return true;
+                    if (matcher.mayBeRelevant(tx, registration.listener) &&
+                            registration.listener.isTransactionRelevant(tx)) return true;
                 }
             } catch (ScriptException e) {
                 // We don't want scripts we don't understand to break the block chain so just note that this tx was
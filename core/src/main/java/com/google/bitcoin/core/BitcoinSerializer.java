@@ -45,6 +45,8 @@ import static com.google.bitcoin.core.Utils.*;
 public class BitcoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
+    // The magic bytes followed by a BitcoinPacketHeader.
+    private static final int MESSAGE_HEADER_LENGTH = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
 
     private NetworkParameters params;
     private boolean parseLazy = false;
@@ -98,35 +100,61 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        byte[] header = new byte[MESSAGE_HEADER_LENGTH];
+        writeHeader(name, message, header);
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(message));
+    }
+
+    // Writes the magic, command, length and checksum of the given payload to the start of buf.
+    private void writeHeader(String name, byte[] message, byte[] buf) {
+        uint32ToByteArrayBE(params.getPacketMagic(), buf, 0);
 
         // The header array is initialized to zero by Java so we don't have to worry about
         // NULL terminating the string here.
         for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+            buf[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(message.length, buf, 4 + COMMAND_LEN);
 
         byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
+        System.arraycopy(hash, 0, buf, 4 + COMMAND_LEN + 4, 4);
+    }
 
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(message));
+    private static String getName(Message message) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        return name;
     }
 
     /**
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
-        String name = names.get(message.getClass());
-        if (name == null) {
-            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
-        }
-        serialize(name, message.bitcoinSerialize(), out);
+        // The stream only reads the bytes, so there is no need for bitcoinSerialize() to copy them.
+        serialize(getName(message), message.unsafeBitcoinSerialize(), out);
+    }
+
+    /**
+     * Returns the message as it goes on the wire, header and payload together in a single array. The payload is
+     * copied only once, straight into place, so this is cheaper than going through an OutputStream.
+     */
+    public byte[] serialize(Message message) {
+        String name = getName(message);
+        byte[] payload = message.unsafeBitcoinSerialize();
+        byte[] bytes = new byte[MESSAGE_HEADER_LENGTH + payload.length];
+        writeHeader(name, payload, bytes);
+        System.arraycopy(payload, 0, bytes, MESSAGE_HEADER_LENGTH, payload.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, bytesToHexString(bytes));
+        return bytes;
     }
 
     /**
@@ -166,19 +194,42 @@ public class BitcoinSerializer {
      * {@link BitcoinSerializer#deserializeHeader}.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        // Check the payload where it lies before copying it out, so corrupt messages cost no allocation.
+        ByteBuffer payload = in.slice();
+        payload.limit(header.size);
+        byte[] hash = doubleDigest(payload);
+        verifyChecksum(header, hash);
+
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return makeMessage(header, payloadBytes, hash);
+    }
+
+    /**
+     * Deserialize a payload that was read into an array of its own, typically because it was too big for the network
+     * read buffer. The array is handed to the message as is rather than copied, so the caller must not touch it
+     * afterwards.
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        if (payloadBytes.length != header.size)
+            throw new ProtocolException("Payload is " + payloadBytes.length + " bytes but header says " + header.size);
+        byte[] hash = doubleDigest(payloadBytes);
+        verifyChecksum(header, hash);
+        return makeMessage(header, payloadBytes, hash);
+    }
 
-        // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
+    private static void verifyChecksum(BitcoinPacketHeader header, byte[] hash) throws ProtocolException {
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
                     bytesToHexString(hash) +
                     " vs " + bytesToHexString(header.checksum));
         }
+    }
 
+    private Message makeMessage(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
                     Utils.bytesToHexString(payloadBytes));
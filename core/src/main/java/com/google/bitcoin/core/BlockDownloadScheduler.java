@@ -0,0 +1,590 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Downloads the block chain from all connected peers at once, instead of from just the download peer.</p>
+ *
+ * <p>Headers are fetched first, with getheaders, from the reporting peer (normally the download peer of the
+ * {@link PeerGroup}). They are kept in memory rather than added to the chain, which tells us which blocks to ask for
+ * and in what order. The bodies of the blocks in a window at the front of the known headers are then requested in
+ * batches of consecutive blocks, spread over every peer that has room for more, as full or filtered blocks. As the
+ * chain head advances the window moves along with it. Blocks are added to the chain strictly in order, whichever
+ * peer they came from, so anything arriving early waits in memory: the window bounds how much that can be.</p>
+ *
+ * <p>Blocks that a peer has not delivered within {@link #STALL_TIMEOUT_MSEC}, that it says it does not have, or that
+ * were asked of a peer which then disconnected, are requested again from another peer. Blocks whose headers pre-date
+ * the fast catchup time are added to the chain as headers only, as {@link Peer} does.</p>
+ *
+ * <p>The future returned by {@link #getFuture()} completes once every header the reporting peer had has been
+ * added to the chain, or when the download is abandoned because a block did not connect or failed verification.
+ * Either way the caller should carry on with the usual download from a single peer, which picks up anything
+ * missed or solved in the meantime.</p>
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** How many consecutive blocks are asked of the same peer before moving on to the next one. */
+    static final int BATCH_SIZE = 16;
+    /** How many blocks a single peer may have been asked for and not yet delivered. */
+    static final int MAX_IN_FLIGHT_PER_PEER = 64;
+    /** How many blocks past the chain head are requested, which bounds how many may be waiting to be added. */
+    static final int WINDOW_SIZE = 1024;
+    /** How long a peer has to deliver a block before it is asked of another peer instead. */
+    static final long STALL_TIMEOUT_MSEC = 20 * 1000;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final long fastCatchupTimeSecs;
+    private final boolean useFilteredBlocks;
+    private final SettableFuture<Void> future = SettableFuture.create();
+    private final Timer stallTimer = new Timer("Block download stall checker", true);
+
+    private final ReentrantLock lock = Threading.lock("blockdownloadscheduler");
+    // Headers that are known but not yet added to the chain, in chain order.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, PendingBlock> pending =
+            new LinkedHashMap<Sha256Hash, PendingBlock>();
+    // The peers we can download from, with the number of blocks each has been asked for and not yet delivered.
+    @GuardedBy("lock") private final LinkedHashMap<Peer, Integer> inFlight = new LinkedHashMap<Peer, Integer>();
+    // The peer headers are asked of, and on behalf of which progress is reported.
+    @GuardedBy("lock") private Peer reportingPeer;
+    // The last header we know of, which the next headers message has to connect to.
+    @GuardedBy("lock") private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    // Once a header is at or after the fast catchup time, every later block needs its body.
+    @GuardedBy("lock") private boolean needBodies;
+    @GuardedBy("lock") private boolean headersRequested, headersComplete, delivering, finished;
+
+    private static class PendingBlock {
+        final Block header;
+        final int height;
+        final boolean needsBody;
+        @Nullable Block block;
+        @Nullable FilteredBlock filteredBlock;
+        // The peer the body was asked of, null if it isn't in flight.
+        @Nullable Peer requestedFrom;
+        long requestTime;
+        // The last peer which failed to deliver it, which we avoid asking again if there is a choice.
+        @Nullable Peer failedPeer;
+
+        PendingBlock(Block header, int height, boolean needsBody) {
+            this.header = header;
+            this.height = height;
+            this.needsBody = needsBody;
+        }
+
+        boolean isReady() {
+            return !needsBody || block != null || filteredBlock != null;
+        }
+    }
+
+    BlockDownloadScheduler(NetworkParameters params, AbstractBlockChain chain, Peer reportingPeer,
+                           long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        this.params = params;
+        this.chain = chain;
+        this.reportingPeer = reportingPeer;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.useFilteredBlocks = useFilteredBlocks;
+    }
+
+    /** Asks the reporting peer for the first headers and starts checking for stalled peers. */
+    void start() {
+        ListMultimap<Peer, Message> requests;
+        lock.lock();
+        try {
+            StoredBlock head = chain.getChainHead();
+            lastHeaderHash = head.getHeader().getHash();
+            lastHeaderHeight = head.getHeight();
+            needBodies = head.getHeader().getTimeSeconds() >= fastCatchupTimeSecs;
+            addPeerLocked(reportingPeer);
+            requests = scheduleLocked();
+            stallTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkForStalls();
+                }
+            }, STALL_TIMEOUT_MSEC / 4, STALL_TIMEOUT_MSEC / 4);
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    /** Returns a future that completes when the scheduler has finished, successfully or not. */
+    ListenableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /** Starts asking the given newly connected peer for blocks too. */
+    void addPeer(Peer peer) {
+        ListMultimap<Peer, Message> requests;
+        lock.lock();
+        try {
+            if (finished || inFlight.containsKey(peer))
+                return;
+            addPeerLocked(peer);
+            requests = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    @GuardedBy("lock")
+    private void addPeerLocked(Peer peer) {
+        inFlight.put(peer, 0);
+        peer.setDownloadScheduler(this);
+    }
+
+    /** Stops using the given peer, eg because it disconnected, and asks other peers for what it still owed us. */
+    void removePeer(Peer peer) {
+        ListMultimap<Peer, Message> requests;
+        lock.lock();
+        try {
+            if (inFlight.remove(peer) == null)
+                return;
+            peer.setDownloadScheduler(null);
+            for (PendingBlock b : pending.values()) {
+                if (b.requestedFrom == peer) {
+                    b.requestedFrom = null;
+                    b.failedPeer = peer;
+                }
+            }
+            if (reportingPeer == peer) {
+                if (inFlight.isEmpty()) {
+                    // Nobody left to get headers from. The peer group will start again once it has a new peer.
+                    requests = null;
+                } else {
+                    reportingPeer = inFlight.keySet().iterator().next();
+                    // Anything asked of the old one isn't coming.
+                    headersRequested = false;
+                    requests = scheduleLocked();
+                }
+            } else {
+                requests = scheduleLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (requests == null)
+            finish("no peers left");
+        else
+            send(requests);
+    }
+
+    /** Changes which peer headers are asked of and progress is reported for, when the download peer changes. */
+    void setReportingPeer(Peer peer) {
+        ListMultimap<Peer, Message> requests;
+        lock.lock();
+        try {
+            if (finished || reportingPeer == peer)
+                return;
+            if (!inFlight.containsKey(peer))
+                addPeerLocked(peer);
+            reportingPeer = peer;
+            headersRequested = false;
+            requests = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    /** Stops the download, leaving the peers to carry on as before. */
+    void stop() {
+        finish(null);
+    }
+
+    /**
+     * Called by a peer when it receives headers. Returns true if they were consumed here, which is the case for
+     * every headers message whilst the scheduler is running.
+     */
+    boolean headersReceived(Peer peer, HeadersMessage m) {
+        ListMultimap<Peer, Message> requests;
+        String failure = null;
+        lock.lock();
+        try {
+            if (finished)
+                return false;
+            if (peer != reportingPeer || !headersRequested) {
+                log.debug("{}: Ignoring headers we did not ask for", peer);
+                return true;
+            }
+            headersRequested = false;
+            List<Block> headers = m.getBlockHeaders();
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(lastHeaderHash) && !startsSideChainLocked(header)) {
+                    failure = "headers from " + peer + " do not connect at " + header.getHashAsString();
+                    break;
+                }
+                if (!needBodies && header.getTimeSeconds() >= fastCatchupTimeSecs)
+                    needBodies = true;
+                lastHeaderHash = header.getHash();
+                lastHeaderHeight++;
+                pending.put(lastHeaderHash, new PendingBlock(header, lastHeaderHeight, needBodies));
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS) {
+                log.info("Received all headers from {}, {} blocks to go", peer, pending.size());
+                headersComplete = true;
+            }
+            requests = scheduleLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null) {
+            finish(failure);
+            return true;
+        }
+        send(requests);
+        deliver();
+        return true;
+    }
+
+    // Whether the header is the start of a chain forking off ours, which happens when the peer we ask is on a chain
+    // that has overtaken ours. Such chains are left to the block chain to sort out.
+    @GuardedBy("lock")
+    private boolean startsSideChainLocked(Block header) throws BlockStoreException {
+        if (!pending.isEmpty())
+            return false;
+        StoredBlock prev = chain.getBlockStore().get(header.getPrevBlockHash());
+        if (prev == null)
+            return false;
+        lastHeaderHeight = prev.getHeight();
+        return true;
+    }
+
+    /** Called by a peer when it receives a block. Returns true if the block was one the scheduler asked for. */
+    boolean blockReceived(Peer peer, Block block) {
+        return bodyReceived(peer, block.getHash(), block, null);
+    }
+
+    /** Called by a peer when it has received a filtered block and its transactions. */
+    boolean filteredBlockReceived(Peer peer, FilteredBlock block) {
+        return bodyReceived(peer, block.getHash(), null, block);
+    }
+
+    private boolean bodyReceived(Peer peer, Sha256Hash hash, @Nullable Block block,
+                                 @Nullable FilteredBlock filteredBlock) {
+        ListMultimap<Peer, Message> requests;
+        lock.lock();
+        try {
+            PendingBlock b = pending.get(hash);
+            if (finished || b == null || !b.needsBody)
+                return false;
+            if (b.isReady())
+                return true;  // A stalled block which both peers delivered in the end.
+            b.block = block;
+            b.filteredBlock = filteredBlock;
+            if (b.requestedFrom != null) {
+                delivered(b.requestedFrom);
+                b.requestedFrom = null;
+            }
+            // The peer which delivered it has room for more.
+            requests = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+        deliver();
+        return true;
+    }
+
+    /** Called by a peer when it is told that some of the data it asked for isn't available. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        ListMultimap<Peer, Message> requests;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            for (InventoryItem item : items) {
+                PendingBlock b = pending.get(item.hash);
+                if (b != null && b.requestedFrom == peer) {
+                    log.info("{}: Does not have block {}", peer, item.hash);
+                    delivered(peer);
+                    b.requestedFrom = null;
+                    b.failedPeer = peer;
+                }
+            }
+            requests = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    /** Asks other peers for blocks which have been in flight for too long. Runs on the stall timer. */
+    void checkForStalls() {
+        ListMultimap<Peer, Message> requests;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            long now = Utils.currentTimeMillis();
+            int stalled = 0;
+            for (PendingBlock b : pending.values()) {
+                if (b.requestedFrom != null && now - b.requestTime >= STALL_TIMEOUT_MSEC) {
+                    delivered(b.requestedFrom);
+                    b.failedPeer = b.requestedFrom;
+                    b.requestedFrom = null;
+                    stalled++;
+                }
+            }
+            if (stalled > 0)
+                log.info("{} blocks stalled, asking other peers for them", stalled);
+            requests = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    @GuardedBy("lock")
+    private void delivered(Peer peer) {
+        Integer count = inFlight.get(peer);
+        if (count != null)
+            inFlight.put(peer, count - 1);
+    }
+
+    // Works out which blocks to ask which peers for, and whether we need more headers. The messages are sent by
+    // the caller once the lock is released.
+    @GuardedBy("lock")
+    private ListMultimap<Peer, Message> scheduleLocked() {
+        ListMultimap<Peer, Message> requests = LinkedListMultimap.create();
+        if (finished)
+            return requests;
+        // Keep enough headers ahead of the window that it never runs dry.
+        if (!headersComplete && !headersRequested && pending.size() < WINDOW_SIZE * 2) {
+            requests.put(reportingPeer, new GetHeadersMessage(params, buildLocatorLocked(), Sha256Hash.ZERO_HASH));
+            headersRequested = true;
+        }
+        Map<Peer, GetDataMessage> getdatas = new LinkedHashMap<Peer, GetDataMessage>();
+        Peer current = null;
+        int currentBatch = 0;
+        int position = 0;
+        long now = Utils.currentTimeMillis();
+        for (PendingBlock b : pending.values()) {
+            if (position++ >= WINDOW_SIZE)
+                break;
+            if (b.isReady() || b.requestedFrom != null)
+                continue;
+            // Carry on with the current peer until it has a whole batch, so each peer gets runs of blocks.
+            if (current == null || currentBatch >= BATCH_SIZE || !canAsk(current, b)) {
+                current = choosePeerLocked(b);
+                currentBatch = 0;
+                if (current == null)
+                    break;  // Everyone is busy.
+            }
+            GetDataMessage getdata = getdatas.get(current);
+            if (getdata == null) {
+                getdata = new GetDataMessage(params);
+                getdatas.put(current, getdata);
+            }
+            if (useFilteredBlocks && current.getPeerVersionMessage().isBloomFilteringSupported())
+                getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, b.header.getHash()));
+            else
+                getdata.addBlock(b.header.getHash());
+            b.requestedFrom = current;
+            b.requestTime = now;
+            inFlight.put(current, inFlight.get(current) + 1);
+            currentBatch++;
+        }
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+            Peer peer = entry.getKey();
+            requests.put(peer, entry.getValue());
+            // As in Peer, a ping after the getdata marks the end of the last filtered block's transactions.
+            if (useFilteredBlocks && peer.getPeerVersionMessage().isBloomFilteringSupported())
+                requests.put(peer, new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+        return requests;
+    }
+
+    @GuardedBy("lock")
+    private boolean canAsk(Peer peer, PendingBlock b) {
+        return inFlight.get(peer) < MAX_IN_FLIGHT_PER_PEER && peer.getBestHeight() >= b.height;
+    }
+
+    // Picks the least busy peer which has the block, preferring one which hasn't already failed to deliver it.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer choosePeerLocked(PendingBlock b) {
+        Peer best = null;
+        for (Peer peer : inFlight.keySet()) {
+            if (!canAsk(peer, b))
+                continue;
+            if (best == null || (best == b.failedPeer && peer != b.failedPeer) ||
+                    (peer != b.failedPeer && inFlight.get(peer) < inFlight.get(best)))
+                best = peer;
+        }
+        return best;
+    }
+
+    // The last header we know of, followed by the same locator Peer uses for the chain head.
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildLocatorLocked() {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(102);
+        if (!pending.isEmpty())
+            locator.add(lastHeaderHash);
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        try {
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(store);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    private void send(ListMultimap<Peer, Message> requests) {
+        for (Map.Entry<Peer, Message> entry : requests.entries()) {
+            try {
+                entry.getKey().sendMessage(entry.getValue());
+            } catch (Exception e) {
+                // The peer is going away, and removePeer will hand its blocks to someone else.
+                log.warn("{}: Failed to send {}", entry.getKey(), entry.getValue().getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    // Adds whatever blocks are ready at the front of the queue to the chain. Only one thread does so at a time, so
+    // blocks go in strictly in order, and the lock isn't held whilst they are verified and stored.
+    private void deliver() {
+        Peer reporter;
+        lock.lock();
+        try {
+            if (delivering || finished)
+                return;
+            delivering = true;
+        } finally {
+            lock.unlock();
+        }
+        String failure = null;
+        boolean done = false;
+        // Whether delivering still needs resetting, which it does unless we stopped because nothing was ready.
+        boolean stillDelivering = true;
+        try {
+            while (true) {
+                PendingBlock next = null;
+                lock.lock();
+                try {
+                    reporter = reportingPeer;
+                    if (!finished && !pending.isEmpty()) {
+                        PendingBlock first = pending.values().iterator().next();
+                        if (first.isReady()) {
+                            next = first;
+                            pending.remove(first.header.getHash());
+                        }
+                    }
+                    if (next == null) {
+                        // Reset whilst still holding the lock, so a block made ready meanwhile isn't left waiting.
+                        delivering = stillDelivering = false;
+                        done = !finished && headersComplete && pending.isEmpty();
+                        break;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    Block block;
+                    boolean connected;
+                    if (next.filteredBlock != null) {
+                        block = next.filteredBlock.getBlockHeader();
+                        connected = chain.add(next.filteredBlock);
+                    } else {
+                        block = next.block != null ? next.block : next.header;
+                        connected = chain.add(block);
+                    }
+                    if (!connected) {
+                        failure = "block " + block.getHashAsString() + " did not connect";
+                        break;
+                    }
+                    reporter.invokeOnBlocksDownloaded(block);
+                } catch (VerificationException e) {
+                    log.warn("Block verification failed", e);
+                    failure = "block " + next.header.getHashAsString() + " failed verification";
+                    break;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                } catch (RuntimeException e) {
+                    // Usually a BlockStoreException wrapped by the chain. The usual download gets to try again.
+                    log.error("Failed to add block to the chain", e);
+                    failure = "block " + next.header.getHashAsString() + " could not be added: " + e;
+                    break;
+                }
+            }
+        } finally {
+            if (stillDelivering) {
+                lock.lock();
+                try {
+                    delivering = false;
+                } finally {
+                    lock.unlock();
+                }
+                // Without a failure we are on the way out with an exception, which the caller gets to see.
+                if (failure == null)
+                    failure = "adding a block to the chain threw";
+            }
+            if (failure != null)
+                finish(failure);
+            else if (done)
+                finish(null);
+        }
+    }
+
+    private void finish(@Nullable String failure) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            finished = true;
+            stallTimer.cancel();
+            for (Peer peer : inFlight.keySet())
+                peer.setDownloadScheduler(null);
+            inFlight.clear();
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null)
+            log.warn("Stopped downloading from all peers: {}", failure);
+        else
+            log.info("Finished downloading from all peers");
+        future.set(null);
+    }
+}
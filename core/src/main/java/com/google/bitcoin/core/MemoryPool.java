@@ -17,19 +17,27 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -43,10 +51,13 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The table is split into a number of stripes selected by transaction hash, each with its own lock, so peers
+ * announcing different transactions don't contend with each other. Each stripe is kept in insertion order, which
+ * means both the size cap and the age limit can be enforced by looking only at the eldest entries.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
-    protected ReentrantLock lock = Threading.lock("mempool");
 
     // For each transaction we may have seen:
     //   - only its hash in an inv packet
@@ -64,40 +75,135 @@ public class MemoryPool {
         }
     }
     private static class Entry {
-        // Invariants: one of the two fields must be null, to indicate which is used.
-        Set<PeerAddress> addresses;
+        // Invariants: one of the two fields must be null, to indicate which is used. The peers that announced the
+        // transaction are stored as indexes into peerAddresses, which is a lot smaller than a set of PeerAddress.
+        int[] peers;
+        int numPeers;
         // We keep a weak reference to the transaction. This means that if no other bit of code finds the transaction
         // worth keeping around it will drop out of memory and we will, at some point, forget about it, which means
         // both addresses and tx.get() will be null. When this happens the WeakTransactionReference appears in the queue
         // allowing us to delete the associated entry (the tx itself has already gone away).
         WeakTransactionReference tx;
+        // When the entry was first created, used for age based eviction.
+        final long createdAt;
+
+        Entry(long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        boolean addPeer(int peer) {
+            for (int i = 0; i < numPeers; i++)
+                if (peers[i] == peer) return false;
+            if (numPeers == peers.length)
+                peers = Arrays.copyOf(peers, peers.length * 2);
+            peers[numPeers++] = peer;
+            return true;
+        }
+    }
+
+    private class Stripe extends LinkedHashMap<Sha256Hash, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        final ReentrantLock lock;
+        final int capacity;
+
+        Stripe(int index, int capacity) {
+            this.lock = Threading.lock("mempool-" + index);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
+            // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+            // of some kind of DoS attack.
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                releasePeers(entry.getValue());
+                return true;
+            }
+            return false;
+        }
+
+        /** Drops entries older than the max age. Because we are in insertion order only the head has to be checked. */
+        void expire(long now) {
+            checkState(lock.isHeldByCurrentThread());
+            if (maxAgeMillis <= 0) return;
+            Iterator<Entry> it = values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (now - entry.createdAt < maxAgeMillis)
+                    break;
+                it.remove();
+                releasePeers(entry);
+                ageEvictions.incrementAndGet();
+            }
+        }
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
+
+    private final Stripe[] stripes;
+    private final long maxAgeMillis;
+
+    // Peers are referred to by a small integer index rather than a PeerAddress per entry. Each index counts the entries
+    // referring to it and is reused for another address once there are none, so the table only holds the peers that
+    // announced something still in the pool. Always taken after a stripe lock, never before.
+    private final ReentrantLock peerIndexLock = Threading.lock("mempool-peers");
+    @GuardedBy("peerIndexLock") private final HashMap<PeerAddress, Integer> peerIndexes = new HashMap<PeerAddress, Integer>();
+    @GuardedBy("peerIndexLock") private PeerAddress[] peerAddresses = new PeerAddress[16];
+    @GuardedBy("peerIndexLock") private int[] peerRefs = new int[16];
+    @GuardedBy("peerIndexLock") private int[] freePeers = new int[16];
+    @GuardedBy("peerIndexLock") private int numFreePeers, numPeerSlots;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
     // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    // if our peers flood us with invs but the size cap and max age limit this.
+    private final ReferenceQueue<Transaction> referenceQueue;
+
+    // Statistics.
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong insertions = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong ageEvictions = new AtomicLong();
 
     /** The max size of a memory pool created with the no-args constructor. */
-    public static final int MAX_SIZE = 1000;
+    public static final int MAX_SIZE = 20000;
+
+    /** The max age of an entry in a memory pool created with the no-args constructor. */
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /** The number of independently locked stripes used by default. */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
 
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
-     * usage).
+     * usage), forgetting entries older than {@link MemoryPool#DEFAULT_MAX_AGE_MILLIS}.
      * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+        this(size, DEFAULT_MAX_AGE_MILLIS, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates a memory pool with the given bounds.
+     * @param size Max number of transactions to track. The pool will fill up to about this size then stop growing.
+     * @param maxAgeMillis Entries older than this are forgotten, or zero to only bound by size.
+     * @param concurrencyLevel How many independently locked stripes to split the table into. Rounded up to a power
+     *                         of two, and down so each stripe holds at least one entry.
+     */
+    public MemoryPool(final int size, final long maxAgeMillis, final int concurrencyLevel) {
+        checkArgument(size > 0);
+        checkArgument(maxAgeMillis >= 0);
+        checkArgument(concurrencyLevel > 0);
+        int numStripes = 1;
+        while (numStripes < concurrencyLevel && numStripes * 2 <= size)
+            numStripes <<= 1;
+        final int perStripe = (size + numStripes - 1) / numStripes;
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe(i, perStripe);
+        this.maxAgeMillis = maxAgeMillis;
         referenceQueue = new ReferenceQueue<Transaction>();
     }
 
@@ -109,6 +215,100 @@ public class MemoryPool {
         this(MAX_SIZE);
     }
 
+    private Stripe stripeFor(Sha256Hash hash) {
+        // Sha256Hash.hashCode already mixes bytes of the hash, which is itself uniformly distributed.
+        int h = hash.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /** Returns the index of the address, counting a reference to it that must be given back with releasePeer. */
+    private int acquirePeer(PeerAddress address) {
+        peerIndexLock.lock();
+        try {
+            Integer index = peerIndexes.get(address);
+            if (index == null) {
+                if (numFreePeers > 0) {
+                    index = freePeers[--numFreePeers];
+                } else {
+                    if (numPeerSlots == peerAddresses.length) {
+                        // Doubling, so growing the table is cheap however many peers come and go.
+                        peerAddresses = Arrays.copyOf(peerAddresses, numPeerSlots * 2);
+                        peerRefs = Arrays.copyOf(peerRefs, numPeerSlots * 2);
+                        freePeers = Arrays.copyOf(freePeers, numPeerSlots * 2);
+                    }
+                    index = numPeerSlots++;
+                }
+                peerAddresses[index] = address;
+                peerIndexes.put(address, index);
+            }
+            peerRefs[index]++;
+            return index;
+        } finally {
+            peerIndexLock.unlock();
+        }
+    }
+
+    private void releasePeer(int peer) {
+        peerIndexLock.lock();
+        try {
+            releasePeerLocked(peer);
+        } finally {
+            peerIndexLock.unlock();
+        }
+    }
+
+    private void releasePeerLocked(int peer) {
+        checkState(peerRefs[peer] > 0);
+        if (--peerRefs[peer] == 0) {
+            peerIndexes.remove(peerAddresses[peer]);
+            peerAddresses[peer] = null;
+            freePeers[numFreePeers++] = peer;
+        }
+    }
+
+    /**
+     * Gives back the peers held by an entry that was only seen announced, as it leaves the pool or is downloaded,
+     * returning their addresses.
+     */
+    private PeerAddress[] releasePeers(Entry entry) {
+        if (entry.peers == null)
+            return new PeerAddress[0];
+        PeerAddress[] addresses = new PeerAddress[entry.numPeers];
+        peerIndexLock.lock();
+        try {
+            for (int i = 0; i < entry.numPeers; i++) {
+                addresses[i] = peerAddresses[entry.peers[i]];
+                releasePeerLocked(entry.peers[i]);
+            }
+        } finally {
+            peerIndexLock.unlock();
+        }
+        return addresses;
+    }
+
+    /** Returns how many peer addresses are held for entries in the pool. */
+    @VisibleForTesting
+    int numPeerIndexes() {
+        peerIndexLock.lock();
+        try {
+            return peerIndexes.size();
+        } finally {
+            peerIndexLock.unlock();
+        }
+    }
+
+    /** Returns how many slots the peer table has used at most, which recycling keeps close to numPeerIndexes. */
+    @VisibleForTesting
+    int numPeerSlots() {
+        peerIndexLock.lock();
+        try {
+            return numPeerSlots;
+        } finally {
+            peerIndexLock.unlock();
+        }
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -116,17 +316,21 @@ public class MemoryPool {
      * are relevant to any of our wallets.
      */
     private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
+        Reference<? extends Transaction> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakTransactionReference txRef = (WeakTransactionReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed. The entry may
+            // have been evicted and re-created since, so only remove it if it still points at this reference.
+            Stripe stripe = stripeFor(txRef.hash);
+            stripe.lock.lock();
+            try {
+                Entry entry = stripe.get(txRef.hash);
+                if (entry != null && entry.tx == txRef)
+                    stripe.remove(txRef.hash);
+            } finally {
+                stripe.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -134,32 +338,34 @@ public class MemoryPool {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(txHash);
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
+            stripe.expire(Utils.currentTimeMillis());
+            Entry entry = stripe.get(txHash);
             if (entry == null) {
                 // No such TX known.
                 return 0;
             } else if (entry.tx == null) {
                 // We've seen at least one peer announce with an inv.
-                checkNotNull(entry.addresses);
-                return entry.addresses.size();
+                checkNotNull(entry.peers);
+                return entry.numPeers;
             } else {
                 final Transaction tx = entry.tx.get();
                 if (tx == null) {
                     // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
                     // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
                     // just delete it from the map.
-                    memoryPool.remove(txHash);
+                    stripe.remove(txHash);
                     return 0;
                 } else {
-                    checkState(entry.addresses == null);
+                    checkState(entry.peers == null);
                     return tx.getConfidence().numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -169,48 +375,61 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(tx.getHash());
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
-            if (entry != null) {
-                // This TX or its hash have been previously interned.
-                if (entry.tx != null) {
-                    // We already interned it (but may have thrown it away).
-                    checkState(entry.addresses == null);
-                    // We only want one canonical object instance for a transaction no matter how many times it is
-                    // deserialized.
-                    Transaction transaction = entry.tx.get();
-                    if (transaction != null) {
-                        // We saw it before and kept it around. Hand back the canonical copy.
-                        tx = transaction;
-                    }
-                    return tx;
-                } else {
-                    // We received a transaction that we have previously seen announced but not downloaded until now.
-                    checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
-                    entry.addresses = null;
-                    TransactionConfidence confidence = tx.getConfidence();
-                    log.debug("Adding tx [{}] {} to the memory pool",
-                            confidence.numBroadcastPeers(), tx.getHashAsString());
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
-                    }
-                    return tx;
+            return internLocked(stripe, tx);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Transaction internLocked(Stripe stripe, Transaction tx) {
+        checkState(stripe.lock.isHeldByCurrentThread());
+        final long now = Utils.currentTimeMillis();
+        stripe.expire(now);
+        lookups.incrementAndGet();
+        Entry entry = stripe.get(tx.getHash());
+        if (entry != null) {
+            hits.incrementAndGet();
+            // This TX or its hash have been previously interned.
+            if (entry.tx != null) {
+                // We already interned it (but may have thrown it away).
+                checkState(entry.peers == null);
+                // We only want one canonical object instance for a transaction no matter how many times it is
+                // deserialized.
+                Transaction transaction = entry.tx.get();
+                if (transaction != null) {
+                    // We saw it before and kept it around. Hand back the canonical copy.
+                    tx = transaction;
                 }
+                return tx;
             } else {
-                // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
-                // dependencies of a relevant transaction (see Peer.downloadDependencies).
-                log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
-                entry = new Entry();
+                // We received a transaction that we have previously seen announced but not downloaded until now.
+                checkNotNull(entry.peers);
                 entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                // From now on the confidence object tracks the peers, so the entry gives back its indexes.
+                PeerAddress[] addresses = releasePeers(entry);
+                entry.peers = null;
+                entry.numPeers = 0;
+                TransactionConfidence confidence = tx.getConfidence();
+                log.debug("Adding tx [{}] {} to the memory pool",
+                        confidence.numBroadcastPeers(), tx.getHashAsString());
+                for (PeerAddress address : addresses) {
+                    markBroadcast(address, tx);
+                }
                 return tx;
             }
-        } finally {
-            lock.unlock();
+        } else {
+            // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
+            // dependencies of a relevant transaction (see Peer.downloadDependencies).
+            log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
+            entry = new Entry(now);
+            entry.tx = new WeakTransactionReference(tx, referenceQueue);
+            stripe.put(tx.getHash(), entry);
+            insertions.incrementAndGet();
+            return tx;
         }
     }
 
@@ -221,13 +440,15 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(tx.getHash());
+        stripe.lock.lock();
         try {
-            final Transaction interned = intern(tx);
+            final Transaction interned = internLocked(stripe, tx);
             markBroadcast(byPeer, interned);
             return interned;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -236,14 +457,19 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
+            final long now = Utils.currentTimeMillis();
+            stripe.expire(now);
+            lookups.incrementAndGet();
+            Entry entry = stripe.get(hash);
             if (entry != null) {
+                hits.incrementAndGet();
                 // This TX or its hash have been previously announced.
                 if (entry.tx != null) {
-                    checkState(entry.addresses == null);
+                    checkState(entry.peers == null);
                     Transaction tx = entry.tx.get();
                     if (tx != null) {
                         markBroadcast(byPeer, tx);
@@ -254,27 +480,28 @@ public class MemoryPool {
                         // because nothing found it interesting enough to keep around. So do nothing.
                     }
                 } else {
-                    checkNotNull(entry.addresses);
-                    entry.addresses.add(byPeer);
+                    checkNotNull(entry.peers);
+                    final int peer = acquirePeer(byPeer);
+                    if (!entry.addPeer(peer))
+                        releasePeer(peer);
                     log.debug("{}: Peer announced transaction we have seen announced before [{}] {}",
-                            byPeer, entry.addresses.size(), hash);
+                            byPeer, entry.numPeers, hash);
                 }
             } else {
                 // This TX has never been seen before.
-                entry = new Entry();
-                // TODO: Using hashsets here is inefficient compared to just having an array.
-                entry.addresses = new HashSet<PeerAddress>();
-                entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
+                entry = new Entry(now);
+                entry.peers = new int[4];
+                entry.addPeer(acquirePeer(byPeer));
+                stripe.put(hash, entry);
+                insertions.incrementAndGet();
                 log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
     private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
         final TransactionConfidence confidence = tx.getConfidence();
         if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -287,17 +514,15 @@ public class MemoryPool {
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
+            Entry entry = stripe.get(hash);
             if (entry == null) return null;  // Unknown.
             if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
+            return entry.tx.get();  // Null if it was downloaded but garbage collected.
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -307,12 +532,101 @@ public class MemoryPool {
      * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
-            return entry != null;
+            stripe.expire(Utils.currentTimeMillis());
+            return stripe.containsKey(hash);
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
+
+    /**
+     * Returns the addresses of the peers that announced the given transaction, whether we only saw it in invs or have
+     * downloaded it. The list is empty if the hash is unknown.
+     */
+    public List<PeerAddress> getAnnouncingPeers(Sha256Hash hash) {
+        List<PeerAddress> result = new ArrayList<PeerAddress>();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.get(hash);
+            if (entry == null) return result;
+            if (entry.tx == null) {
+                peerIndexLock.lock();
+                try {
+                    for (int i = 0; i < entry.numPeers; i++)
+                        result.add(peerAddresses[entry.peers[i]]);
+                } finally {
+                    peerIndexLock.unlock();
+                }
+            } else {
+                Transaction tx = entry.tx.get();
+                if (tx != null) {
+                    Iterator<PeerAddress> it = tx.getConfidence().getBroadcastBy();
+                    while (it.hasNext())
+                        result.add(it.next());
+                }
+            }
+            return result;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /** Returns the number of hashes currently tracked. This walks every stripe so is only approximate under load. */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Returns how many times a transaction or its hash was looked up when being announced or downloaded. */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /** Returns how many of the lookups counted by {@link #getLookupCount()} found an existing entry. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the fraction of lookups that found an existing entry, or zero if nothing was looked up yet. */
+    public double getHitRate() {
+        long l = lookups.get();
+        return l == 0 ? 0 : (double) hits.get() / l;
+    }
+
+    /** Returns how many entries were dropped to keep the pool within its size bound. */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** Returns how many entries were dropped because they were older than the max age. */
+    public long getAgeEvictionCount() {
+        return ageEvictions.get();
+    }
+
+    /**
+     * Returns the fraction of inserted entries that were later evicted for size or age reasons, as opposed to being
+     * garbage collected or still present. A value approaching one means the pool is too small for the inv rate.
+     */
+    public double getEvictionRate() {
+        long i = insertions.get();
+        return i == 0 ? 0 : (double) (evictions.get() + ageEvictions.get()) / i;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemoryPool of %d stripes: %d lookups, %.1f%% hit rate, %d size evictions, %d age evictions",
+                stripes.length, getLookupCount(), getHitRate() * 100, getEvictionCount(), getAgeEvictionCount());
+    }
 }
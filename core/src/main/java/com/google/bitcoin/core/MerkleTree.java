@@ -0,0 +1,223 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes the merkle tree of the transactions in a block:</p>
+ *
+ * <pre>
+ *     root
+ *      / \
+ *   A      B
+ *  / \    / \
+ * t1 t2 t3 t4
+ * </pre>
+ *
+ * <p>The hashing algorithm is double SHA-256. The leaves are the hashes of the transactions, and the interior nodes
+ * are hashes of the concatenation of the two child hashes. If a level has an odd number of nodes the last one is
+ * paired with itself. This allows proving that a transaction is in a block by giving only a merkle branch, see
+ * {@link PartialMerkleTree}.</p>
+ *
+ * <p>Nodes are held in flat byte arrays, 32 bytes each, in the byte order they are hashed in, which is the reverse of
+ * {@link Sha256Hash#getBytes()}. Each thread hashes with its own digest, and levels with at least
+ * {@link #PARALLEL_THRESHOLD} nodes are split into chunks which are hashed on a pool of worker threads.</p>
+ */
+public class MerkleTree {
+    /** Levels with at least this many nodes are hashed in parallel, if there is more than one processor. */
+    public static final int PARALLEL_THRESHOLD = 1024;
+    // Fewer pairs than this in a chunk isn't worth handing to another thread.
+    private static final int MIN_CHUNK_PAIRS = 256;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService executor;
+
+    private static class Hasher {
+        final MessageDigest digest;
+        final byte[] first = new byte[32];
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+
+        // Writes SHA256(SHA256(in[left] + in[right])) to out[outOffset] without allocating.
+        void hashPair(byte[] in, int left, int right, byte[] out, int outOffset) {
+            try {
+                digest.update(in, left, 32);
+                digest.update(in, right, 32);
+                digest.digest(first, 0, 32);
+                digest.update(first, 0, 32);
+                digest.digest(out, outOffset, 32);
+            } catch (DigestException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+    }
+
+    private static final ThreadLocal<Hasher> hasher = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Returns the merkle root of the given leaves, which are given as {@link Sha256Hash#getBytes()} returns them.
+     */
+    public static Sha256Hash computeRoot(List<Sha256Hash> leaves) {
+        return computeRoot(toNodes(leaves), leaves.size(), true);
+    }
+
+    /**
+     * Returns the merkle root of the first count nodes of the given array, which is overwritten. The nodes are in
+     * hashing byte order, as described in the class documentation. Parallel hashing can be disabled, for example to
+     * measure how much it helps.
+     */
+    public static Sha256Hash computeRoot(byte[] nodes, int count, boolean parallel) {
+        checkArgument(count > 0 && nodes.length >= count * 32);
+        // Levels alternate between the two arrays, so that chunks hashed in parallel never overwrite each others input.
+        byte[] in = nodes;
+        byte[] out = count > 1 ? new byte[(count + 1) / 2 * 32] : null;
+        for (int size = count; size > 1; size = (size + 1) / 2) {
+            hashLevel(in, 0, size, out, 0, parallel);
+            byte[] tmp = in;
+            in = out;
+            out = tmp;
+        }
+        return rootOf(in);
+    }
+
+    /**
+     * Returns every level of the merkle tree of the given leaves, from the leaves up to the root, concatenated into a
+     * single array in hashing byte order. Only needed to build proofs, getting the root alone is cheaper with
+     * {@link #computeRoot(List)}.
+     */
+    public static byte[] buildTree(List<Sha256Hash> leaves) {
+        checkArgument(!leaves.isEmpty());
+        int total = 0;
+        for (int size = leaves.size(); size > 1; size = (size + 1) / 2)
+            total += size;
+        total++;
+        byte[] tree = new byte[total * 32];
+        byte[] nodes = toNodes(leaves);
+        System.arraycopy(nodes, 0, tree, 0, nodes.length);
+        int levelOffset = 0;
+        for (int size = leaves.size(); size > 1; size = (size + 1) / 2) {
+            hashLevel(tree, levelOffset, size, tree, levelOffset + size * 32, true);
+            levelOffset += size * 32;
+        }
+        return tree;
+    }
+
+    /** Returns the parent of the two given nodes of a merkle tree. */
+    public static Sha256Hash combine(Sha256Hash left, Sha256Hash right) {
+        byte[] in = new byte[64];
+        reverseInto(left.getBytes(), in, 0);
+        reverseInto(right.getBytes(), in, 32);
+        hasher.get().hashPair(in, 0, 32, in, 0);
+        return rootOf(in);
+    }
+
+    private static byte[] toNodes(List<Sha256Hash> leaves) {
+        byte[] nodes = new byte[leaves.size() * 32];
+        for (int i = 0; i < leaves.size(); i++)
+            reverseInto(leaves.get(i).getBytes(), nodes, i * 32);
+        return nodes;
+    }
+
+    private static void reverseInto(byte[] hash, byte[] out, int offset) {
+        for (int i = 0; i < 32; i++)
+            out[offset + i] = hash[31 - i];
+    }
+
+    private static Sha256Hash rootOf(byte[] nodes) {
+        byte[] root = new byte[32];
+        reverseInto(nodes, root, 0);
+        return new Sha256Hash(root);
+    }
+
+    // Hashes the size nodes at in[inOffset] in pairs, writing the (size + 1) / 2 parents to out[outOffset].
+    private static void hashLevel(final byte[] in, final int inOffset, final int size, final byte[] out,
+                                  final int outOffset, boolean parallel) {
+        final int pairs = (size + 1) / 2;
+        if (!parallel || THREADS < 2 || size < PARALLEL_THRESHOLD) {
+            hashPairs(in, inOffset, size, out, outOffset, 0, pairs);
+            return;
+        }
+        int chunk = Math.max(MIN_CHUNK_PAIRS, (pairs + THREADS - 1) / THREADS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        // The calling thread hashes the first chunk itself.
+        for (int start = chunk; start < pairs; start += chunk) {
+            final int from = start, to = Math.min(start + chunk, pairs);
+            futures.add(getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    hashPairs(in, inOffset, size, out, outOffset, from, to);
+                }
+            }));
+        }
+        hashPairs(in, inOffset, size, out, outOffset, 0, Math.min(chunk, pairs));
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static void hashPairs(byte[] in, int inOffset, int size, byte[] out, int outOffset, int from, int to) {
+        Hasher h = hasher.get();
+        for (int pair = from; pair < to; pair++) {
+            int left = pair * 2;
+            // The right hand node is the same as the left hand one at the end of an odd sized level.
+            int right = Math.min(left + 1, size - 1);
+            h.hashPair(in, inOffset + left * 32, inOffset + right * 32, out, outOffset + pair * 32);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Merkle tree hasher %d");
+            executor = Executors.newFixedThreadPool(THREADS, builder.build());
+        }
+        return executor;
+    }
+}
@@ -123,15 +123,13 @@ public class PartialMerkleTree extends Message {
             return hashes.get(used.hashesUsed++);
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes).getBytes(), right;
+            Sha256Hash left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes), right;
             if (pos*2+1 < getTreeWidth(height-1))
-                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes).getBytes();
+                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes);
             else
                 right = left;
             // and combine them before returning
-            return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
-                    Utils.reverseBytes(left), 0, 32,
-                    Utils.reverseBytes(right), 0, 32)));
+            return MerkleTree.combine(left, right);
         }
     }
     
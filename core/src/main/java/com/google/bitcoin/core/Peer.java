@@ -91,6 +91,8 @@ public class Peer extends PeerSocketHandler {
     private final MemoryPool memoryPool;
     // Each wallet added to the peer will be notified of downloaded transaction data.
     private final CopyOnWriteArrayList<Wallet> wallets;
+    // Which of the wallets a transaction may be relevant to. A peer group shares one between its peers.
+    private volatile TransactionRelevanceIndex vRelevanceIndex = new TransactionRelevanceIndex();
     // A time before which we only download block headers, after that point we download block bodies.
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     // Whether we are currently downloading headers only or block bodies. Starts at true. If the fast catchup time is
@@ -101,6 +103,10 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
+    // If set, decides which announced transactions we ask this peer for, and asks other peers when we don't deliver.
+    @Nullable private volatile TransactionRequestTracker vTxRequestTracker;
+    // If set, blocks are being downloaded from several peers at once and this decides which ones we ask for.
+    @Nullable private volatile BlockDownloadScheduler vDownloadScheduler;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -412,6 +418,12 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null)
+            scheduler.notFound(this, m.getItems());
+        TransactionRequestTracker txRequestTracker = vTxRequestTracker;
+        if (txRequestTracker != null)
+            txRequestTracker.notFound(this, m.getItems());
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -440,6 +452,9 @@ public class Peer extends PeerSocketHandler {
     }
 
     private void processHeaders(HeadersMessage m) throws ProtocolException {
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.headersReceived(this, m))
+            return;
         // Runs in network loop thread for this peer.
         //
         // This method can run if a peer just randomly sends us a "headers" message (should never happen), or more
@@ -464,7 +479,37 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
+            // Connect the headers which certainly pre-date the fast catchup time in one batch, assuming each builds on
+            // the one before. The loop below checks the rest one at a time, or all of them if that isn't possible.
+            List<Block> headers = m.getBlockHeaders();
+            int first = 0;
+            int batch = 0;
+            int startHeight = blockChain.getBestChainHeight();
+            while (batch < headers.size() && headers.get(batch).getTimeSeconds() < fastCatchupTimeSecs &&
+                    startHeight + batch < vPeerVersionMessage.bestHeight)
+                batch++;
+            if (batch > 1) {
+                if (!vDownloadData) {
+                    log.info("Lost download peer status, throwing away downloaded headers.");
+                    return;
+                }
+                boolean added;
+                try {
+                    added = blockChain.addHeaders(headers.subList(0, batch));
+                } catch (VerificationException e) {
+                    // The headers before the one that failed were connected, so report progress for them as the loop
+                    // below would have.
+                    for (int i = 0; i < batch && isStored(headers.get(i)); i++)
+                        invokeOnBlocksDownloaded(headers.get(i));
+                    throw e;
+                }
+                if (added) {
+                    for (int i = 0; i < batch; i++)
+                        invokeOnBlocksDownloaded(headers.get(i));
+                    first = batch;
+                }
+            }
+            for (int i = first; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
                 // of the chain - always process the last block as a full/filtered block to kick us out of the
@@ -519,6 +564,14 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private boolean isStored(Block header) {
+        try {
+            return blockChain.getBlockStore().get(header.getHash()) != null;
+        } catch (BlockStoreException e) {
+            return false;
+        }
+    }
+
     private void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -540,6 +593,9 @@ public class Peer extends PeerSocketHandler {
     private void processTransaction(Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        TransactionRequestTracker txRequestTracker = vTxRequestTracker;
+        if (txRequestTracker != null)
+            txRequestTracker.received(this, tx.getHash());
         final Transaction fTx;
         lock.lock();
         try {
@@ -585,8 +641,12 @@ public class Peer extends PeerSocketHandler {
                 // fully downloaded instead.
                 return;
             }
-            // It's a broadcast transaction. Tell all wallets about this tx so they can check if it's relevant or not.
+            // It's a broadcast transaction. Tell the wallets it may be relevant to so they can check if it's relevant or
+            // not. Others can't have seen it either, so there is nothing for them to do.
+            TransactionRelevanceIndex.Matcher matcher = vRelevanceIndex.newMatcher();
             for (final Wallet wallet : wallets) {
+                if (!matcher.mayBeRelevant(fTx, wallet))
+                    continue;
                 try {
             log.info("!!!! processTransaction CHECKING WALLET " + fTx.getHashAsString());
                     if (wallet.isPendingTransactionRelevant(fTx)) {
@@ -831,6 +891,9 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was it asked for as part of a download from several peers?
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.blockReceived(this, m)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -887,6 +950,8 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.filteredBlockReceived(this, m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -967,7 +1032,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1035,10 +1100,14 @@ public class Peer extends PeerSocketHandler {
                 // see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We could
                 // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
                 // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
-                // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
-                // sending us the transaction: currently we'll never try to re-fetch after a timeout.
-                if (memoryPool.maybeWasSeen(item.hash)) {
-                    // Some other peer already announced this so don't download.
+                // transaction once. If we have a request tracker, it remembers the other peers which announced it and
+                // asks one of them if we disconnect or don't send it in time. Without one we can miss broadcasts if the
+                // peer disconnects between sending us an inv and sending us the transaction.
+                TransactionRequestTracker txRequestTracker = vTxRequestTracker;
+                boolean request = txRequestTracker != null ? txRequestTracker.announced(this, item.hash)
+                        : !memoryPool.maybeWasSeen(item.hash);
+                if (!request) {
+                    // Some other peer already announced this, or we have too much in flight, so don't download now.
                     it.remove();
                 } else {
                     log.debug("{}: getdata on tx {}", getAddress(), item.hash);
@@ -1056,7 +1125,8 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            // Whilst downloading from several peers, the scheduler asks for blocks and announcements can wait.
+            if (blocks.size() > 0 && downloadData && blockChain != null && vDownloadScheduler == null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1186,11 +1256,13 @@ public class Peer extends PeerSocketHandler {
     public void addWallet(Wallet wallet) {
         log.info("!!!! Peer.addWallet ADDRESS " + this.toString());        
         wallets.add(wallet);
+        vRelevanceIndex.addWallet(wallet);
     }
 
     /** Unlinks the given wallet from peer. See {@link Peer#addWallet(Wallet)}. */
     public void removeWallet(Wallet wallet) {
-        wallets.remove(wallet);
+        if (wallets.remove(wallet))
+            vRelevanceIndex.removeWallet(wallet);
     }
 
     // Keep track of the last request we made to the peer in blockChainDownloadLocked so we can avoid redundant and harmful
@@ -1293,24 +1365,62 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
-            // When we just want as many blocks as possible, we can set the target hash to zero.
-            lock.lock();
-            try {
-                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
-            } finally {
-                lock.unlock();
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
+            continueBlockChainDownload();
         }
     }
 
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
+    /**
+     * Asks for whatever blocks come after our chain head, without telling listeners that a download started. Used to
+     * carry on once a download from several peers at once is over.
+     */
+    void continueBlockChainDownload() {
+        // When we just want as many blocks as possible, we can set the target hash to zero.
+        lock.lock();
+        try {
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the peer ask the given tracker which of the transactions it announces to fetch, so that ones it fails to
+     * send are fetched from another peer. Set by {@link PeerGroup} before connecting. Null, the default, asks for any
+     * transaction no other peer announced first.
+     */
+    public void setTransactionRequestTracker(@Nullable TransactionRequestTracker tracker) {
+        this.vTxRequestTracker = tracker;
+    }
+
+    /**
+     * Makes the peer use the given index to find which of its wallets a transaction may be relevant to, so that a
+     * peer group indexes its wallets once for all its peers. Must be set before any wallet is added.
+     */
+    void setRelevanceIndex(TransactionRelevanceIndex index) {
+        checkState(wallets.isEmpty());
+        this.vRelevanceIndex = checkNotNull(index);
+    }
+
+    /**
+     * Makes the peer hand the headers and blocks it receives to the given scheduler, which is downloading the chain
+     * from several peers at once, or stops doing so if null.
+     */
+    void setDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vDownloadScheduler = scheduler;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -97,11 +97,24 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
+    // Shared by the peers so a transaction which one of them doesn't send is asked of another that announced it.
+    private final TransactionRequestTracker txRequestTracker;
+    // The transactions we hand out to peers that ask for them, kept up to date by wallet events and broadcasts.
+    private final TransactionRelayIndex relayIndex = new TransactionRelayIndex();
+    // Which wallets a transaction may be relevant to, shared by the peers so each wallet is only indexed once.
+    private final TransactionRelevanceIndex relevanceIndex = new TransactionRelevanceIndex();
+    /** How often to check for transactions that a peer was asked for and didn't send in time. */
+    private static final long TX_REQUEST_CHECK_INTERVAL_MSEC = 1000;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion = 70002;//FilteredBlock.MIN_PROTOCOL_VERSION;
+    // If set, new peers decode and process their messages on this rather than on the network thread.
+    @Nullable private volatile Executor vMessageExecutor;
+    // If true the chain is downloaded from all peers at once, by blockDownloadScheduler whilst that is running.
+    private volatile boolean vParallelChainDownload;
+    @Nullable @GuardedBy("lock") private BlockDownloadScheduler blockDownloadScheduler;
 
     // Runs a background thread that we use for scheduling pings to our peers, so we can measure their performance
     // and network latency. We ping peers every pingIntervalMsec milliseconds.
@@ -292,6 +305,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         this.versionMessage = new VersionMessage(params, height, true);
 
         memoryPool = new MemoryPool();
+        txRequestTracker = new TransactionRequestTracker(params, memoryPool);
 
         inactives = new PriorityQueue<PeerAddress>(1, new Comparator<PeerAddress>() {
             @Override
@@ -367,35 +381,20 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     }
 
     private List<Message> handleGetData(GetDataMessage m) {
-        // Scans the wallets and memory pool for transactions in the getdata message and returns them.
-        // Runs on peer threads.
-        lock.lock();
-        try {
-            LinkedList<Message> transactions = new LinkedList<Message>();
-            LinkedList<InventoryItem> items = new LinkedList<InventoryItem>(m.getItems());
-            Iterator<InventoryItem> it = items.iterator();
-            while (it.hasNext()) {
-                InventoryItem item = it.next();
-                // Check the mempool first.
-                Transaction tx = memoryPool.get(item.hash);
-                if (tx != null) {
-                    transactions.add(tx);
-                    it.remove();
-                } else {
-                    // Check the wallets.
-                    for (Wallet w : wallets) {
-                        tx = w.getTransaction(item.hash);
-                        if (tx == null) continue;
-                        transactions.add(tx);
-                        it.remove();
-                        break;
-                    }
-                }
-            }
-            return transactions;
-        } finally {
-            lock.unlock();
+        // Looks up the transactions in the getdata message in the relay index and memory pool and returns them.
+        // Runs on peer threads, so takes no locks beyond the memory pool's striped ones: the relay index is kept up to
+        // date by wallet events instead of asking each wallet.
+        LinkedList<Message> transactions = new LinkedList<Message>();
+        for (InventoryItem item : m.getItems()) {
+            if (item.type != InventoryItem.Type.Transaction)
+                continue;
+            Transaction tx = relayIndex.get(item.hash);
+            if (tx == null)
+                tx = memoryPool.get(item.hash);
+            if (tx != null)
+                transactions.add(tx);
         }
+        return transactions;
     }
 
     /**
@@ -682,6 +681,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                txRequestTracker.checkTimeouts();
+            }
+        }, TX_REQUEST_CHECK_INTERVAL_MSEC, TX_REQUEST_CHECK_INTERVAL_MSEC);
         channels.startAndWait();
         triggerConnections();
     }
@@ -690,6 +695,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the Service implementation.
         vPingTimer.cancel();
+        lock.lock();
+        try {
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.stop();
+        } finally {
+            lock.unlock();
+        }
         // Blocking close of all sockets.
         channels.stopAndWait();
         for (PeerDiscovery peerDiscovery : peerDiscoverers) {
@@ -737,6 +749,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 /* CSPK-mike END */            
             wallet.setTransactionBroadcaster(this);
             wallet.addEventListener(walletEventListener, Threading.SAME_THREAD);
+            wallet.addEventListener(relayIndex, Threading.SAME_THREAD);
+            relayIndex.addWallet(wallet);
             addPeerFilterProvider(wallet);
         } finally {
             lock.unlock();
@@ -775,6 +789,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         wallets.remove(checkNotNull(wallet));
         peerFilterProviders.remove(wallet);
         wallet.removeEventListener(walletEventListener);
+        wallet.removeEventListener(relayIndex);
+        relayIndex.removeWallet(wallet);
         wallet.setTransactionBroadcaster(null);
     }
 
@@ -903,6 +919,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         Peer peer = new Peer(params, ver, address, chain, memoryPool);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setMessageExecutor(vMessageExecutor);
+        peer.setTransactionRequestTracker(txRequestTracker);
+        peer.setRelevanceIndex(relevanceIndex);
         pendingPeers.add(peer);
 
         try {
@@ -1008,6 +1027,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
             }
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.addPeer(peer);
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addEventListener(peerListener, Threading.SAME_THREAD);
             // And set up event listeners for clients. This will allow them to find out about new transactions and blocks.
@@ -1123,6 +1144,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return memoryPool;
     }
 
+    /**
+     * Returns the tracker which the peers of this group use to fetch announced transactions, asking another peer when
+     * one doesn't send a transaction it announced. Its counters show how long fetches take and how often they fail.
+     */
+    public TransactionRequestTracker getTransactionRequestTracker() {
+        return txRequestTracker;
+    }
+
     /**
      * Tells the PeerGroup to download only block headers before a certain time and bodies after that. Call this
      * before starting block chain download.
@@ -1183,6 +1212,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                     }
                 }
             }
+            // Done after picking a new download peer, so the scheduler can carry on fetching headers from that.
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.removePeer(peer);
             numPeers = peers.size() + pendingPeers.size();
             numConnectedPeers = peers.size();
 
@@ -1204,6 +1236,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        txRequestTracker.peerDisconnected(peer);
 
         final int fNumConnectedPeers = numConnectedPeers;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1221,13 +1254,51 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         lock.lock();
         try {
             setDownloadPeer(peer);
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            if (blockDownloadScheduler != null) {
+                // Already downloading from everyone, the new download peer just takes over fetching the headers.
+                blockDownloadScheduler.setReportingPeer(peer);
+            } else if (vParallelChainDownload) {
+                startParallelChainDownload(peer);
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
         } finally {
             lock.unlock();
         }
     }
 
+    @GuardedBy("lock")
+    private void startParallelChainDownload(Peer peer) {
+        peer.setDownloadData(true);
+        int blocksLeft = peer.getPeerBlockHeightDifference();
+        if (blocksLeft < 0)
+            return;
+        peer.invokeOnChainDownloadStarted(blocksLeft);
+        final BlockDownloadScheduler scheduler = new BlockDownloadScheduler(params, checkNotNull(chain), peer,
+                fastCatchupTimeSecs, bloomFilter != null);
+        blockDownloadScheduler = scheduler;
+        scheduler.start();
+        for (Peer other : peers)
+            scheduler.addPeer(other);
+        scheduler.getFuture().addListener(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    if (blockDownloadScheduler != scheduler)
+                        return;
+                    blockDownloadScheduler = null;
+                    // Get whatever is left, or was solved whilst we were downloading, the usual way.
+                    if (isRunning() && downloadPeer != null && downloadListener != null)
+                        downloadPeer.continueBlockChainDownload();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, Threading.SAME_THREAD);
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of connected
      * peers. By using this with {@link com.google.bitcoin.core.PeerGroup#getMaxConnections()} you can wait until the
@@ -1328,6 +1399,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             @Override
             public void onSuccess(Transaction transaction) {
                 runningBroadcasts.remove(broadcast);
+                relayIndex.removeBroadcast(tx);
                 // OK, now tell the wallet about the transaction. If the wallet created the transaction then
                 // it already knows and will ignore this. If it's a transaction we received from
                 // somebody else via a side channel and are now broadcasting, this will put it into the
@@ -1349,6 +1421,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             public void onFailure(Throwable throwable) {
                 // This can't happen with the current code, but just in case one day that changes ...
                 runningBroadcasts.remove(broadcast);
+                relayIndex.removeBroadcast(tx);
                 throw new RuntimeException(throwable);
             }
         });
@@ -1357,6 +1430,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         // eventually be collected. This in turn could result in the transaction not being committed to the wallet
         // at all.
         runningBroadcasts.add(broadcast);
+        // Peers we announce it to may well ask for it before the wallet knows about it.
+        relayIndex.addBroadcast(tx);
         broadcast.broadcast();
         return broadcast.future();
     }
@@ -1399,6 +1474,30 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         this.vMinRequiredProtocolVersion = minRequiredProtocolVersion;
     }
 
+    /**
+     * <p>Makes peers connected from now on decode and process the messages they receive on the given executor, for
+     * instance a small fixed thread pool, instead of on the network thread. This keeps a peer which is slow to deal
+     * with, eg because it is sending us big blocks, from delaying all the others. See
+     * {@link PeerSocketHandler#setMessageExecutor(java.util.concurrent.Executor)} for the details.</p>
+     *
+     * <p>Null, the default, processes messages on the network thread.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.vMessageExecutor = executor;
+    }
+
+    /**
+     * <p>If true, chain downloads started from now on fetch the headers first and then ask every connected peer for
+     * a share of the blocks, instead of downloading everything from the download peer. Blocks are still added to the
+     * chain in order, and blocks a peer is slow to deliver are asked of another one. Once caught up with the download
+     * peer the group goes back to following the chain the usual way.</p>
+     *
+     * <p>False by default.</p>
+     */
+    public void setParallelChainDownload(boolean parallelChainDownload) {
+        this.vParallelChainDownload = parallelChainDownload;
+    }
+
     /** The minimum protocol version required: defaults to the version required for Bloom filtering. */
     public int getMinRequiredProtocolVersion() {
         return vMinRequiredProtocolVersion;
@@ -24,13 +24,16 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -58,6 +61,29 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    // If set, messages are only framed on the network thread, and decoded and processed in order here instead.
+    @Nullable private volatile Executor messageExecutor;
+    // Framed messages waiting to be decoded and processed on the messageExecutor.
+    @GuardedBy("lock") private final LinkedList<QueuedMessage> queuedMessages = new LinkedList<QueuedMessage>();
+    @GuardedBy("lock") private long queuedBytes;
+    @GuardedBy("lock") private boolean draining, readingPaused;
+
+    /**
+     * How many bytes of messages may be waiting to be processed on the message executor before we stop reading from
+     * the peer. Reading is resumed once half of them have been processed.
+     */
+    public static final int MAX_QUEUED_BYTES = 4 * Block.MAX_BLOCK_SIZE;
+
+    private static class QueuedMessage {
+        final BitcoinSerializer.BitcoinPacketHeader header;
+        final byte[] payload;
+
+        QueuedMessage(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+    }
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer(checkNotNull(params));
         this.peerAddress = new PeerAddress(remoteIp);
@@ -68,6 +94,22 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         this.peerAddress = checkNotNull(peerAddress);
     }
 
+    /**
+     * <p>Moves decoding and processing of received messages off the network thread and onto the given executor, which
+     * is typically a thread pool shared by all peers. The network thread then only reads and frames messages, so one
+     * peer that is slow to process, for instance because it sent a big block, no longer holds up the others.</p>
+     *
+     * <p>Messages from this peer are still processed one at a time and in the order they arrived, but
+     * {@link #processMessage(Message)} may be called on a different thread each time. If more than
+     * {@link #MAX_QUEUED_BYTES} are waiting, reading from the peer is paused until the backlog has been worked down.</p>
+     *
+     * <p>Must be called before the connection is opened. Null, the default, processes messages on the network
+     * thread.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.messageExecutor = executor;
+    }
+
     /**
      * Sends the given message to the peer. Due to the asynchronousness of network programming, there is no guarantee
      * the peer will have received it. Throws NotYetConnectedException if we are not yet connected to the remote peer.
@@ -81,11 +123,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            // The array is freshly allocated, so the write target can queue it as is.
+            writeTarget.writeBytes(serializer.serialize(message));
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -135,18 +175,30 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        // ...processing a message if one is available. The message takes over the buffer, so
+                        // it is only ever filled once and never copied.
+                        receivePayload(header, largeReadBuffer);
                         largeReadBuffer = null;
                         header = null;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
                 // Now try to deserialize any messages left in buff
-                Message message;
+                Message message = null;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    if (messageExecutor == null) {
+                        message = serializer.deserialize(buff);
+                    } else {
+                        // Only frame the message here, it is decoded on the message executor.
+                        serializer.seekPastMagicBytes(buff);
+                        BitcoinSerializer.BitcoinPacketHeader messageHeader = serializer.deserializeHeader(buff);
+                        if (buff.remaining() < messageHeader.size)
+                            throw new BufferUnderflowException();
+                        byte[] payload = new byte[messageHeader.size];
+                        buff.get(payload);
+                        queueMessage(messageHeader, payload);
+                    }
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (i == 0 && buff.limit() == buff.capacity()) {
@@ -175,7 +227,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                if (message != null)
+                    processMessage(message);
             }
         } catch (Exception e) {
             exceptionCaught(e);
@@ -183,6 +236,75 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    private void receivePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) throws Exception {
+        if (messageExecutor == null)
+            processMessage(serializer.deserializePayload(header, payload));
+        else
+            queueMessage(header, payload);
+    }
+
+    // Runs on the network thread.
+    private void queueMessage(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) {
+        boolean startDraining;
+        lock.lock();
+        try {
+            queuedMessages.add(new QueuedMessage(header, payload));
+            queuedBytes += payload.length;
+            startDraining = !draining;
+            draining = true;
+            // Pausing and resuming happen under the lock so they can't be reordered, which could leave us paused with
+            // nothing left to process. The write target never calls back into us from setReadingPaused.
+            if (!readingPaused && queuedBytes > MAX_QUEUED_BYTES) {
+                readingPaused = true;
+                writeTarget.setReadingPaused(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (startDraining)
+            checkNotNull(messageExecutor).execute(drainQueuedMessages);
+    }
+
+    // Only ever runs once at a time for each peer, so messages are processed in order.
+    private final Runnable drainQueuedMessages = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                QueuedMessage queued;
+                lock.lock();
+                try {
+                    queued = queuedMessages.poll();
+                    if (queued == null) {
+                        draining = false;
+                        return;
+                    }
+                    queuedBytes -= queued.payload.length;
+                    if (readingPaused && queuedBytes <= MAX_QUEUED_BYTES / 2) {
+                        readingPaused = false;
+                        writeTarget.setReadingPaused(false);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    processMessage(serializer.deserializePayload(queued.header, queued.payload));
+                } catch (Exception e) {
+                    // Drop whatever else the peer sent, as we would have done had this happened on the network thread.
+                    lock.lock();
+                    try {
+                        queuedMessages.clear();
+                        queuedBytes = 0;
+                        draining = false;
+                    } finally {
+                        lock.unlock();
+                    }
+                    exceptionCaught(e);
+                    return;
+                }
+            }
+        }
+    };
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link com.google.bitcoin.net.NioClient} or
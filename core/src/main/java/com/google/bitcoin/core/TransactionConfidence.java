@@ -28,7 +28,11 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -79,10 +83,21 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
     // Lazily created listeners array.
     private transient CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. If a chain height
+    // source is set, this is only the depth as of the last explicit update and the real depth is worked out on read.
     private int depth;
-    // The cumulative work done for the blocks that bury this transaction.
+    // The cumulative work done for the blocks that bury this transaction, as of the same point as depth.
     private BigInteger workDone = BigInteger.ZERO;
+    // If set, depth and work done are derived from the appearance height and the best chain height when read.
+    private transient volatile BestChainHeightSource bestChainHeightSource;
+
+    /**
+     * Supplies the height of the best chain known to the owner of a transaction, usually a {@link Wallet}. It is
+     * called whenever the depth of a building transaction is read, so must be cheap and must not take locks.
+     */
+    public interface BestChainHeightSource {
+        int getBestChainHeight();
+    }
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -359,7 +374,11 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        final BestChainHeightSource source = bestChainHeightSource;
+        if (source == null || confidenceType != ConfidenceType.BUILDING || appearedAtChainHeight < 0)
+            return depth;
+        // The source may lag behind a block that was just received, but something in a block is always at depth 1.
+        return Math.max(1, source.getBestChainHeight() - appearedAtChainHeight + 1);
     }
 
     /*
@@ -377,13 +396,44 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (bestChainHeightSource == null || depth <= 0)
+            return workDone;
+        final int derivedDepth = getDepthInBlocks();
+        if (derivedDepth == depth)
+            return workDone;
+        // We don't have the headers of the blocks since the last explicit update, so assume they carried the same
+        // average work as the ones before. Difficulty only changes every two weeks so this is close enough.
+        return workDone.multiply(BigInteger.valueOf(derivedDepth)).divide(BigInteger.valueOf(depth));
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
         this.workDone = workDone;
     }
 
+    /**
+     * <p>Makes {@link #getDepthInBlocks()} and {@link #getWorkDone()} derive their result from the height at which the
+     * transaction appeared and the height of the best chain as reported by the given source, instead of relying on
+     * {@link #notifyWorkDone(Block)} being called for every new block. This is used by the {@link Wallet} so that
+     * handling a block doesn't have to touch every transaction in it. Pass null to go back to explicit updates, in
+     * which case the current derived values are kept.</p>
+     */
+    public synchronized void setBestChainHeightSource(@Nullable BestChainHeightSource source) {
+        if (source == null)
+            snapshotDepth();
+        this.bestChainHeightSource = source;
+    }
+
+    /**
+     * Stores the current derived depth and work done, so that they are the starting point for any later explicit
+     * updates or extrapolation.
+     */
+    synchronized void snapshotDepth() {
+        BigInteger currentWorkDone = getWorkDone();
+        int currentDepth = getDepthInBlocks();
+        this.workDone = currentWorkDone;
+        this.depth = currentDepth;
+    }
+
     /**
      * If this transaction has been overridden by a double spend (is dead), this call returns the overriding transaction.
      * Note that this call <b>can return null</b> if you have migrated an old wallet, as pre-Jan 2012 wallets did not
@@ -419,6 +469,7 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            c.bestChainHeightSource = bestChainHeightSource;
             return c;
         }
     }
@@ -440,6 +491,54 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         }
     }
 
+    /**
+     * Like {@link #queueListeners(Listener.ChangeReason)} but for the confidence objects of many transactions at once.
+     * Rather than posting one task per listener per transaction, all the invocations destined for the same executor
+     * are run from a single task, which stops a block touching many transactions from flooding the user thread.
+     * The order in which listeners of a single transaction are run is preserved.
+     *
+     * @return how many listener invocations were made, which may be more than the number of tasks posted.
+     */
+    public static int queueListeners(Map<Transaction, Listener.ChangeReason> changes) {
+        final Map<Executor, List<Runnable>> byExecutor = new IdentityHashMap<Executor, List<Runnable>>();
+        int invocations = 0;
+        for (Map.Entry<Transaction, Listener.ChangeReason> entry : changes.entrySet()) {
+            final Transaction tx = entry.getKey();
+            final Listener.ChangeReason reason = entry.getValue();
+            for (final ListenerRegistration<Listener> registration : tx.getConfidence().listeners) {
+                List<Runnable> runnables = byExecutor.get(registration.executor);
+                if (runnables == null) {
+                    runnables = new ArrayList<Runnable>();
+                    byExecutor.put(registration.executor, runnables);
+                }
+                runnables.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onConfidenceChanged(tx, reason);
+                    }
+                });
+                invocations++;
+            }
+        }
+        for (Map.Entry<Executor, List<Runnable>> entry : byExecutor.entrySet()) {
+            final List<Runnable> runnables = entry.getValue();
+            entry.getKey().execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Runnable runnable : runnables) {
+                        try {
+                            runnable.run();
+                        } catch (RuntimeException e) {
+                            // Don't let one bad listener starve all the others in the batch.
+                            log.error("Exception in confidence listener", e);
+                        }
+                    }
+                }
+            });
+        }
+        return invocations;
+    }
+
     /**
      * The source of a transaction tries to identify where it came from originally. For instance, did we download it
      * from the peer to peer network, or make it ourselves, or receive it via Bluetooth, or import it from another app,
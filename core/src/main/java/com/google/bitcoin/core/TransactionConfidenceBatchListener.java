@@ -0,0 +1,41 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Map;
+
+/**
+ * <p>A {@link WalletEventListener} that also implements this interface is told about transaction confidence changes
+ * in batches rather than one {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)} call
+ * per transaction, once the wallet has been switched into batching mode with
+ * {@link Wallet#setConfidenceEventBatching(boolean, long)}. When a batch is delivered, the per transaction callback
+ * is not invoked for the transactions in it.</p>
+ *
+ * <p>This is useful for large wallets, where every new block changes the depth of every building transaction.</p>
+ */
+public interface TransactionConfidenceBatchListener {
+    /**
+     * Called with all the confidence changes collected since the last batch, either for a single block or for a
+     * time window. If a transaction changed more than once, the most significant reason is reported:
+     * {@link TransactionConfidence.Listener.ChangeReason#TYPE} wins over the others.
+     *
+     * @param wallet  The wallet whose transactions changed.
+     * @param changes An immutable map of the changed transactions to the reason they changed, in the order in which
+     *                they were first changed.
+     */
+    void onTransactionConfidencesChanged(Wallet wallet, Map<Transaction, TransactionConfidence.Listener.ChangeReason> changes);
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The transactions a {@link PeerGroup} sends to peers that ask for them with getdata: the pending transactions of
+ * its wallets, and the transactions it is broadcasting. Lookups only touch a concurrent map, so serving getdata
+ * takes neither the peer group lock nor any wallet lock.</p>
+ *
+ * <p>The index registers as an event listener on each wallet, and keeps a wallet transaction for as long as it is
+ * pending in at least one of the wallets. Transactions a wallet drops without telling its listeners about the
+ * transaction itself are found when the wallet reports that it changed. Broadcast transactions are kept until the
+ * broadcast completes.</p>
+ */
+class TransactionRelayIndex extends AbstractWalletEventListener {
+    private final ConcurrentHashMap<Sha256Hash, Transaction> pending = new ConcurrentHashMap<Sha256Hash, Transaction>();
+    private final ConcurrentHashMap<Sha256Hash, Transaction> broadcasting = new ConcurrentHashMap<Sha256Hash, Transaction>();
+    // Taken inside wallet locks, as wallets call the listener methods holding theirs, so wallets are never asked
+    // anything while it is held.
+    private final ReentrantLock lock = Threading.lock("relayindex");
+    // The wallets each entry of pending is pending in. An entry goes once the last of them no longer has it pending.
+    @GuardedBy("lock") private final SetMultimap<Sha256Hash, Wallet> holders = HashMultimap.create();
+    @GuardedBy("lock") private final SetMultimap<Wallet, Sha256Hash> held = HashMultimap.create();
+
+    /** Returns the transaction with the given hash if we are willing to relay it, otherwise null. */
+    @Nullable
+    Transaction get(Sha256Hash hash) {
+        Transaction tx = broadcasting.get(hash);
+        return tx != null ? tx : pending.get(hash);
+    }
+
+    /** Indexes the pending transactions of a wallet which this has just been registered on as a listener. */
+    void addWallet(Wallet wallet) {
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+            if (wtx.getPool() == WalletTransaction.Pool.PENDING)
+                txns.add(wtx.getTransaction());
+        }
+        lock.lock();
+        try {
+            for (Transaction tx : txns)
+                update(wallet, tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the pending transactions of a wallet which this is no longer listening to, apart from those still
+     * pending in another wallet.
+     */
+    void removeWallet(Wallet wallet) {
+        lock.lock();
+        try {
+            for (Sha256Hash hash : heldBy(wallet))
+                release(wallet, hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addBroadcast(Transaction tx) {
+        broadcasting.put(tx.getHash(), tx);
+    }
+
+    void removeBroadcast(Transaction tx) {
+        broadcasting.remove(tx.getHash());
+    }
+
+    /** Returns how many transactions are currently relayed. */
+    int size() {
+        return pending.size() + broadcasting.size();
+    }
+
+    private void update(Wallet wallet, Transaction tx) {
+        lock.lock();
+        try {
+            if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.PENDING) {
+                holders.put(tx.getHash(), wallet);
+                held.put(wallet, tx.getHash());
+                pending.put(tx.getHash(), tx);
+            } else {
+                release(wallet, tx.getHash());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Wallet wallet, Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        holders.remove(hash, wallet);
+        held.remove(wallet, hash);
+        if (!holders.containsKey(hash))
+            pending.remove(hash);
+    }
+
+    private List<Sha256Hash> heldBy(Wallet wallet) {
+        checkState(lock.isHeldByCurrentThread());
+        return new ArrayList<Sha256Hash>(held.get(wallet));
+    }
+
+    /** Drops the wallet from the entries of transactions it no longer has pending, however they left. */
+    private void forgetDropped(Wallet wallet) {
+        List<Sha256Hash> hashes;
+        lock.lock();
+        try {
+            hashes = heldBy(wallet);
+        } finally {
+            lock.unlock();
+        }
+        if (hashes.isEmpty())
+            return;
+        // Asked outside our lock, see above.
+        Set<Sha256Hash> stillPending = new HashSet<Sha256Hash>();
+        for (WalletTransaction wtx : wallet.getWalletTransactions(hashes, false)) {
+            if (wtx.getPool() == WalletTransaction.Pool.PENDING)
+                stillPending.add(wtx.getTransaction().getHash());
+        }
+        lock.lock();
+        try {
+            for (Sha256Hash hash : hashes) {
+                if (!stillPending.contains(hash))
+                    release(wallet, hash);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+        update(wallet, tx);
+    }
+
+    @Override
+    public void onCoinsSent(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+        update(wallet, tx);
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        update(wallet, tx);
+    }
+
+    @Override
+    public void onReorganize(Wallet wallet) {
+        // Transactions can go back to being pending, or be killed by a double spend in the new chain.
+        forgetDropped(wallet);
+        addWallet(wallet);
+    }
+
+    @Override
+    public void onWalletChanged(Wallet wallet) {
+        forgetDropped(wallet);
+    }
+}
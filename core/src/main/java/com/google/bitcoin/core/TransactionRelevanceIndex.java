@@ -0,0 +1,247 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Finds the wallets a transaction may be relevant to without asking each of them, for a {@link Peer} or
+ * {@link AbstractBlockChain} that many wallets are attached to. The index holds, for every registered wallet, the
+ * public keys and public key hashes of its keys, the programs of the scripts it watches, the hashes of its
+ * transactions and the hashes of the transactions those spend. A transaction is matched by looking up the same things
+ * in its inputs and outputs, once for all wallets.</p>
+ *
+ * <p>The wallets matched are a superset of those for which {@link Wallet#isTransactionRelevant(Transaction)} is
+ * true, so callers still ask the matched wallets, but no others. Wallets keep the index up to date themselves as
+ * keys, watched scripts and transactions are added to them, see {@link Wallet#addRelevanceIndex(TransactionRelevanceIndex)}. Keys
+ * added to the list returned by {@link Wallet#getKeychain()} directly are not seen.</p>
+ */
+class TransactionRelevanceIndex {
+    private final ReentrantLock lock = Threading.lock("relevanceindex");
+    // Keyed by ByteBuffers wrapping public keys, public key hashes and script programs, and by transaction hashes.
+    @GuardedBy("lock") private final SetMultimap<Object, Wallet> index = HashMultimap.create();
+    // How many times each wallet was added, as a peer group shares one index between all its peers.
+    @GuardedBy("lock") private final Map<Wallet, Integer> registrations = new HashMap<Wallet, Integer>();
+    // Wallets whose contents have all been added. Until then the wallet has to be asked about every transaction.
+    @GuardedBy("lock") private final Set<Wallet> indexed = new HashSet<Wallet>();
+    // Incremented whenever something is added, so that matches can be remembered until then, see Matcher.
+    private volatile long vVersion;
+
+    /**
+     * Matches transactions to wallets, remembering the results for as long as nothing is added to the index. Not
+     * thread safe, meant to be used for the transactions of one block.
+     */
+    class Matcher {
+        private final IdentityHashMap<Transaction, Set<Wallet>> matched = new IdentityHashMap<Transaction, Set<Wallet>>();
+        private long version = -1;
+
+        /** Returns whether the listener should be asked if the transaction is relevant to it. */
+        boolean mayBeRelevant(Transaction tx, Object listener) {
+            if (!(listener instanceof Wallet) || !contains((Wallet) listener))
+                return true;
+            // Read before matching, so that anything added to the index meanwhile causes a match again next time.
+            long current = vVersion;
+            if (current != version) {
+                matched.clear();
+                version = current;
+            }
+            Set<Wallet> wallets = matched.get(tx);
+            if (wallets == null) {
+                wallets = match(tx);
+                matched.put(tx, wallets);
+            }
+            return wallets.contains(listener);
+        }
+    }
+
+    Matcher newMatcher() {
+        return new Matcher();
+    }
+
+    /**
+     * Adds the wallet to the index, which it then keeps up to date. A wallet can be added more than once, and stays in
+     * the index until it has been removed as many times.
+     */
+    void addWallet(Wallet wallet) {
+        lock.lock();
+        try {
+            Integer count = registrations.get(wallet);
+            registrations.put(wallet, count == null ? 1 : count + 1);
+            if (count != null)
+                return;
+        } finally {
+            lock.unlock();
+        }
+        // Outside our lock, as the wallet calls back into the index holding its own.
+        wallet.addRelevanceIndex(this);
+        lock.lock();
+        try {
+            if (registrations.containsKey(wallet))
+                indexed.add(wallet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void removeWallet(Wallet wallet) {
+        lock.lock();
+        try {
+            Integer count = registrations.get(wallet);
+            if (count == null)
+                return;
+            if (count > 1) {
+                registrations.put(wallet, count - 1);
+                return;
+            }
+            registrations.remove(wallet);
+            indexed.remove(wallet);
+            Iterator<Map.Entry<Object, Wallet>> it = index.entries().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue() == wallet)
+                    it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+        wallet.removeRelevanceIndex(this);
+    }
+
+    /** Returns true if the wallet is in the index and all it holds has been added. */
+    boolean contains(Wallet wallet) {
+        lock.lock();
+        try {
+            return indexed.contains(wallet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by the wallet when keys are added to it. */
+    void addKeys(Wallet wallet, Collection<ECKey> keys) {
+        lock.lock();
+        try {
+            if (!registrations.containsKey(wallet))
+                return;
+            for (ECKey key : keys) {
+                index.put(ByteBuffer.wrap(key.getPubKey()), wallet);
+                index.put(ByteBuffer.wrap(key.getPubKeyHash()), wallet);
+            }
+            vVersion++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by the wallet when scripts are added to those it watches. */
+    void addScripts(Wallet wallet, Collection<Script> scripts) {
+        lock.lock();
+        try {
+            if (!registrations.containsKey(wallet))
+                return;
+            for (Script script : scripts)
+                index.put(ByteBuffer.wrap(script.getProgram()), wallet);
+            vVersion++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the wallet when a transaction is added to it. Transactions spending the same outputs, or the outputs
+     * of this one, may be relevant to the wallet from now on.
+     */
+    void addTransaction(Wallet wallet, Transaction tx) {
+        lock.lock();
+        try {
+            if (!registrations.containsKey(wallet))
+                return;
+            index.put(tx.getHash(), wallet);
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs())
+                    index.put(input.getOutpoint().getHash(), wallet);
+            }
+            vVersion++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by the wallet for transactions which it holds but hasn't loaded, which are never pending. */
+    void addTransactionHashes(Wallet wallet, Collection<Sha256Hash> hashes) {
+        lock.lock();
+        try {
+            if (!registrations.containsKey(wallet))
+                return;
+            for (Sha256Hash hash : hashes)
+                index.put(hash, wallet);
+            vVersion++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the wallets the transaction may be relevant to. */
+    Set<Wallet> match(Transaction tx) {
+        // Scripts are parsed before taking the lock.
+        List<Object> elements = new ArrayList<Object>();
+        elements.add(tx.getHash());
+        if (!tx.isCoinBase()) {
+            for (TransactionInput input : tx.getInputs()) {
+                elements.add(input.getOutpoint().getHash());
+                try {
+                    elements.add(ByteBuffer.wrap(input.getScriptSig().getPubKey()));
+                } catch (ScriptException e) {
+                    // Not a pay to address input, so it can only be ours through the outpoint.
+                }
+            }
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            // Watched scripts are compared by their program, see TransactionOutput.isWatched.
+            elements.add(ByteBuffer.wrap(output.getScriptBytes()));
+            try {
+                // The same as TransactionOutput.isMine looks at.
+                Script script = output.getScriptPubKey();
+                elements.add(ByteBuffer.wrap(script.isSentToRawPubKey() ? script.getPubKey() : script.getPubKeyHash()));
+            } catch (ScriptException e) {
+                // Just means we didn't understand the output of this transaction, so it can't be ours.
+            }
+        }
+        lock.lock();
+        try {
+            Set<Wallet> wallets = null;
+            for (Object element : elements) {
+                Set<Wallet> matched = index.get(element);
+                if (matched.isEmpty())
+                    continue;
+                if (wallets == null)
+                    wallets = new HashSet<Wallet>();
+                wallets.addAll(matched);
+            }
+            return wallets != null ? wallets : Collections.<Wallet>emptySet();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
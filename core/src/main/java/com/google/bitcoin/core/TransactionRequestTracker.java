@@ -0,0 +1,355 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps track of the transactions we have asked peers for after seeing them announced, so that one which doesn't
+ * arrive is asked of another peer that announced it. Typically one is created for you by a {@link PeerGroup} and
+ * given to each Peer, which consults it instead of asking only whichever peer happened to announce a transaction
+ * first.</p>
+ *
+ * <p>Each transaction is asked of one peer at a time. If that peer hasn't sent it within the request timeout, says
+ * it doesn't have it, or disconnects, the transaction is asked of the next peer that announced it. A peer has at
+ * most {@link #MAX_IN_FLIGHT_PER_PEER} requests outstanding, beyond which transactions it announces wait for it to
+ * catch up or for someone else to announce them. Transactions that nobody delivers are forgotten after
+ * {@link #MAX_AGE_MILLIS}, until then a fresh announcement still causes another request.</p>
+ */
+public class TransactionRequestTracker {
+    private static final Logger log = LoggerFactory.getLogger(TransactionRequestTracker.class);
+
+    /** How many transactions a peer may have been asked for without having sent them yet. */
+    public static final int MAX_IN_FLIGHT_PER_PEER = 100;
+    /** How long a peer has to send a transaction before it is asked of another one. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    /** How long we keep trying to get hold of a transaction that was announced. */
+    public static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static class Request {
+        final Sha256Hash hash;
+        final long createdAt;
+        // Peers that announced the transaction and haven't been asked for it yet, in the order they announced it.
+        final LinkedList<Peer> announcers = new LinkedList<Peer>();
+        @Nullable Peer requestedFrom;
+        long requestedAt;
+
+        Request(Sha256Hash hash, long createdAt) {
+            this.hash = hash;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final MemoryPool memoryPool;
+    private final long timeoutMillis;
+
+    private final ReentrantLock lock = Threading.lock("txrequests");
+    // In the order they were first announced, so the oldest can be expired from the front.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Request> requests = new LinkedHashMap<Sha256Hash, Request>();
+    @GuardedBy("lock") private final Map<Peer, Integer> inFlight = new HashMap<Peer, Integer>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong fetchedCount = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    /**
+     * Creates a tracker which uses the given memory pool to tell which announced transactions we already have, or
+     * have given up on.
+     */
+    public TransactionRequestTracker(NetworkParameters params, MemoryPool memoryPool) {
+        this(params, memoryPool, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public TransactionRequestTracker(NetworkParameters params, MemoryPool memoryPool, long timeoutMillis) {
+        this.params = checkNotNull(params);
+        this.memoryPool = checkNotNull(memoryPool);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Called by a peer when it announces a transaction, before the announcement is recorded in the memory pool.
+     * Returns true if the peer should ask for the transaction now, in which case it counts as in flight from that
+     * peer. Otherwise the transaction is either known already, or being asked of another peer, or the peer has too
+     * many requests outstanding, and the peer is remembered as one to ask later if need be.
+     */
+    public boolean announced(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            Request request = requests.get(hash);
+            if (request == null) {
+                // Seen before but not tracked means we have it already, or gave up on it.
+                if (memoryPool.maybeWasSeen(hash))
+                    return false;
+                request = new Request(hash, now);
+                requests.put(hash, request);
+            } else if (request.requestedFrom == peer || request.announcers.contains(peer)) {
+                return false;
+            }
+            if (request.requestedFrom == null && canAsk(peer)) {
+                requestLocked(request, peer, now);
+                return true;
+            }
+            request.announcers.add(peer);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by a peer when it receives a transaction, whether it was asked for or not. */
+    public void received(Peer peer, Sha256Hash hash) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            Request request = requests.remove(hash);
+            if (request == null)
+                return;
+            long latency = Utils.currentTimeMillis() - request.createdAt;
+            fetchedCount.incrementAndGet();
+            totalLatencyMillis.addAndGet(latency);
+            if (latency > maxLatencyMillis.get())
+                maxLatencyMillis.set(latency);
+            if (request.requestedFrom == null)
+                return;
+            releaseLocked(request.requestedFrom);
+            // If it was the peer we asked, it has room for another of the transactions waiting on it.
+            getdatas = assignLocked(Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /** Called by a peer when it is told that some of the data it asked for isn't available. */
+    public void notFound(Peer peer, List<InventoryItem> items) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            boolean changed = false;
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request != null && request.requestedFrom == peer) {
+                    log.debug("{}: Does not have tx {} any more", peer, item.hash);
+                    releaseLocked(peer);
+                    request.requestedFrom = null;
+                    changed = true;
+                }
+            }
+            if (!changed)
+                return;
+            getdatas = assignLocked(Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /** Called when a peer disconnects, so whatever it was asked for is asked of someone else. */
+    public void peerDisconnected(Peer peer) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            if (inFlight.remove(peer) == null) {
+                // Nothing in flight, but it may still be waiting to be asked for something.
+                for (Request request : requests.values())
+                    request.announcers.remove(peer);
+                return;
+            }
+            for (Request request : requests.values()) {
+                request.announcers.remove(peer);
+                if (request.requestedFrom == peer)
+                    request.requestedFrom = null;
+            }
+            getdatas = assignLocked(Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /**
+     * Asks other peers for transactions that have been in flight for longer than the timeout, and forgets about ones
+     * that are older than {@link #MAX_AGE_MILLIS}. A {@link PeerGroup} calls this every second or so.
+     */
+    public void checkTimeouts() {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            Iterator<Request> it = requests.values().iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                if (now - request.createdAt >= MAX_AGE_MILLIS) {
+                    if (request.requestedFrom != null)
+                        releaseLocked(request.requestedFrom);
+                    log.info("Giving up on tx {}", request.hash);
+                    abandonedCount.incrementAndGet();
+                    it.remove();
+                } else if (request.requestedFrom != null && now - request.requestedAt >= timeoutMillis) {
+                    log.info("{}: Did not send tx {} in time", request.requestedFrom, request.hash);
+                    timeoutCount.incrementAndGet();
+                    releaseLocked(request.requestedFrom);
+                    request.requestedFrom = null;
+                }
+            }
+            getdatas = assignLocked(now);
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    @GuardedBy("lock")
+    private boolean canAsk(Peer peer) {
+        Integer count = inFlight.get(peer);
+        return count == null || count < MAX_IN_FLIGHT_PER_PEER;
+    }
+
+    @GuardedBy("lock")
+    private void requestLocked(Request request, Peer peer, long now) {
+        Integer count = inFlight.get(peer);
+        inFlight.put(peer, count == null ? 1 : count + 1);
+        request.requestedFrom = peer;
+        request.requestedAt = now;
+        requestCount.incrementAndGet();
+    }
+
+    @GuardedBy("lock")
+    private void releaseLocked(Peer peer) {
+        Integer count = inFlight.get(peer);
+        if (count == null)
+            return;
+        if (count <= 1)
+            inFlight.remove(peer);
+        else
+            inFlight.put(peer, count - 1);
+    }
+
+    // Asks the next announcer of each transaction that isn't in flight, if one has room. The getdatas are sent by the
+    // caller once the lock is released.
+    @GuardedBy("lock")
+    private Map<Peer, GetDataMessage> assignLocked(long now) {
+        Map<Peer, GetDataMessage> getdatas = new LinkedHashMap<Peer, GetDataMessage>();
+        for (Request request : requests.values()) {
+            if (request.requestedFrom != null)
+                continue;
+            Iterator<Peer> it = request.announcers.iterator();
+            while (it.hasNext()) {
+                Peer peer = it.next();
+                if (!canAsk(peer))
+                    continue;
+                it.remove();
+                // It was asked of someone before, so this is a retry.
+                if (request.requestedAt != 0)
+                    retryCount.incrementAndGet();
+                requestLocked(request, peer, now);
+                GetDataMessage getdata = getdatas.get(peer);
+                if (getdata == null) {
+                    getdata = new GetDataMessage(params);
+                    getdatas.put(peer, getdata);
+                }
+                getdata.addTransaction(request.hash);
+                break;
+            }
+        }
+        return getdatas;
+    }
+
+    private void send(Map<Peer, GetDataMessage> getdatas) {
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+            try {
+                entry.getKey().sendMessage(entry.getValue());
+            } catch (Exception e) {
+                // It's going away, and peerDisconnected will pass its requests on.
+                log.warn("{}: Failed to send getdata", entry.getKey(), e);
+            }
+        }
+    }
+
+    /** Returns how many transactions are currently being asked for or waiting to be. */
+    public int size() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many getdata requests for announced transactions were made, including retries. */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /** Returns how many requests were made of a different peer after the first one failed to deliver. */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /** Returns how many requests were not answered within the timeout. */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /** Returns how many tracked transactions were received. */
+    public long getFetchedCount() {
+        return fetchedCount.get();
+    }
+
+    /** Returns how many announced transactions no peer delivered within {@link #MAX_AGE_MILLIS}. */
+    public long getAbandonedCount() {
+        return abandonedCount.get();
+    }
+
+    /**
+     * Returns the mean time from a transaction first being announced to us to receiving it, or zero if nothing was
+     * received yet.
+     */
+    public double getAverageLatencyMillis() {
+        long fetched = fetchedCount.get();
+        return fetched == 0 ? 0 : (double) totalLatencyMillis.get() / fetched;
+    }
+
+    /** Returns the longest time from a transaction first being announced to us to receiving it. */
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TransactionRequestTracker: %d requests, %d retries, %d timeouts, %d fetched in %.0fms on average, %d abandoned",
+                getRequestCount(), getRetryCount(), getTimeoutCount(), getFetchedCount(), getAverageLatencyMillis(),
+                getAbandonedCount());
+    }
+}
@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -206,6 +207,21 @@ public class Utils {
         }
     }
 
+    /**
+     * Calculates the double SHA-256 hash of the bytes remaining in the given buffer, without copying them out of it
+     * first. The buffer's position is left unchanged.
+     */
+    public static byte[] doubleDigest(ByteBuffer input) {
+        if (input.hasArray())
+            return doubleDigest(input.array(), input.arrayOffset() + input.position(), input.remaining());
+        synchronized (digest) {
+            digest.reset();
+            digest.update(input.duplicate());
+            byte[] first = digest.digest();
+            return digest.digest(first);
+        }
+    }
+
     public static byte[] singleDigest(byte[] input, int offset, int length) {
         synchronized (digest) {
             digest.reset();
@@ -25,7 +25,9 @@ import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.script.ScriptChunk;
+import com.google.bitcoin.store.LazyTransactionHistory;
 import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletJournal;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
@@ -38,6 +40,8 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.store.MultiBitWalletExtension;
 import org.multibit.store.MultiBitWalletProtobufSerializer;
@@ -52,11 +56,18 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.bitcoin.core.Utils.bitcoinValueToFriendlyString;
@@ -136,6 +147,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
     protected final ReentrantLock lock = Threading.lock("wallet");
+    // Orders the writing of wallet files, which happens without holding the wallet lock.
+    private final ReentrantLock saveLock = Threading.lock("wallet-save");
 
     // The various pools below give quick access to wallet-relevant transactions by the state they're in:
     //
@@ -195,7 +208,39 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
+    // When batching is switched on, confidence changes are collected here instead of being sent out straight away,
+    // and delivered as one batch at the end of each block or time window.
+    private transient boolean batchConfidenceEvents;
+    private transient long confidenceBatchWindowMillis;
+    private transient LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceBatch;
+    private transient ScheduledExecutorService confidenceBatchExecutor;
+    private transient boolean confidenceBatchScheduled;
+    private transient AtomicLong confidenceEventsBatched;
+    private transient AtomicLong confidenceBatchesDelivered;
+    // When non-zero, transaction depths are derived from the best chain height rather than being updated for every
+    // block, and only transactions reaching this depth get an explicit update. The index maps the height at which a
+    // building transaction appeared to the transactions that have not reached the notification depth yet.
+    private transient int confidenceNotifyDepth;
+    private transient volatile int vBestChainHeight;
+    private transient TransactionConfidence.BestChainHeightSource bestChainHeightSource;
+    @Nullable private transient TreeMap<Integer, Set<Transaction>> confidenceHeightIndex;
     private volatile WalletFiles vFileManager;
+    @GuardedBy("lock") private transient long saveSequence;
+    @GuardedBy("saveLock") private transient long lastWrittenSaveSequence;
+    private transient volatile long vLastSaveMillis, vLastSaveLockMillis;
+    // When set, changes are recorded here so that saves only have to append what changed to the journal.
+    @Nullable private volatile WalletJournal vJournal;
+    // Spent and dead transactions that haven't been loaded yet, see loadFromFile(File, boolean).
+    @GuardedBy("lock") @Nullable private transient LazyTransactionHistory lazyHistory;
+    // Threads that don't hold the lock read balances, transactions and keys from an immutable copy of the wallet
+    // instead, so they don't queue up behind block processing. See getReadSnapshot().
+    @Nullable private transient volatile ReadSnapshot vReadSnapshot;
+    // How many times the lock was released by code that may have changed the wallet, see unlock().
+    private transient volatile long vChangeCount;
+    private transient AtomicLong readSnapshotsBuilt;
+    private transient AtomicLong readSnapshotWaits;
+    // Indexes shared with other wallets, which are told about the keys and transactions added to this one.
+    private transient CopyOnWriteArrayList<TransactionRelevanceIndex> relevanceIndexes;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     private volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -280,6 +325,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        confidenceBatch = new LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
+        bestChainHeightSource = new TransactionConfidence.BestChainHeightSource() {
+            @Override
+            public int getBestChainHeight() {
+                return vBestChainHeight;
+            }
+        };
+        confidenceEventsBatched = new AtomicLong();
+        confidenceBatchesDelivered = new AtomicLong();
+        readSnapshotsBuilt = new AtomicLong();
+        readSnapshotWaits = new AtomicLong();
+        relevanceIndexes = new CopyOnWriteArrayList<TransactionRelevanceIndex>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -293,10 +350,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     lock.lock();
                     try {
                         checkBalanceFuturesLocked(null);
-                        queueOnTransactionConfidenceChanged(tx);
+                        queueOnTransactionConfidenceChanged(tx, reason);
                         maybeQueueOnWalletChanged();
                     } finally {
-                        lock.unlock();
+                        unlock();
                     }
                 }
             }
@@ -305,6 +362,151 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         acceptRiskyTransactions = false;
     }
 
+    /**
+     * The parts of the wallet that the most used read only methods need, copied whilst holding the lock so they can
+     * be read without it. Only the collections are copied, the transactions and outputs in them are the live objects,
+     * so anything that changes without the wallet lock, like confidence and hence the maturity of coinbases, is read
+     * at the time the snapshot is used.
+     */
+    private static class ReadSnapshot {
+        final long changeCount;
+        // Every loaded transaction by hash, including dead ones.
+        final ImmutableMap<Sha256Hash, Transaction> transactions;
+        final ImmutableList<Transaction> dead;
+        // True if some of the history is still to be loaded, which only the live wallet can do.
+        final boolean lazyHistory;
+        // Unspent outputs we have the keys for, including those of immature coinbases.
+        final ImmutableList<TransactionOutput> spendCandidates;
+        final CoinSelector coinSelector;
+        final ImmutableList<ECKey> keys;
+        // Where several keys match, the first in the keychain wins, as for the linear searches.
+        final Map<ByteBuffer, ECKey> keysByPubKeyHash;
+        final Map<ByteBuffer, ECKey> keysByPubKey;
+
+        ReadSnapshot(long changeCount, ImmutableMap<Sha256Hash, Transaction> transactions,
+                     ImmutableList<Transaction> dead, boolean lazyHistory,
+                     ImmutableList<TransactionOutput> spendCandidates, CoinSelector coinSelector,
+                     ImmutableList<ECKey> keys, Map<ByteBuffer, ECKey> keysByPubKeyHash,
+                     Map<ByteBuffer, ECKey> keysByPubKey) {
+            this.changeCount = changeCount;
+            this.transactions = transactions;
+            this.dead = dead;
+            this.lazyHistory = lazyHistory;
+            this.spendCandidates = spendCandidates;
+            this.coinSelector = coinSelector;
+            this.keys = keys;
+            this.keysByPubKeyHash = keysByPubKeyHash;
+            this.keysByPubKey = keysByPubKey;
+        }
+    }
+
+    /**
+     * Returns a snapshot that includes every change to the wallet which finished before this was called, or null if
+     * the current thread holds the lock, as it may be half way through a change and must see the live state. An out
+     * of date snapshot is rebuilt here, by the first reader to get the lock, so however many changes a writer makes
+     * in a row the wallet is only copied once, when it is next read. Readers waiting for the lock use the new snapshot
+     * as soon as another reader has published it.
+     */
+    @Nullable
+    private ReadSnapshot getReadSnapshot() {
+        if (lock.isHeldByCurrentThread())
+            return null;
+        long changeCount = vChangeCount;
+        ReadSnapshot snapshot = vReadSnapshot;
+        if (snapshot != null && snapshot.changeCount >= changeCount)
+            return snapshot;
+        boolean locked = lock.tryLock();
+        if (!locked)
+            readSnapshotWaits.incrementAndGet();
+        while (!locked) {
+            try {
+                locked = lock.tryLock(1, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lock.lock();
+                locked = true;
+            }
+            snapshot = vReadSnapshot;
+            if (!locked && snapshot != null && snapshot.changeCount >= changeCount)
+                return snapshot;
+        }
+        try {
+            snapshot = vReadSnapshot;
+            if (snapshot == null || snapshot.changeCount < vChangeCount) {
+                snapshot = buildReadSnapshot();
+                vReadSnapshot = snapshot;
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReadSnapshot buildReadSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        readSnapshotsBuilt.incrementAndGet();
+        ImmutableList<ECKey> keys;
+        Map<ByteBuffer, ECKey> keysByPubKeyHash, keysByPubKey;
+        ReadSnapshot previous = vReadSnapshot;
+        if (previous != null && sameKeys(previous.keys, keychain)) {
+            // Keys are rarely added and the indexes are the expensive part, so keep them if we can.
+            keys = previous.keys;
+            keysByPubKeyHash = previous.keysByPubKeyHash;
+            keysByPubKey = previous.keysByPubKey;
+        } else {
+            keys = ImmutableList.copyOf(keychain);
+            keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>(keys.size() * 2);
+            keysByPubKey = new HashMap<ByteBuffer, ECKey>(keys.size() * 2);
+            for (ECKey key : keys) {
+                ByteBuffer hash = ByteBuffer.wrap(key.getPubKeyHash());
+                if (!keysByPubKeyHash.containsKey(hash))
+                    keysByPubKeyHash.put(hash, key);
+                ByteBuffer pubkey = ByteBuffer.wrap(key.getPubKey());
+                if (!keysByPubKey.containsKey(pubkey))
+                    keysByPubKey.put(pubkey, key);
+            }
+            keysByPubKeyHash = Collections.unmodifiableMap(keysByPubKeyHash);
+            keysByPubKey = Collections.unmodifiableMap(keysByPubKey);
+        }
+        return new ReadSnapshot(vChangeCount, ImmutableMap.copyOf(transactions), ImmutableList.copyOf(dead.values()),
+                lazyHistory != null, ImmutableList.copyOf(calculateAllSpendCandidates(false)), coinSelector,
+                keys, keysByPubKeyHash, keysByPubKey);
+    }
+
+    private static boolean sameKeys(List<ECKey> a, List<ECKey> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases the lock. Used in place of lock.unlock() by methods that may have changed the wallet, which makes the
+     * read snapshot out of date. Methods that only read keep using lock.unlock(), so polling them doesn't send readers
+     * of the snapshot to wait for the lock. The snapshot isn't rebuilt here, see {@link #getReadSnapshot()}.
+     */
+    private void unlock() {
+        // Counted even when nested, as the outermost hold may belong to a method that only reads.
+        vChangeCount++;
+        lock.unlock();
+    }
+
+    /** Returns how many read snapshots have been built, see {@link #getBalance(BalanceType)}. */
+    public long getReadSnapshotBuildCount() {
+        return readSnapshotsBuilt.get();
+    }
+
+    /**
+     * Returns how many reads found another thread changing the wallet and had to wait for it to finish, see
+     * {@link #getBalance(BalanceType)}.
+     */
+    public long getReadSnapshotWaitCount() {
+        return readSnapshotWaits.get();
+    }
+
     public NetworkParameters getNetworkParameters() {
         return params;
     }
@@ -322,6 +524,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns a snapshot of the keychain. This view is not live.
      */
     public List<ECKey> getKeys() {
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null)
+            return new ArrayList<ECKey>(snapshot.keys);
         lock.lock();
         try {
             return new ArrayList<ECKey>(keychain);
@@ -352,7 +557,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             return keychain.remove(key);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -372,6 +577,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns the number of keys in the keychain.
      */
     public int getKeychainSize() {
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null)
+            return snapshot.keys.size();
         lock.lock();
         try {
             return keychain.size();
@@ -380,13 +588,85 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
+    /**
+     * <p>Saves the wallet first to the given temp file, then renames to the dest file. If the dest file is the one a
+     * {@link WalletJournal} is attached to, the journal is restarted on top of the new file.</p>
+     *
+     * <p>The wallet is only locked whilst its protobuf form is built. Writing, syncing and renaming the file happen
+     * without the lock, so other threads can keep using the wallet. If saves overlap, a save that took its copy of the
+     * wallet earlier never replaces the file written by a later one. How long the last save took and how long it kept
+     * the wallet locked are available from {@link #getLastSaveMillis()} and {@link #getLastSaveLockMillis()}.</p>
+     */
     public void saveToFile(File temp, File destFile) throws IOException {
-        FileOutputStream stream = null;
+        final long startTime = System.nanoTime();
+        org.bitcoinj.wallet.Protos.Wallet proto;
+        final long sequence;
+        final Sha256Hash blockHash;
+        final WalletJournal attached = vJournal;
+        final WalletJournal journal = attached != null && attached.isJournalFor(destFile) ? attached : null;
+        final MessageDigest digest = journal != null ? newSha256Digest() : null;
+        long journalGeneration = 0;
+        LazyTransactionHistory.Snapshot history = null;
+        final MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+        serializer.setWriteLazyHistory(false);
         lock.lock();
         try {
+            proto = serializer.walletToProto(this);
+            sequence = ++saveSequence;
+            blockHash = lastBlockSeenHash;
+            // Only forgets what the journal recorded. The journal file is restarted once the wallet file is written.
+            if (journal != null)
+                journalGeneration = journal.snapshotStarted();
+            // Reading the history file is left until the lock is released.
+            if (lazyHistory != null)
+                history = lazyHistory.snapshot();
+        } catch (RuntimeException e) {
+            log.error("Failed whilst saving wallet", e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        final long lockTime = System.nanoTime() - startTime;
+        boolean written = false;
+        try {
+            proto = addLazyHistory(proto, history);
+            written = writeToFile(proto, sequence, temp, destFile, digest);
+        } finally {
+            if (journal != null) {
+                if (written)
+                    journal.snapshotWritten(journalGeneration, digest.digest(), destFile.length(), blockHash);
+                else
+                    journal.snapshotAborted(journalGeneration);
+            }
+        }
+        vLastSaveLockMillis = TimeUnit.NANOSECONDS.toMillis(lockTime);
+        vLastSaveMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        log.debug("Saved wallet in {}msec, of which {}msec with the wallet locked", vLastSaveMillis, vLastSaveLockMillis);
+    }
+
+    private static org.bitcoinj.wallet.Protos.Wallet addLazyHistory(org.bitcoinj.wallet.Protos.Wallet proto,
+                                                                    @Nullable LazyTransactionHistory.Snapshot history) {
+        if (history == null)
+            return proto;
+        org.bitcoinj.wallet.Protos.Wallet.Builder builder = proto.toBuilder();
+        history.addTo(builder);
+        return builder.build();
+    }
+
+    // Writes out a copy of the wallet taken by saveToFile. Returns false if a copy taken after this one has already
+    // been written, in which case the file is left alone.
+    private boolean writeToFile(org.bitcoinj.wallet.Protos.Wallet proto, long sequence, File temp, File destFile,
+                                @Nullable MessageDigest digest) throws IOException {
+        FileOutputStream stream = null;
+        saveLock.lock();
+        try {
+            if (sequence < lastWrittenSaveSequence) {
+                log.info("Not saving an older copy of the wallet over a newer one");
+                temp.delete();
+                return false;
+            }
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            proto.writeTo(digest != null ? new DigestOutputStream(stream, digest) : stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -397,23 +677,45 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // Work around an issue on Windows whereby you can't rename over existing files.
                 File canonical = destFile.getCanonicalFile();
                 canonical.delete();
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
             } else if (!temp.renameTo(destFile)) {
                 throw new IOException("Failed to rename " + temp + " to " + destFile);
             }
+            lastWrittenSaveSequence = sequence;
+            return true;
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
         } finally {
-            lock.unlock();
+            saveLock.unlock();
             if (stream != null) {
                 stream.close();
             }
         }
     }
 
+    /** Returns how long the last call to {@link #saveToFile(File, File)} took in total, in milliseconds. */
+    public long getLastSaveMillis() {
+        return vLastSaveMillis;
+    }
+
+    /**
+     * Returns for how long the last call to {@link #saveToFile(File, File)} kept the wallet locked, in milliseconds.
+     * This is the time other threads using the wallet may have been held up for.
+     */
+    public long getLastSaveLockMillis() {
+        return vLastSaveLockMillis;
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -440,7 +742,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             this.acceptRiskyTransactions = acceptRiskyTransactions;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -466,7 +768,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             this.riskAnalyzer = checkNotNull(analyzer);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -515,7 +817,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             vFileManager = manager;
             return manager;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -533,11 +835,121 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             vFileManager = null;
             checkState(files != null, "Auto saving not enabled.");
             files.shutdownAndWait();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Attaches a journal that changes to this wallet are recorded in, or detaches it if null. This is normally done
+     * by {@link WalletFiles#setJournalingEnabled(boolean)} rather than directly.
+     */
+    public void setJournal(@Nullable WalletJournal journal) {
+        vJournal = journal;
+    }
+
+    /** Returns the journal changes to this wallet are recorded in, or null if there isn't one. */
+    @Nullable
+    public WalletJournal getJournal() {
+        return vJournal;
+    }
+
+    /**
+     * Hands the wallet the spent and dead transactions that were left out when it was loaded. This is intended for
+     * usage by deserialization code, see {@link WalletProtobufSerializer#setLoadHistoryLazily(boolean)}.
+     */
+    public void setLazyTransactionHistory(@Nullable LazyTransactionHistory history) {
+        lock.lock();
+        try {
+            if (lazyHistory != null && lazyHistory != history)
+                lazyHistory.clear();
+            lazyHistory = history;
+            if (history != null) {
+                for (TransactionRelevanceIndex index : relevanceIndexes)
+                    index.addTransactionHashes(this, history.getHashes());
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Returns the transactions that haven't been loaded from the wallet file yet, or null if all of them have been. */
+    @Nullable
+    public LazyTransactionHistory getLazyTransactionHistory() {
+        lock.lock();
+        try {
+            return lazyHistory;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Returns the transaction with the given hash, loading it from the lazy history if it hasn't been loaded yet, or
+     * null if it isn't in the wallet.
+     */
+    @Nullable
+    private Transaction getOrMaterialize(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        Transaction tx = transactions.get(hash);
+        if (tx == null && lazyHistory != null && lazyHistory.contains(hash))
+            tx = materialize(hash, true);
+        return tx;
+    }
+
+    /**
+     * Loads the given transaction from the lazy history into its pool. If loadParents is true, the transactions it
+     * spends are loaded as well so that the value it sent from this wallet can be calculated.
+     */
+    private Transaction materialize(Sha256Hash hash, boolean loadParents) {
+        checkState(lock.isHeldByCurrentThread());
+        WalletTransaction wtx;
+        try {
+            wtx = lazyHistory.materialize(hash, params, transactions);
+        } catch (UnreadableWalletException e) {
+            throw new RuntimeException(e);
+        }
+        Transaction tx = wtx.getTransaction();
+        // The depth stored in the file was not kept up to date whilst the transaction wasn't loaded.
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING && lastBlockSeenHeight > 0)
+            confidence.setDepthInBlocks(lastBlockSeenHeight - confidence.getAppearedAtChainHeight() + 1);
+        addWalletTransaction(wtx.getPool(), tx);
+        if (loadParents) {
+            for (TransactionInput input : tx.getInputs()) {
+                Sha256Hash parentHash = input.getOutpoint().getHash();
+                if (lazyHistory.contains(parentHash))
+                    materialize(parentHash, false);
+            }
+        }
+        return tx;
+    }
+
+    /** Loads everything that is still in the lazy history. */
+    private void materializeAll() {
+        checkState(lock.isHeldByCurrentThread());
+        if (lazyHistory == null)
+            return;
+        for (Sha256Hash hash : lazyHistory.getHashes()) {
+            if (lazyHistory.contains(hash))
+                materialize(hash, false);
+        }
+        lazyHistory.clear();
+        lazyHistory = null;
+    }
+
+    private void journalTransactionChanged(Transaction tx) {
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.transactionChanged(tx.getHash());
+    }
+
+    private void journalRequireCompaction() {
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.requireCompaction();
+    }
+
     private void saveLater() {
         WalletFiles files = vFileManager;
         if (files != null)
@@ -565,23 +977,43 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * {@link WalletProtobufSerializer}.
      */
     public void saveToFileStream(OutputStream f) throws IOException {
+        org.bitcoinj.wallet.Protos.Wallet proto;
+        LazyTransactionHistory.Snapshot history = null;
+        MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+        serializer.setWriteLazyHistory(false);
         lock.lock();
         try {
-            new MultiBitWalletProtobufSerializer().writeWallet(this, f);
+            proto = serializer.walletToProto(this);
+            if (lazyHistory != null)
+                history = lazyHistory.snapshot();
         } finally {
             lock.unlock();
         }
+        // The proto is a complete copy, so the (possibly slow) stream doesn't need to be written with the lock held.
+        proto = addLazyHistory(proto, history);
+        proto.writeTo(f);
     }
 
     /**
-     * Returns a wallet deserialized from the given file.
+     * Returns a wallet deserialized from the given file. If a {@link WalletJournal} was written next to the file,
+     * the changes recorded in it are applied too.
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
+        return loadFromFile(f, false);
+    }
+
+    /**
+     * Returns a wallet deserialized from the given file. If loadHistoryLazily is true, spent and dead transactions
+     * that aren't connected to any unspent or pending transaction are left in a {@link LazyTransactionHistory} and
+     * only loaded when they are asked for, which makes large wallets much faster to open. The wallet saves them
+     * back out whether or not they were loaded.
+     */
+    public static Wallet loadFromFile(File f, boolean loadHistoryLazily) throws UnreadableWalletException {
         try {
-            FileInputStream stream = null;
+            InputStream stream = null;
             try {
-                stream = new FileInputStream(f);
-                return loadFromFileStream(stream);
+                stream = WalletJournal.openWallet(f);
+                return loadFromFileStream(stream, loadHistoryLazily);
             } finally {
                 if (stream != null) stream.close();
             }
@@ -599,9 +1031,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns a wallet deserialized from the given input stream.
      */
     public static Wallet loadFromFileStream(InputStream stream) throws UnreadableWalletException {
+        return loadFromFileStream(stream, false);
+    }
+
+    /**
+     * Returns a wallet deserialized from the given input stream, optionally leaving its spent and dead transactions
+     * to be loaded on demand. See {@link #loadFromFile(File, boolean)}.
+     */
+    public static Wallet loadFromFileStream(InputStream stream, boolean loadHistoryLazily) throws UnreadableWalletException {
         Wallet wallet;
 
-        wallet = new MultiBitWalletProtobufSerializer().readWallet(stream);
+        MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+        serializer.setLoadHistoryLazily(loadHistoryLazily);
+        wallet = serializer.readWallet(stream);
         if (!wallet.isConsistent()) {
            log.error("Loaded an inconsistent wallet");
         }
@@ -637,14 +1079,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                                            int relativityOffset) throws VerificationException {
         lock.lock();
         try {
-            Transaction tx = transactions.get(txHash);
+            Transaction tx = getOrMaterialize(txHash);
             if (tx == null) {
                 log.error("TX {} not found despite being sent to wallet", txHash);
                 return;
             }
             receive(tx, block, blockType, relativityOffset);
         } finally {
-            lock.unlock();
+            unlock();
         }
         if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
             // If some keys are considered to be bad, possibly move money assigned to them now.
@@ -694,7 +1136,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // timestamp on the transaction and registers/runs event listeners.
             commitTx(tx);
         } finally {
-            lock.unlock();
+            unlock();
         }
         // maybeRotateKeys() will ignore pending transactions so we don't bother calling it here (see the comments
         // in that function for an explanation of why).
@@ -799,6 +1241,29 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Adds the keys and transactions of this wallet to the index, and from now on those added later too. The index
+     * can then tell which of many wallets a transaction may be relevant to, see {@link TransactionRelevanceIndex}.
+     */
+    void addRelevanceIndex(TransactionRelevanceIndex index) {
+        lock.lock();
+        try {
+            relevanceIndexes.addIfAbsent(index);
+            index.addKeys(this, keychain);
+            index.addScripts(this, watchedScripts);
+            for (Transaction tx : transactions.values())
+                index.addTransaction(this, tx);
+            if (lazyHistory != null)
+                index.addTransactionHashes(this, lazyHistory.getHashes());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void removeRelevanceIndex(TransactionRelevanceIndex index) {
+        relevanceIndexes.remove(index);
+    }
+
     /**
      * Checks if "tx" is spending any inputs of pending transactions. Not a general check, but it can work even if
      * the double spent inputs are not ours. Returns the pending tx that was double spent or null if none found.
@@ -854,22 +1319,25 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                                  int relativityOffset) throws VerificationException {
         lock.lock();
         
-        CS.log.info("NEWTX: " + "BLOCK " + " " + tx.getHash().toString() + " " + block.getHeight() + " " + tx.getOutputs().size());
-        for(TransactionInput input : tx.getInputs())
-        {
-            CS.log.info("NEWTX: " + "INPUT " + " " + input.getOutpoint().getHash().toString() + " " + input.getOutpoint().getIndex());            
-        }
-        for(TransactionOutput output : tx.getOutputs())
+        if(CS.log.isEnabled(CSLogger.CSLevel.INFO))
         {
-            String mine=output.isMine(this) ? "MINE" : " ";
-            CS.log.info("NEWTX: " + "OUTPUT" + " " + tx.getHash().toString() + " " + output.getIndex() + " " + mine);            
+            CS.log.info("NEWTX: " + "BLOCK " + " " + tx.getHash().toString() + " " + block.getHeight() + " " + tx.getOutputs().size());
+            for(TransactionInput input : tx.getInputs())
+            {
+                CS.log.info("NEWTX: " + "INPUT " + " " + input.getOutpoint().getHash().toString() + " " + input.getOutpoint().getIndex());            
+            }
+            for(TransactionOutput output : tx.getOutputs())
+            {
+                String mine=output.isMine(this) ? "MINE" : " ";
+                CS.log.info("NEWTX: " + "OUTPUT" + " " + tx.getHash().toString() + " " + output.getIndex() + " " + mine);            
+            }
         }
         
             
         try {
             receive(tx, block, blockType, relativityOffset);
         } finally {
-            lock.unlock();
+            unlock();
         }
         if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
             // If some keys are considered to be bad, possibly move money assigned to them now.
@@ -884,6 +1352,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         checkState(lock.isHeldByCurrentThread());
         BigInteger prevBalance = getBalance();
         Sha256Hash txHash = tx.getHash();
+        // The pools are checked for this transaction below, so it must be loaded if it's in the lazy history.
+        getOrMaterialize(txHash);
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
 
@@ -1081,14 +1551,198 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
+        if (batchConfidenceEvents) {
+            batchConfidenceChanges();
+            return;
+        }
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
             tx.getConfidence().queueListeners(entry.getValue());
-            queueOnTransactionConfidenceChanged(tx);
+            queueOnTransactionConfidenceChanged(tx, entry.getValue());
         }
         confidenceChanged.clear();
     }
 
+    private void notifyDepthThresholdCrossings(int height) {
+        checkState(lock.isHeldByCurrentThread());
+        if (confidenceHeightIndex == null)
+            rebuildConfidenceHeightIndex();
+        // Transactions that appeared in this block were already set up by receive().
+        for (Sha256Hash hash : ignoreNextNewBlock) {
+            Transaction tx = transactions.get(hash);
+            if (tx != null)
+                indexConfidenceHeight(tx);
+        }
+        ignoreNextNewBlock.clear();
+        // Anything that appeared at or below this height is now at least at the notify depth.
+        final int crossingHeight = height - confidenceNotifyDepth + 1;
+        SortedMap<Integer, Set<Transaction>> crossed = confidenceHeightIndex.headMap(crossingHeight, true);
+        for (Set<Transaction> txns : crossed.values()) {
+            for (Transaction tx : txns) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() != ConfidenceType.BUILDING || !transactions.containsKey(tx.getHash()))
+                    continue;
+                confidence.snapshotDepth();
+                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+        }
+        crossed.clear();
+    }
+
+    private void indexConfidenceHeight(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+            return;
+        int height = confidence.getAppearedAtChainHeight();
+        Set<Transaction> txns = confidenceHeightIndex.get(height);
+        if (txns == null) {
+            txns = new LinkedHashSet<Transaction>();
+            confidenceHeightIndex.put(height, txns);
+        }
+        txns.add(tx);
+    }
+
+    private void rebuildConfidenceHeightIndex() {
+        checkState(lock.isHeldByCurrentThread());
+        confidenceHeightIndex = new TreeMap<Integer, Set<Transaction>>();
+        for (Transaction tx : transactions.values()) {
+            if (tx.getConfidence().getDepthInBlocks() < confidenceNotifyDepth)
+                indexConfidenceHeight(tx);
+        }
+    }
+
+    /**
+     * <p>By default every new block on the best chain updates the depth and work done of every building transaction
+     * in the wallet, which is O(wallet size) per block and gets slow for wallets with many transactions. Setting a
+     * notify depth switches to deriving the depth of a transaction from the height at which it appeared and the last
+     * block seen by the wallet whenever it's read, so nothing has to be updated per block. The catch is that
+     * confidence listeners are no longer told about every change in depth: a transaction only gets a
+     * {@link TransactionConfidence.Listener.ChangeReason#DEPTH} event when it first appears in a block and when it
+     * reaches the given depth, for instance the depth after which you consider a payment final. Futures from
+     * {@link TransactionConfidence#getDepthFuture(int)} with larger depths will not complete.</p>
+     *
+     * @param notifyDepth The depth at which transactions get an explicit update, or zero to go back to updating every
+     *                    transaction for every block.
+     */
+    public void setConfidenceNotifyDepth(int notifyDepth) {
+        checkArgument(notifyDepth >= 0);
+        lock.lock();
+        try {
+            if (notifyDepth == confidenceNotifyDepth)
+                return;
+            // Transactions received in the current block will have been set up by receive() already, and
+            // notifyNewBestBlock would otherwise be confused by a stale set when switching modes.
+            ignoreNextNewBlock.clear();
+            vBestChainHeight = lastBlockSeenHeight;
+            final TransactionConfidence.BestChainHeightSource source = notifyDepth > 0 ? bestChainHeightSource : null;
+            for (Transaction tx : transactions.values())
+                tx.getConfidence().setBestChainHeightSource(source);
+            confidenceNotifyDepth = notifyDepth;
+            confidenceHeightIndex = null;
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Returns the depth set by {@link #setConfidenceNotifyDepth(int)}, or zero if depths are updated every block. */
+    public int getConfidenceNotifyDepth() {
+        lock.lock();
+        try {
+            return confidenceNotifyDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void batchConfidenceChanges() {
+        checkState(lock.isHeldByCurrentThread());
+        for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
+            TransactionConfidence.Listener.ChangeReason previous = confidenceBatch.get(entry.getKey());
+            if (previous != TransactionConfidence.Listener.ChangeReason.TYPE)
+                confidenceBatch.put(entry.getKey(), entry.getValue());
+            confidenceEventsBatched.incrementAndGet();
+        }
+        confidenceChanged.clear();
+        if (confidenceBatch.isEmpty())
+            return;
+        if (confidenceBatchWindowMillis == 0) {
+            deliverConfidenceBatch();
+        } else if (!confidenceBatchScheduled) {
+            confidenceBatchScheduled = true;
+            confidenceBatchExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lock.lock();
+                    try {
+                        confidenceBatchScheduled = false;
+                        deliverConfidenceBatch();
+                    } finally {
+                        unlock();
+                    }
+                }
+            }, confidenceBatchWindowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void deliverConfidenceBatch() {
+        checkState(lock.isHeldByCurrentThread());
+        if (confidenceBatch.isEmpty())
+            return;
+        final Map<Transaction, TransactionConfidence.Listener.ChangeReason> batch = ImmutableMap.copyOf(confidenceBatch);
+        confidenceBatch.clear();
+        confidenceBatchesDelivered.incrementAndGet();
+        TransactionConfidence.queueListeners(batch);
+        queueOnTransactionConfidencesChanged(batch);
+    }
+
+    /**
+     * <p>Switches batched delivery of transaction confidence events on or off. By default every transaction whose
+     * confidence changes gets its own {@link TransactionConfidence.Listener} and
+     * {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)} invocations, so each new block
+     * results in a few tasks per building transaction in the wallet. With batching enabled the changes are collected
+     * and delivered together: confidence listeners that share an executor are run from one task, and wallet event
+     * listeners implementing {@link TransactionConfidenceBatchListener} receive a single callback for the batch.</p>
+     *
+     * <p>Changes to the number of peers that announced a pending transaction are not batched.</p>
+     *
+     * @param enabled Whether to batch confidence events.
+     * @param windowMillis If zero, a batch is delivered for every block (or other wallet update). Otherwise changes are
+     *                     held back for up to this many milliseconds so that several blocks end up in one batch.
+     */
+    public void setConfidenceEventBatching(boolean enabled, long windowMillis) {
+        checkArgument(windowMillis >= 0);
+        lock.lock();
+        try {
+            // Flush anything held back under the old settings.
+            deliverConfidenceBatch();
+            batchConfidenceEvents = enabled;
+            confidenceBatchWindowMillis = windowMillis;
+            if (enabled && windowMillis > 0 && confidenceBatchExecutor == null) {
+                ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Wallet confidence batch thread");
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    builder.setUncaughtExceptionHandler(handler);
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, builder.build());
+                executor.setKeepAliveTime(5, TimeUnit.SECONDS);
+                executor.allowCoreThreadTimeOut(true);
+                confidenceBatchExecutor = executor;
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Returns how many confidence changes were absorbed by batching, that is, the number of changes collected minus
+     * the number of batches they were delivered in. Only counts while {@link #setConfidenceEventBatching(boolean, long)}
+     * is enabled.
+     */
+    public long getCoalescedConfidenceEventCount() {
+        return confidenceEventsBatched.get() - confidenceBatchesDelivered.get();
+    }
+
     /**
      * <p>Called by the {@link BlockChain} when a new block on the best chain is seen, AFTER relevant wallet
      * transactions are extracted and sent to us UNLESS the new block caused a re-org, in which case this will
@@ -1122,10 +1776,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 CS.log.info("New block " + block.getHeight() + ": " + block.getHeader().getHashAsString());
             }
             
+            if (confidenceNotifyDepth > 0) {
+                // Depths are derived on read, so only touch the transactions that just reached the notify depth.
+                notifyDepthThresholdCrossings(block.getHeight());
+                informConfidenceListenersIfNotReorganizing();
+                maybeQueueOnWalletChanged();
+                return;
+            }
+
             // TODO: Clarify the code below.
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = getLoadedTransactions(true);
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getHash())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -1142,7 +1804,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Coalesce writes to avoid throttling on disk access when catching up with the chain.
             //saveLater();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1434,7 +2096,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             informConfidenceListenersIfNotReorganizing();
             //saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
         return true;
     }
@@ -1455,10 +2117,30 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. If the wallet was loaded with its history left to be loaded on
+     * demand, all of it is loaded now.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null && !snapshot.lazyHistory) {
+            Set<Transaction> all = new HashSet<Transaction>(snapshot.transactions.values());
+            if (!includeDead)
+                all.removeAll(snapshot.dead);
+            return all;
+        }
+        lock.lock();
+        try {
+            materializeAll();
+            return getLoadedTransactions(includeDead);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like getTransactions, but leaves transactions in the lazy history alone. Used for per-block book-keeping which
+    // has no need to look at old spent transactions.
+    private Set<Transaction> getLoadedTransactions(boolean includeDead) {
         lock.lock();
         try {
             Set<Transaction> all = new HashSet<Transaction>();
@@ -1474,7 +2156,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Returns a set of all WalletTransactions in the wallet. Transactions still in the lazy history are not included,
+     * see {@link #getLazyTransactionHistory()}.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
         lock.lock();
@@ -1490,6 +2173,71 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Returns the wallet transactions with the given hashes, skipping any that are no longer in the wallet. If
+     * includeConnected is true, the wallet transactions whose outputs they spend and those that spend their outputs
+     * are returned as well, as spending can move a transaction between pools. Used by {@link WalletJournal}.
+     */
+    public Collection<WalletTransaction> getWalletTransactions(Collection<Sha256Hash> hashes, boolean includeConnected) {
+        lock.lock();
+        try {
+            Map<Sha256Hash, WalletTransaction> result = new LinkedHashMap<Sha256Hash, WalletTransaction>();
+            for (Sha256Hash hash : hashes) {
+                Transaction tx = transactions.get(hash);
+                if (tx == null)
+                    continue;
+                addWalletTransactionToMap(result, hash);
+                if (!includeConnected)
+                    continue;
+                for (TransactionInput input : tx.getInputs()) {
+                    TransactionOutput connected = input.getConnectedOutput();
+                    if (connected != null)
+                        addWalletTransactionToMap(result, connected.getParentTransaction().getHash());
+                }
+                for (TransactionOutput output : tx.getOutputs()) {
+                    TransactionInput spentBy = output.getSpentBy();
+                    if (spentBy != null)
+                        addWalletTransactionToMap(result, spentBy.getParentTransaction().getHash());
+                }
+            }
+            return result.values();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Serializes the wallet transactions returned by {@link #getWalletTransactions(Collection, boolean)} whilst still
+     * holding the lock, so that no transaction can change half way through being written. Used by
+     * {@link WalletJournal}.
+     */
+    public List<Protos.Transaction> serializeWalletTransactions(Collection<Sha256Hash> hashes, boolean includeConnected) {
+        lock.lock();
+        try {
+            return WalletProtobufSerializer.makeTxProtos(getWalletTransactions(hashes, includeConnected));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addWalletTransactionToMap(Map<Sha256Hash, WalletTransaction> result, Sha256Hash hash) {
+        if (result.containsKey(hash))
+            return;
+        Transaction tx;
+        Pool pool;
+        if ((tx = unspent.get(hash)) != null)
+            pool = Pool.UNSPENT;
+        else if ((tx = spent.get(hash)) != null)
+            pool = Pool.SPENT;
+        else if ((tx = pending.get(hash)) != null)
+            pool = Pool.PENDING;
+        else if ((tx = dead.get(hash)) != null)
+            pool = Pool.DEAD;
+        else
+            return;
+        result.put(hash, new WalletTransaction(pool, tx));
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txs,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -1507,7 +2255,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1517,6 +2265,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        for (TransactionRelevanceIndex index : relevanceIndexes)
+            index.addTransaction(this, tx);
         switch (pool) {
         case UNSPENT:
             unspent.put(tx.getHash(), tx);
@@ -1536,6 +2286,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        if (confidenceNotifyDepth > 0)
+            tx.getConfidence().setBestChainHeightSource(bestChainHeightSource);
     }
 
     /**
@@ -1557,6 +2309,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
+            // Only the most recent transactions in the lazy history can make the cut, so just load those.
+            if (lazyHistory != null) {
+                for (Sha256Hash hash : lazyHistory.getRecentHashes(numTransactions, includeDead)) {
+                    if (lazyHistory.contains(hash))
+                        materialize(hash, true);
+                }
+            }
             // Firstly, put all transactions into an array.
             int size = getPoolSize(Pool.UNSPENT) +
                     getPoolSize(Pool.SPENT) +
@@ -1564,7 +2323,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (numTransactions > size || numTransactions == 0) {
                 numTransactions = size;
             }
-            ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
+            ArrayList<Transaction> all = new ArrayList<Transaction>(getLoadedTransactions(includeDead));
             // Order by date.
             Collections.sort(all, Collections.reverseOrder(new Comparator<Transaction>() {
                 public int compare(Transaction t1, Transaction t2) {
@@ -1587,9 +2346,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null) {
+            Transaction tx = snapshot.transactions.get(hash);
+            if (tx != null || !snapshot.lazyHistory)
+                return tx;
+        }
         lock.lock();
         try {
-            return transactions.get(hash);
+            return getOrMaterialize(hash);
         } finally {
             lock.unlock();
         }
@@ -1608,13 +2373,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                if (lazyHistory != null) {
+                    lazyHistory.clear();
+                    lazyHistory = null;
+                }
+                journalRequireCompaction();
+                maybeQueueOnWalletChanged();
 
                 //saveLater();
             } else {
                 throw new UnsupportedOperationException();
             }
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1634,6 +2405,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         tx.disconnectInputs();
                         i.remove();
                         transactions.remove(tx.getHash());
+                        journalRequireCompaction();
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -1646,9 +2418,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (dirty) {
                 checkState(isConsistent());
                 saveLater();
+                maybeQueueOnWalletChanged();
             }
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1669,6 +2442,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (dead.containsKey(txHash)) {
                 result.add(Pool.DEAD);
             }
+            Pool lazyPool = lazyHistory != null ? lazyHistory.getPool(txHash) : null;
+            if (lazyPool != null) {
+                result.add(lazyPool);
+            }
             return result;
         } finally {
             lock.unlock();
@@ -1678,15 +2455,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     int getPoolSize(WalletTransaction.Pool pool) {
         lock.lock();
         try {
+            int lazySize = lazyHistory != null ? lazyHistory.size(pool) : 0;
             switch (pool) {
                 case UNSPENT:
                     return unspent.size();
                 case SPENT:
-                    return spent.size();
+                    return spent.size() + lazySize;
                 case PENDING:
                     return pending.size();
                 case DEAD:
-                    return dead.size();
+                    return dead.size() + lazySize;
             }
             throw new RuntimeException("Unreachable");
         } finally {
@@ -2042,7 +2820,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             commitTx(request.tx);
             return request.tx;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2368,7 +3146,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             req.fee = calculatedFee;
             log.info("  completed: {}", req.tx);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
     
@@ -2573,12 +3351,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 keychain.add(key);
                 added++;
             }
+            for (TransactionRelevanceIndex index : relevanceIndexes)
+                index.addKeys(this, keys);
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             //saveNow();
             return added;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2642,12 +3422,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 watchedScripts.add(script);
                 added++;
             }
+            for (TransactionRelevanceIndex index : relevanceIndexes)
+                index.addScripts(this, scripts);
 
             queueOnScriptsAdded(scripts);
             saveNow();
             return added;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2659,6 +3441,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null)
+            return snapshot.keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         lock.lock();
         try {
             for (ECKey key : keychain) {
@@ -2703,6 +3488,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public ECKey findKeyFromPubKey(byte[] pubkey) {
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null)
+            return snapshot.keysByPubKey.get(ByteBuffer.wrap(pubkey));
         lock.lock();
         try {
             for (ECKey key : keychain) {
@@ -2754,9 +3542,20 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. Unless the calling thread holds the
+     * wallet lock, the balance comes from a snapshot of the wallet that includes every change finished before the
+     * call, so it doesn't wait for the block chain or peers to finish with the wallet. This goes for the key and
+     * transaction lookups too.
      */
     public BigInteger getBalance(BalanceType balanceType) {
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null) {
+            if (balanceType == BalanceType.AVAILABLE)
+                return getBalance(snapshot, snapshot.coinSelector);
+            BigInteger value = BigInteger.ZERO;
+            for (TransactionOutput out : snapshot.spendCandidates) value = value.add(out.getValue());
+            return value;
+        }
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE) {
@@ -2779,9 +3578,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * as many coins as possible and returns the total.
      */
     public BigInteger getBalance(CoinSelector selector) {
+        checkNotNull(selector);
+        ReadSnapshot snapshot = getReadSnapshot();
+        if (snapshot != null)
+            return getBalance(snapshot, selector);
         lock.lock();
         try {
-            checkNotNull(selector);
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
             return selection.valueGathered;
@@ -2790,6 +3592,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    private static BigInteger getBalance(ReadSnapshot snapshot, CoinSelector selector) {
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (TransactionOutput output : snapshot.spendCandidates) {
+            // Whether a coinbase is mature changes with the chain height, not the wallet, so isn't in the snapshot.
+            if (output.getParentTransaction().isMature())
+                candidates.add(output);
+        }
+        return selector.select(NetworkParameters.MAX_MONEY, candidates).valueGathered;
+    }
+
     /** Returns the available balance, including any unspent balance at watched addresses */
     public BigInteger getWatchedBalance() {
         return getWatchedBalance(coinSelector);
@@ -2995,6 +3807,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
+            // Any transaction may be moved around by a re-org, so the lazy history can't be left out.
+            materializeAll();
+
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
@@ -3117,6 +3932,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
             subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
             subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            if (confidenceNotifyDepth > 0) {
+                // Derived depths follow the best chain height, which is about to be wound back to the split point.
+                setLastBlockSeenHeight(splitPoint.getHeight());
+                confidenceHeightIndex = null;
+            }
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -3149,7 +3969,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             informConfidenceListenersIfNotReorganizing();
             saveLater();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3160,6 +3980,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                                           Collection<Transaction> transactions) {
         for (Transaction tx : transactions) {
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                if (confidenceNotifyDepth > 0)
+                    tx.getConfidence().snapshotDepth();
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
@@ -3224,7 +4046,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             this.lastBlockSeenHash = lastBlockSeenHash;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3232,8 +4054,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            this.vBestChainHeight = lastBlockSeenHeight;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3242,7 +4065,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             lastBlockSeenTimeSecs = timeSecs;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3308,8 +4131,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 removeEntriesAfterDate(pending, fromDate);
                 removeEntriesAfterDate(dead, fromDate);
             }
+            maybeQueueOnWalletChanged();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3405,10 +4229,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Add a MultiBitWalletExtension to protect the wallet from being loaded by earlier MultiBits.
             MultiBitWalletExtension multibitWalletExtension = new MultiBitWalletExtension();
             extensions.put(multibitWalletExtension.getWalletExtensionID(), multibitWalletExtension);
+            journalRequireCompaction();
 
             //saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3449,10 +4274,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             
             // Clear the MultBit wallet extension so that earlier MultiBits can load it.
             extensions.remove(MultiBitWalletProtobufSerializer.ORG_MULTIBIT_WALLET_PROTECT_2);
+            journalRequireCompaction();
 
             //saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3483,7 +4309,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkNotNull(keyCrypter, "Wallet is not encrypted, you must call encrypt() first.");
             return addNewEncryptedKey(keyCrypter, keyCrypter.deriveKey(password));
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3570,7 +4396,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(this.keyCrypter == null);
             this.keyCrypter = keyCrypter;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3624,7 +4450,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     @Override
     public int getBloomFilterElementCount() {
         int size = getKeychainSize() * 2;
-        for (Transaction tx : getTransactions(false)) {
+        for (Transaction tx : getLoadedTransactions(false)) {
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
                     if (isTxOutputBloomFilterable(out))
@@ -3693,7 +4519,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         } finally {
             lock.unlock();
         }
-        for (Transaction tx : getTransactions(false)) {
+        for (Transaction tx : getLoadedTransactions(false)) {
             for (int i = 0; i < tx.getOutputs().size(); i++) {
                 TransactionOutput out = tx.getOutputs().get(i);
                 try {
@@ -3736,7 +4562,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             this.coinSelector = checkNotNull(coinSelector);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3839,9 +4665,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            journalExtensionChanged(id);
             //saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3856,10 +4683,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            journalExtensionChanged(id);
             //saveNow();
             return extension;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3873,12 +4701,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             extensions.put(id, extension);
+            journalExtensionChanged(id);
             //saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
+    private void journalExtensionChanged(String id) {
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.extensionChanged(id);
+    }
+
     /** Returns a snapshot of all registered extension objects. The extensions themselves are not copied. */
     public Map<String, WalletExtension> getExtensions() {
         lock.lock();
@@ -3894,8 +4729,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // Boilerplate for running event listeners - dispatches events onto the user code thread (where we don't do
     // anything and hold no locks).
 
-    private void queueOnTransactionConfidenceChanged(final Transaction tx) {
+    private void queueOnTransactionConfidenceChanged(final Transaction tx,
+                                                     TransactionConfidence.Listener.ChangeReason reason) {
         checkState(lock.isHeldByCurrentThread());
+        // Depths are worked out again from the last block seen when the journal is replayed, so every block doesn't
+        // rewrite every building transaction.
+        if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH)
+            journalTransactionChanged(tx);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
@@ -3910,6 +4750,41 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    private void queueOnTransactionConfidencesChanged(final Map<Transaction, TransactionConfidence.Listener.ChangeReason> batch) {
+        checkState(lock.isHeldByCurrentThread());
+        for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : batch.entrySet()) {
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                journalTransactionChanged(entry.getKey());
+        }
+        for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
+            if (registration.listener instanceof TransactionConfidenceBatchListener) {
+                final TransactionConfidenceBatchListener listener = (TransactionConfidenceBatchListener) registration.listener;
+                if (registration.executor == Threading.SAME_THREAD) {
+                    listener.onTransactionConfidencesChanged(this, batch);
+                } else {
+                    registration.executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onTransactionConfidencesChanged(Wallet.this, batch);
+                        }
+                    });
+                }
+            } else if (registration.executor == Threading.SAME_THREAD) {
+                for (Transaction tx : batch.keySet())
+                    registration.listener.onTransactionConfidenceChanged(this, tx);
+            } else {
+                // Still one task for the whole batch, even though the listener is called per transaction.
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Transaction tx : batch.keySet())
+                            registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
+                    }
+                });
+            }
+        }
+    }
+
     private void maybeQueueOnWalletChanged() {
         // Don't invoke the callback in some circumstances, eg, whilst we are re-organizing or fiddling with
         // transactions due to a new block arriving. It will be called later instead.
@@ -3928,6 +4803,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnCoinsReceived(final Transaction tx, final BigInteger balance, final BigInteger newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        journalTransactionChanged(tx);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3940,6 +4816,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnCoinsSent(final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        journalTransactionChanged(tx);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3953,6 +4830,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void queueOnReorganize() {
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
+        // Re-organizations touch too much of the wallet to be worth journaling.
+        journalRequireCompaction();
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3965,6 +4844,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnKeysAdded(final List<ECKey> keys) {
         checkState(lock.isHeldByCurrentThread());
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.keysAdded(keys);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3981,6 +4863,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnScriptsAdded(final List<Script> scripts) {
         checkState(lock.isHeldByCurrentThread());
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.scriptsAdded(scripts);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -4455,7 +5340,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 return;
             toBroadcast = pending.values().toArray(toBroadcast);
         } finally {
-            lock.unlock();
+            unlock();
         }
         // Now use it to upload any pending transactions we have that are marked as not being seen by any peers yet.
         // Don't hold the wallet lock whilst doing this, so if the broadcaster accesses the wallet at some point there
@@ -4593,7 +5478,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         } catch (VerificationException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally {
-            lock.unlock();
+            unlock();
         }
         if (broadcaster == null)
             return rekeyTx;
@@ -4678,6 +5563,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         
         public boolean initCSDatabases(String FilePrefix)
         {
+            // Otherwise the old writer thread and its file would be left behind.
+            if(log != null)
+            {
+                log.close();
+            }
             log=new CSLogger(FilePrefix + ".cslog");
             
             assetDB=new CSAssetDatabase(FilePrefix,log);
@@ -6054,7 +6944,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         {
             Map <String,Integer> map= new HashMap<String,Integer>();
             
-            Set<Transaction> txs=getTransactions(true);
+            Set<Transaction> txs=getLoadedTransactions(true);
 
             for(Transaction tx : txs)
             {
@@ -6066,6 +6956,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
             
+            // Transactions that haven't been loaded yet still count, their heights are known without loading them.
+            LazyTransactionHistory history=getLazyTransactionHistory();
+            if (history != null)
+            {
+                for (Map.Entry<Sha256Hash, Integer> entry : history.getAppearedAtHeights().entrySet())
+                {
+                    map.put(entry.getKey().toString(), lastBlockSeenHeight-entry.getValue());
+                }
+            }
+            
             return map;
         }
         
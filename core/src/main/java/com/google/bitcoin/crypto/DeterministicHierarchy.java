@@ -17,6 +17,7 @@
 package com.google.bitcoin.crypto;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import java.io.Serializable;
@@ -129,6 +130,57 @@ public class DeterministicHierarchy implements Serializable {
         return deriveChild(get(parentPath, relative, createParent), createChildNumber);
     }
 
+    /**
+     * Extends the tree by calculating a run of consecutive children of the given parent, for example to generate a
+     * batch of receive addresses for lookahead. The keys are derived by
+     * {@link HDKeyDerivation#deriveChildKeys(DeterministicKey, int, int, boolean)}, which does the per parent work
+     * only once and spreads large runs over all cores. Children that are already in the tree are not derived again.
+     * Afterwards, {@link #deriveNextChild(ImmutableList, boolean, boolean, boolean)} continues after the run if it
+     * hadn't got that far yet.
+     *
+     * @param parentPath the path to the parent
+     * @param relative whether the path is relative to the root path
+     * @param createParent whether the parent corresponding to path should be created (with any necessary ancestors) if it doesn't exist already
+     * @param from the first child number to derive
+     * @param count how many children to derive
+     * @param privateDerivation whether to use private or public derivation
+     * @return the requested keys in order of child number. Child numbers that give an invalid key are skipped, as
+     * per BIP 32, so the list may be shorter than count.
+     * @throws IllegalArgumentException if the parent doesn't exist and createParent is false.
+     */
+    public List<DeterministicKey> deriveChildren(List<ChildNumber> parentPath, boolean relative, boolean createParent,
+                                                 int from, int count, boolean privateDerivation) {
+        DeterministicKey parent = get(parentPath, relative, createParent);
+        ImmutableList<ChildNumber> absoluteParentPath = parent.getChildNumberPath();
+        // Work out which children we're missing, and only derive from the first to the last of those.
+        int first = -1, last = -1;
+        for (int i = from; i < from + count; i++) {
+            if (!keys.containsKey(HDUtils.append(absoluteParentPath, new ChildNumber(i, privateDerivation)))) {
+                if (first < 0) first = i;
+                last = i;
+            }
+        }
+        if (first >= 0) {
+            for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, first, last - first + 1, privateDerivation)) {
+                if (!keys.containsKey(key.getChildNumberPath()))
+                    putKey(key);
+            }
+        }
+        if (count > 0) {
+            Map<ImmutableList<ChildNumber>, ChildNumber> lastDerivedNumbers = getLastDerivedNumbers(privateDerivation);
+            ChildNumber lastChildNumber = lastDerivedNumbers.get(absoluteParentPath);
+            if (lastChildNumber == null || lastChildNumber.getChildNumber() < from + count - 1)
+                lastDerivedNumbers.put(absoluteParentPath, new ChildNumber(from + count - 1, privateDerivation));
+        }
+        List<DeterministicKey> result = Lists.newArrayListWithCapacity(count);
+        for (int i = from; i < from + count; i++) {
+            DeterministicKey key = keys.get(HDUtils.append(absoluteParentPath, new ChildNumber(i, privateDerivation)));
+            if (key != null)
+                result.add(key);
+        }
+        return result;
+    }
+
     private DeterministicKey deriveChild(DeterministicKey parent, ChildNumber createChildNumber) {
         DeterministicKey childKey = HDKeyDerivation.deriveChildKey(parent, createChildNumber);
         putKey(childKey);
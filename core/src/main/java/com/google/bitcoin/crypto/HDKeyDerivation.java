@@ -17,13 +17,21 @@
 package com.google.bitcoin.crypto;
 
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.utils.Threading;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.ECPoint;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -90,48 +98,126 @@ public final class HDKeyDerivation {
      */
     public static DeterministicKey deriveChildKey(DeterministicKey parent, ChildNumber childNumber)
             throws HDDerivationException {
+        ParentData parentData = new ParentData(parent, childNumber.isPrivateDerivation());
+        return deriveChildKey(parentData, HDUtils.createHmacSha512Digest(parent.getChainCode()), childNumber);
+    }
+
+    /**
+     * <p>Derives the children numbered from {@code from} to {@code from + count - 1} of the given parent. This gives
+     * the same keys as calling {@link #deriveChildKey(DeterministicKey, ChildNumber)} for each number in turn, but
+     * the work that only depends on the parent (its public point and serialization, and the HMAC keyed with its
+     * chain code) is done once for the whole run. Large runs are split between the cores of the machine, which is
+     * where most of the time goes when deriving long runs of addresses from a public-only parent.</p>
+     *
+     * <p>As per BIP 32, a child number that results in an invalid key (which happens with a probability lower than
+     * 1 in 2<sup>127</sup>) is skipped, so the returned list can be shorter than count. Keys are returned in order of
+     * child number.</p>
+     *
+     * @param privateDerivation whether to derive private (hardened) children, which requires a private parent.
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, final int from, final int count,
+                                                         final boolean privateDerivation) {
+        checkArgument(from >= 0 && count >= 0, "Negative child number range");
+        checkArgument(((long) from + count) <= ((long) ChildNumber.PRIV_BIT & 0xFFFFFFFFL), "Child number range too large");
+        checkArgument(parent.hasPrivate() || !privateDerivation, "Can't use private derivation with public keys only.");
+        final ParentData parentData = new ParentData(parent, privateDerivation);
+        final int numTasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_KEYS_PER_TASK));
+        if (numTasks == 1)
+            return deriveChildKeyRange(parentData, from, count, privateDerivation);
+        List<ListenableFuture<List<DeterministicKey>>> futures = Lists.newArrayListWithCapacity(numTasks);
+        final int perTask = (count + numTasks - 1) / numTasks;
+        for (int start = 0; start < count; start += perTask) {
+            final int taskFrom = from + start;
+            final int taskCount = Math.min(perTask, count - start);
+            futures.add(Threading.THREAD_POOL.submit(new Callable<List<DeterministicKey>>() {
+                @Override
+                public List<DeterministicKey> call() throws Exception {
+                    return deriveChildKeyRange(parentData, taskFrom, taskCount, privateDerivation);
+                }
+            }));
+        }
+        List<DeterministicKey> result = Lists.newArrayListWithCapacity(count);
+        try {
+            for (List<DeterministicKey> keys : Futures.allAsList(futures).get())
+                result.addAll(keys);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Derivation only throws unchecked exceptions, which are passed on as they are.
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        return result;
+    }
 
-        RawKeyBytes rawKey = deriveChildKeyBytes(parent, childNumber);
+    private static final int MIN_KEYS_PER_TASK = 64;
+
+    private static List<DeterministicKey> deriveChildKeyRange(ParentData parentData, int from, int count,
+                                                              boolean privateDerivation) {
+        // HMac objects are not thread safe, so every task gets its own.
+        HMac hmac = HDUtils.createHmacSha512Digest(parentData.chainCode);
+        List<DeterministicKey> keys = Lists.newArrayListWithCapacity(count);
+        for (int i = from; i < from + count; i++) {
+            try {
+                DeterministicKey key = deriveChildKey(parentData, hmac, new ChildNumber(i, privateDerivation));
+                if (key.hasPrivate())
+                    key.getPubPoint();  // Do the point multiplication here rather than on the caller's thread later.
+                keys.add(key);
+            } catch (IllegalArgumentException e) {
+                // Invalid key for this child number, skip it.
+            } catch (HDDerivationException e) {
+                // Ditto.
+            }
+        }
+        return keys;
+    }
+
+    private static DeterministicKey deriveChildKey(ParentData parentData, HMac hmac, ChildNumber childNumber)
+            throws HDDerivationException {
+        DeterministicKey parent = parentData.parent;
+        RawKeyBytes rawKey = deriveChildKeyBytes(parentData, hmac, childNumber);
         return new DeterministicKey(
                 HDUtils.append(parent.getChildNumberPath(), childNumber),
                 rawKey.chainCode,
-                parent.hasPrivate() ? null : ECKey.CURVE.getCurve().decodePoint(rawKey.keyBytes),
+                parent.hasPrivate() ? null : rawKey.pubPoint,
                 parent.hasPrivate() ? new BigInteger(1, rawKey.keyBytes) : null,
                 parent);
     }
 
-    private static RawKeyBytes deriveChildKeyBytes(DeterministicKey parent, ChildNumber childNumber)
+    private static RawKeyBytes deriveChildKeyBytes(ParentData parentData, HMac hmac, ChildNumber childNumber)
             throws HDDerivationException {
 
-        byte[] parentPublicKey = HDUtils.getBytes(parent.getPubPoint());
-        assert parentPublicKey.length == 33 : parentPublicKey.length;
         ByteBuffer data = ByteBuffer.allocate(37);
         if (childNumber.isPrivateDerivation()) {
-            data.put(parent.getPrivKeyBytes33());
+            checkArgument(parentData.privKeyBytes33 != null, "Can't use private derivation with public keys only.");
+            data.put(parentData.privKeyBytes33);
         } else {
-            data.put(parentPublicKey);
+            data.put(parentData.pubKeyBytes);
         }
         data.putInt(childNumber.getI());
-        byte[] i = HDUtils.hmacSha512(parent.getChainCode(), data.array());
+        byte[] i = HDUtils.hmacSha512(hmac, data.array());
         assert i.length == 64 : i.length;
         byte[] il = Arrays.copyOfRange(i, 0, 32);
         byte[] chainCode = Arrays.copyOfRange(i, 32, 64);
         BigInteger ilInt = new BigInteger(1, il);
         assertLessThanN(ilInt, "Illegal derived key: I_L >= n");
-        byte[] keyBytes;
-        final BigInteger privAsFieldElement = parent.getPrivAsFieldElement();
+        final BigInteger privAsFieldElement = parentData.parent.getPrivAsFieldElement();
         if (privAsFieldElement != null) {
             BigInteger ki = privAsFieldElement.add(ilInt).mod(ECKey.CURVE.getN());
             assertNonZero(ki, "Illegal derived key: derived private key equals 0.");
-            keyBytes = ki.toByteArray();
+            return new RawKeyBytes(ki.toByteArray(), null, chainCode);
         } else {
             checkArgument(!childNumber.isPrivateDerivation(), "Can't use private derivation with public keys only.");
-            ECPoint Ki = ECKey.CURVE.getG().multiply(ilInt).add(parent.getPubPoint());
+            ECPoint Ki = ECKey.CURVE.getG().multiply(ilInt).add(parentData.pubPoint);
             checkArgument(!Ki.equals(ECKey.CURVE.getCurve().getInfinity()),
                     "Illegal derived key: derived public key equals infinity.");
-            keyBytes = HDUtils.toCompressed(Ki.getEncoded());
+            // Hand the point over as is, rather than compressing and decompressing it again.
+            return new RawKeyBytes(null, Ki, chainCode);
         }
-        return new RawKeyBytes(keyBytes, chainCode);
     }
 
     private static void assertNonZero(BigInteger integer, String errorMessage) {
@@ -144,10 +230,30 @@ public final class HDKeyDerivation {
 
     private static class RawKeyBytes {
         private final byte[] keyBytes, chainCode;
+        private final ECPoint pubPoint;
 
-        private RawKeyBytes(byte[] keyBytes, byte[] chainCode) {
+        private RawKeyBytes(@Nullable byte[] keyBytes, @Nullable ECPoint pubPoint, byte[] chainCode) {
             this.keyBytes = keyBytes;
+            this.pubPoint = pubPoint;
             this.chainCode = chainCode;
         }
     }
+
+    /** The parts of a parent key that every child derivation needs, worked out once. */
+    private static class ParentData {
+        private final DeterministicKey parent;
+        private final ECPoint pubPoint;
+        private final byte[] pubKeyBytes;
+        @Nullable private final byte[] privKeyBytes33;
+        private final byte[] chainCode;
+
+        private ParentData(DeterministicKey parent, boolean privateDerivation) {
+            this.parent = parent;
+            this.pubPoint = parent.getPubPoint();
+            this.pubKeyBytes = pubPoint.getEncoded();
+            assert pubKeyBytes.length == 33 : pubKeyBytes.length;
+            this.privKeyBytes33 = privateDerivation && parent.hasPrivate() ? parent.getPrivKeyBytes33() : null;
+            this.chainCode = parent.getChainCode();
+        }
+    }
 }
@@ -19,6 +19,7 @@ package com.google.bitcoin.net;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
@@ -46,6 +47,9 @@ public class BlockingClient implements MessageWriteTarget {
     private final ByteBuffer dbuf;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Held by the network thread whilst reading is paused, see setReadingPaused().
+    private final Object readPauseLock = new Object();
+    @GuardedBy("readPauseLock") private boolean readingPaused = false;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -78,6 +82,7 @@ public class BlockingClient implements MessageWriteTarget {
                     byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
+                        waitWhileReadingPaused();
                         // TODO Kill the message duplication here
                         checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
                         int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
@@ -114,6 +119,13 @@ public class BlockingClient implements MessageWriteTarget {
         t.start();
     }
 
+    private void waitWhileReadingPaused() throws InterruptedException {
+        synchronized (readPauseLock) {
+            while (readingPaused && !vCloseRequested)
+                readPauseLock.wait();
+        }
+    }
+
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -126,6 +138,18 @@ public class BlockingClient implements MessageWriteTarget {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        // Wake the network thread up if it is waiting for reading to be resumed, so it notices.
+        synchronized (readPauseLock) {
+            readPauseLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readingPaused = paused;
+            readPauseLock.notifyAll();
+        }
     }
 
     @Override
@@ -28,7 +28,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
@@ -144,8 +143,8 @@ class ConnectionHandler implements MessageWriteTarget {
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            // The caller hands the array over to us (see MessageWriteTarget), so there is no need to copy it.
+            bytesToWrite.offer(ByteBuffer.wrap(message));
             bytesToWriteRemaining += message.length;
             setWriteOps();
         } catch (IOException e) {
@@ -162,6 +161,24 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // Refresh the selector to make sure it gets the new interestOps
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Already closed, so there is nothing left to pause or resume.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -23,9 +23,16 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. Implementations may queue the array itself rather than a copy of
+     * it, so callers must not modify it afterwards.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Stops or resumes reading from the connection. Whilst reading is paused no more bytes are passed to
+     * {@link StreamParser#receiveBytes(java.nio.ByteBuffer)}, so a remote end which keeps sending is eventually held
+     * back by TCP flow control. May be called from any thread, and never calls back into the parser.
+     */
+    void setReadingPaused(boolean paused);
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Runs the expiry actions of stored payment channels (closing them on the server side, broadcasting refunds on the
+ * client side) when they fall due. A single instance is shared by every {@link StoredPaymentChannelServerStates} and
+ * {@link StoredPaymentChannelClientStates} in the process, so the number of threads and scheduled objects does not grow
+ * with the number of open channels the way it did with one {@link java.util.Timer} task per channel.</p>
+ *
+ * <p>Pending actions are kept in a priority queue ordered by due time and are keyed by channel, so that a channel
+ * which is closed early has its action cancelled instead of leaving a dead task behind. The scheduler thread only
+ * waits for the head of the queue; due actions are run on {@link Threading#THREAD_POOL} so that one slow broadcast
+ * can't hold up the others.</p>
+ */
+class ChannelExpiryScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ChannelExpiryScheduler.class);
+
+    static final ChannelExpiryScheduler INSTANCE = new ChannelExpiryScheduler();
+
+    private static class Entry implements Comparable<Entry> {
+        final Object key;
+        final long dueTimeMillis;
+        final Runnable action;
+        final long sequence;
+        boolean cancelled;
+
+        Entry(Object key, long dueTimeMillis, Runnable action, long sequence) {
+            this.key = key;
+            this.dueTimeMillis = dueTimeMillis;
+            this.action = action;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (dueTimeMillis != other.dueTimeMillis)
+                return dueTimeMillis < other.dueTimeMillis ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("ChannelExpiryScheduler");
+    private final Condition headChanged = lock.newCondition();
+    @GuardedBy("lock") private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+    // Channels don't override equals/hashCode and must be matched by identity anyway.
+    @GuardedBy("lock") private final Map<Object, Entry> entries = new IdentityHashMap<Object, Entry>();
+    @GuardedBy("lock") private long nextSequence;
+    @GuardedBy("lock") private Thread thread;
+
+    /**
+     * Schedules the given action to run at the given wall clock time (as in {@link System#currentTimeMillis()}, not
+     * the mockable {@link com.google.bitcoin.core.Utils#currentTimeMillis()}). Any action previously scheduled for
+     * the same key is cancelled. If the time is in the past, the action runs as soon as possible.
+     */
+    void schedule(Object key, long dueTimeMillis, Runnable action) {
+        lock.lock();
+        try {
+            Entry previous = entries.remove(checkNotNull(key));
+            if (previous != null)
+                previous.cancelled = true;
+            Entry entry = new Entry(key, dueTimeMillis, checkNotNull(action), nextSequence++);
+            entries.put(key, entry);
+            queue.add(entry);
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runLoop();
+                    }
+                }, "Payment channel expiry");
+                thread.setDaemon(true);
+                thread.start();
+            } else if (queue.peek() == entry) {
+                headChanged.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Cancels the action scheduled for the given key, returning true if there was one that hadn't run yet. */
+    boolean cancel(Object key) {
+        lock.lock();
+        try {
+            Entry entry = entries.remove(key);
+            if (entry == null)
+                return false;
+            // Leave it in the queue, it'll be dropped when it reaches the head. Removing from the middle of the heap
+            // would be a linear scan.
+            entry.cancelled = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of actions that are scheduled and not cancelled. */
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runLoop() {
+        while (true) {
+            final Entry entry;
+            lock.lock();
+            try {
+                Entry head = queue.peek();
+                if (head == null) {
+                    // Nothing left to do, let the thread die. The next schedule() call will start a new one.
+                    thread = null;
+                    return;
+                }
+                if (head.cancelled) {
+                    queue.poll();
+                    continue;
+                }
+                long wait = head.dueTimeMillis - System.currentTimeMillis();
+                if (wait > 0) {
+                    headChanged.await(wait, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                entry = queue.poll();
+                entries.remove(entry.key);
+            } catch (InterruptedException e) {
+                // Nobody is expected to interrupt us, but if they do just re-check the queue.
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Threading.THREAD_POOL.execute(entry.action);
+            } catch (RuntimeException e) {
+                log.error("Failed to run channel expiry action", e);
+            }
+        }
+    }
+}
@@ -27,10 +27,9 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -45,7 +44,7 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
     static final String EXTENSION_ID = StoredPaymentChannelClientStates.class.getName();
 
     @GuardedBy("lock") @VisibleForTesting final HashMultimap<Sha256Hash, StoredClientChannel> mapChannels = HashMultimap.create();
-    @VisibleForTesting final Timer channelTimeoutHandler = new Timer(true);
+    private final ChannelExpiryScheduler channelTimeoutHandler = ChannelExpiryScheduler.INSTANCE;
 
     private Wallet containingWallet;
     private final TransactionBroadcaster announcePeerGroup;
@@ -169,15 +168,16 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
         lock.lock();
         try {
             mapChannels.put(channel.id, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
+            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
+            long expiryTimeMillis = channel.expiryTimeSeconds() * 1000 + (System.currentTimeMillis() - Utils.currentTimeMillis());
+            channelTimeoutHandler.schedule(channel, expiryTimeMillis, new Runnable() {
                 @Override
                 public void run() {
                     removeChannel(channel);
                     announcePeerGroup.broadcastTransaction(channel.contract);
                     announcePeerGroup.broadcastTransaction(channel.refund);
                 }
-                // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            }, new Date(channel.expiryTimeSeconds() * 1000 + (System.currentTimeMillis() - Utils.currentTimeMillis())));
+            });
         } finally {
             lock.unlock();
         }
@@ -186,17 +186,14 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
     }
 
     /**
-     * <p>Removes the channel with the given id from this set of stored states and notifies the wallet of an update to
-     * this wallet extension.</p>
-     *
-     * <p>Note that the channel will still have its contract and refund transactions broadcast via the connected
-     * {@link TransactionBroadcaster} as long as this {@link StoredPaymentChannelClientStates} continues to
-     * exist in memory.</p>
+     * Removes the channel with the given id from this set of stored states, cancels the broadcast of its contract and
+     * refund transactions at expiry, and notifies the wallet of an update to this wallet extension.
      */
     void removeChannel(StoredClientChannel channel) {
         lock.lock();
         try {
             mapChannels.remove(channel.id, channel);
+            channelTimeoutHandler.cancel(channel);
         } finally {
             lock.unlock();
         }
@@ -215,30 +212,19 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
 
     @Override
     public byte[] serializeWalletExtension() {
+        // Only copy the channel set under the lock, the (possibly slow) serialization happens outside of it. Channels
+        // cache their serialized form so only those which changed since the last save are rebuilt.
+        List<StoredClientChannel> channels;
         lock.lock();
         try {
-            ClientState.StoredClientPaymentChannels.Builder builder = ClientState.StoredClientPaymentChannels.newBuilder();
-            for (StoredClientChannel channel : mapChannels.values()) {
-                // First a few asserts to make sure things won't break
-                checkState(channel.valueToMe.compareTo(BigInteger.ZERO) >= 0 && channel.valueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
-                checkState(channel.refundFees.compareTo(BigInteger.ZERO) >= 0 && channel.refundFees.compareTo(NetworkParameters.MAX_MONEY) < 0);
-                checkNotNull(channel.myKey.getPrivKeyBytes());
-                checkState(channel.refund.getConfidence().getSource() == TransactionConfidence.Source.SELF);
-                final ClientState.StoredClientPaymentChannel.Builder value = ClientState.StoredClientPaymentChannel.newBuilder()
-                        .setId(ByteString.copyFrom(channel.id.getBytes()))
-                        .setContractTransaction(ByteString.copyFrom(channel.contract.bitcoinSerialize()))
-                        .setRefundTransaction(ByteString.copyFrom(channel.refund.bitcoinSerialize()))
-                        .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()))
-                        .setValueToMe(channel.valueToMe.longValue())
-                        .setRefundFees(channel.refundFees.longValue());
-                if (channel.close != null)
-                    value.setCloseTransactionHash(ByteString.copyFrom(channel.close.getHash().getBytes()));
-                builder.addChannels(value);
-            }
-            return builder.build().toByteArray();
+            channels = new ArrayList<StoredClientChannel>(mapChannels.values());
         } finally {
             lock.unlock();
         }
+        ClientState.StoredClientPaymentChannels.Builder builder = ClientState.StoredClientPaymentChannels.newBuilder();
+        for (StoredClientChannel channel : channels)
+            builder.addChannels(channel.toProto());
+        return builder.build().toByteArray();
     }
 
     @Override
@@ -297,6 +283,12 @@ class StoredClientChannel {
     // In-memory flag to indicate intent to resume this channel (or that the channel is already in use)
     boolean active = false;
 
+    // The serialized form of this channel and the values of the mutable fields it was built from. The fields are
+    // assigned directly by PaymentChannelClientState, so staleness is detected by comparing against them.
+    private ClientState.StoredClientPaymentChannel serialized;
+    private BigInteger serializedValueToMe;
+    private Transaction serializedClose;
+
     StoredClientChannel(Sha256Hash id, Transaction contract, Transaction refund, ECKey myKey, BigInteger valueToMe,
                         BigInteger refundFees, boolean active) {
         this.id = id;
@@ -312,6 +304,29 @@ class StoredClientChannel {
         return refund.getLockTime() + 60 * 5;
     }
 
+    synchronized ClientState.StoredClientPaymentChannel toProto() {
+        if (serialized != null && serializedValueToMe == valueToMe && serializedClose == close)
+            return serialized;
+        // First a few asserts to make sure things won't break
+        checkState(valueToMe.compareTo(BigInteger.ZERO) >= 0 && valueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
+        checkState(refundFees.compareTo(BigInteger.ZERO) >= 0 && refundFees.compareTo(NetworkParameters.MAX_MONEY) < 0);
+        checkNotNull(myKey.getPrivKeyBytes());
+        checkState(refund.getConfidence().getSource() == TransactionConfidence.Source.SELF);
+        final ClientState.StoredClientPaymentChannel.Builder value = ClientState.StoredClientPaymentChannel.newBuilder()
+                .setId(ByteString.copyFrom(id.getBytes()))
+                .setContractTransaction(ByteString.copyFrom(contract.bitcoinSerialize()))
+                .setRefundTransaction(ByteString.copyFrom(refund.bitcoinSerialize()))
+                .setMyKey(ByteString.copyFrom(myKey.getPrivKeyBytes()))
+                .setValueToMe(valueToMe.longValue())
+                .setRefundFees(refundFees.longValue());
+        if (close != null)
+            value.setCloseTransactionHash(ByteString.copyFrom(close.getHash().getBytes()));
+        serialized = value.build();
+        serializedValueToMe = valueToMe;
+        serializedClose = close;
+        return serialized;
+    }
+
     @Override
     public String toString() {
         final String newline = String.format("%n");
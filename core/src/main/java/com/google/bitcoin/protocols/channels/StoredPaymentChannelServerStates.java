@@ -19,12 +19,12 @@ package com.google.bitcoin.protocols.channels;
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.protobuf.ByteString;
-import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -38,12 +38,15 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     static final String EXTENSION_ID = StoredPaymentChannelServerStates.class.getName();
 
-    @GuardedBy("lock") @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new HashMap<Sha256Hash, StoredServerChannel>();
+    // A concurrent map so that looking up, adding and removing channels doesn't serialize on a single lock, which
+    // matters once there are many thousands of channels open.
+    @VisibleForTesting final ConcurrentMap<Sha256Hash, StoredServerChannel> mapChannels = new ConcurrentHashMap<Sha256Hash, StoredServerChannel>();
     private final Wallet wallet;
     private final TransactionBroadcaster broadcaster;
 
-    private final Timer channelTimeoutHandler = new Timer(true);
+    private final ChannelExpiryScheduler channelTimeoutHandler = ChannelExpiryScheduler.INSTANCE;
 
+    // Only used to stop deserialization racing with itself now.
     private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
 
     /**
@@ -73,13 +76,9 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * this wallet extension.</p>
      */
     public void closeChannel(StoredServerChannel channel) {
-        lock.lock();
-        try {
-            if (mapChannels.remove(channel.contract.getHash()) == null)
-                return;
-        } finally {
-            lock.unlock();
-        }
+        if (!mapChannels.remove(channel.contract.getHash(), channel))
+            return;
+        channelTimeoutHandler.cancel(channel);
         synchronized (channel) {
             channel.closeConnectedHandler();
             try {
@@ -98,12 +97,7 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * Gets the {@link StoredServerChannel} with the given channel id (ie contract transaction hash).
      */
     public StoredServerChannel getChannel(Sha256Hash id) {
-        lock.lock();
-        try {
-            return mapChannels.get(id);
-        } finally {
-            lock.unlock();
-        }
+        return mapChannels.get(id);
     }
 
     /**
@@ -114,23 +108,18 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * channel is already present in the set of channels.</p>
      */
     public void putChannel(final StoredServerChannel channel) {
-        lock.lock();
-        try {
-            checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
-            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            Date autocloseTime = new Date((channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
-                    + (System.currentTimeMillis() - Utils.currentTimeMillis()));
-            log.info("Scheduling channel for automatic closure at {}: {}", autocloseTime, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    log.info("Auto-closing channel: {}", channel);
-                    closeChannel(channel);
-                }
-            }, autocloseTime);
-        } finally {
-            lock.unlock();
-        }
+        checkArgument(mapChannels.putIfAbsent(channel.contract.getHash(), checkNotNull(channel)) == null);
+        // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
+        Date autocloseTime = new Date((channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
+                + (System.currentTimeMillis() - Utils.currentTimeMillis()));
+        log.info("Scheduling channel for automatic closure at {}: {}", autocloseTime, channel);
+        channelTimeoutHandler.schedule(channel, autocloseTime.getTime(), new Runnable() {
+            @Override
+            public void run() {
+                log.info("Auto-closing channel: {}", channel);
+                closeChannel(channel);
+            }
+        });
     }
 
     @Override
@@ -145,28 +134,12 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     @Override
     public byte[] serializeWalletExtension() {
-        lock.lock();
-        try {
-            ServerState.StoredServerPaymentChannels.Builder builder = ServerState.StoredServerPaymentChannels.newBuilder();
-            for (StoredServerChannel channel : mapChannels.values()) {
-                // First a few asserts to make sure things won't break
-                checkState(channel.bestValueToMe.compareTo(BigInteger.ZERO) >= 0 && channel.bestValueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
-                checkState(channel.refundTransactionUnlockTimeSecs > 0);
-                checkNotNull(channel.myKey.getPrivKeyBytes());
-                ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
-                        .setBestValueToMe(channel.bestValueToMe.longValue())
-                        .setRefundTransactionUnlockTimeSecs(channel.refundTransactionUnlockTimeSecs)
-                        .setContractTransaction(ByteString.copyFrom(channel.contract.bitcoinSerialize()))
-                        .setClientOutput(ByteString.copyFrom(channel.clientOutput.bitcoinSerialize()))
-                        .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()));
-                if (channel.bestValueSignature != null)
-                    channelBuilder.setBestValueSignature(ByteString.copyFrom(channel.bestValueSignature));
-                builder.addChannels(channelBuilder);
-            }
-            return builder.build().toByteArray();
-        } finally {
-            lock.unlock();
-        }
+        // Channels cache their own serialized form and only rebuild it when they changed since the last save, so
+        // this is mostly a matter of concatenating byte strings. No lock is needed as the map is concurrent.
+        ServerState.StoredServerPaymentChannels.Builder builder = ServerState.StoredServerPaymentChannels.newBuilder();
+        for (StoredServerChannel channel : mapChannels.values())
+            builder.addChannels(channel.toProto());
+        return builder.build().toByteArray();
     }
 
     @Override
@@ -193,15 +166,10 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     @Override
     public String toString() {
-        lock.lock();
-        try {
-            StringBuilder buf = new StringBuilder();
-            for (StoredServerChannel stored : mapChannels.values()) {
-                buf.append(stored);
-            }
-            return buf.toString();
-        } finally {
-            lock.unlock();
+        StringBuilder buf = new StringBuilder();
+        for (StoredServerChannel stored : mapChannels.values()) {
+            buf.append(stored);
         }
+        return buf.toString();
     }
 }
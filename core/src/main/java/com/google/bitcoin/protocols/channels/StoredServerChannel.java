@@ -17,12 +17,15 @@
 package com.google.bitcoin.protocols.channels;
 
 import com.google.bitcoin.core.*;
+import com.google.protobuf.ByteString;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.Date;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Represents the state of a channel once it has been opened in such a way that it can be stored and used to resume a
@@ -41,6 +44,8 @@ public class StoredServerChannel {
     // Used as a flag to prevent duplicate connections and to disconnect the channel if its expire time approaches.
     private PaymentChannelServer connectedHandler = null;
     PaymentChannelServerState state = null;
+    // The serialized form of this channel as of the last wallet save, or null if it changed since.
+    private ServerState.StoredServerPaymentChannel serialized;
 
     StoredServerChannel(@Nullable PaymentChannelServerState state, Transaction contract, TransactionOutput clientOutput,
                         long refundTransactionUnlockTimeSecs, ECKey myKey, BigInteger bestValueToMe, @Nullable byte[] bestValueSignature) {
@@ -60,6 +65,30 @@ public class StoredServerChannel {
     synchronized void updateValueToMe(BigInteger newValue, byte[] newSignature) {
         this.bestValueToMe = newValue;
         this.bestValueSignature = newSignature;
+        this.serialized = null;
+    }
+
+    /**
+     * Returns the protobuf form of this channel for {@link StoredPaymentChannelServerStates#serializeWalletExtension()}.
+     * Only the value and signature change after construction, so the result is cached until they are updated.
+     */
+    synchronized ServerState.StoredServerPaymentChannel toProto() {
+        if (serialized != null)
+            return serialized;
+        // First a few asserts to make sure things won't break
+        checkState(bestValueToMe.compareTo(BigInteger.ZERO) >= 0 && bestValueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
+        checkState(refundTransactionUnlockTimeSecs > 0);
+        checkNotNull(myKey.getPrivKeyBytes());
+        ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
+                .setBestValueToMe(bestValueToMe.longValue())
+                .setRefundTransactionUnlockTimeSecs(refundTransactionUnlockTimeSecs)
+                .setContractTransaction(ByteString.copyFrom(contract.bitcoinSerialize()))
+                .setClientOutput(ByteString.copyFrom(clientOutput.bitcoinSerialize()))
+                .setMyKey(ByteString.copyFrom(myKey.getPrivKeyBytes()));
+        if (bestValueSignature != null)
+            channelBuilder.setBestValueSignature(ByteString.copyFrom(bestValueSignature));
+        serialized = channelBuilder.build();
+        return serialized;
     }
 
     /**
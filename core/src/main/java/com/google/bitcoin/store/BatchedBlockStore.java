@@ -0,0 +1,33 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.StoredBlock;
+
+import java.util.List;
+
+/**
+ * A {@link BlockStore} that can save many blocks in a single write. Implementing it is optional: when connecting many
+ * block headers at once, {@link com.google.bitcoin.core.AbstractBlockChain} uses {@link #putAll(List)} if the store
+ * implements this interface, and otherwise calls {@link BlockStore#put(StoredBlock)} for each block.
+ */
+public interface BatchedBlockStore extends BlockStore {
+    /**
+     * Saves the given blocks, as if {@link #put(StoredBlock)} was called on each in turn, but as a single write.
+     */
+    void putAll(List<StoredBlock> blocks) throws BlockStoreException;
+}
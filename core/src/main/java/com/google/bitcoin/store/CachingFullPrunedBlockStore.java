@@ -0,0 +1,272 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Wraps another {@link FullPrunedBlockStore} and keeps recently created and looked up unspent outputs in memory.
+ * Most of the outputs a block spends were created in the last few blocks, so with a cache in front of a SQL store
+ * most of the lookups {@link com.google.bitcoin.core.FullPrunedBlockChain} makes whilst verifying a block never reach
+ * the database.</p>
+ *
+ * <p>Outputs added and removed during a database batch write are held back and handed to the wrapped store all at
+ * once when the batch is committed, so an output that is created and spent within the same batch is never written at
+ * all. Aborting a batch simply forgets them. The cache only ever holds outputs as they are in the wrapped store
+ * outside of a batch, so it doesn't have to be rolled back. Batches are tracked per thread, like the stores
+ * themselves do.</p>
+ *
+ * <p>Everything other than unspent outputs is passed straight through.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore, BatchedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default number of unspent outputs kept in memory. */
+    public static final int DEFAULT_CACHE_SIZE = 200000;
+
+    private final FullPrunedBlockStore store;
+
+    @GuardedBy("this") private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> cache;
+    @GuardedBy("this") private long hits, misses;
+
+    private final ThreadLocal<PendingOutputChanges> pendingOutputs = new ThreadLocal<PendingOutputChanges>();
+
+    /** Wraps the given store with a cache of {@link #DEFAULT_CACHE_SIZE} unspent outputs. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_CACHE_SIZE);
+    }
+
+    /** Wraps the given store, keeping at most the given number of unspent outputs in memory. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, final int cacheSize) {
+        checkArgument(cacheSize > 0);
+        this.store = store;
+        // Access ordered, so the least recently used output is evicted first.
+        this.cache = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /** Returns the store this one wraps. */
+    public FullPrunedBlockStore getStore() {
+        return store;
+    }
+
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutput out = pending.getAdded(hash, index);
+            if (out != null || pending.isRemoved(hash, index))
+                return out;
+        }
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        synchronized (this) {
+            StoredTransactionOutput out = cache.get(key);
+            if (out != null) {
+                hits++;
+                return out;
+            }
+            misses++;
+        }
+        StoredTransactionOutput out = store.getTransactionOutput(hash, index);
+        // Outside of a batch the wrapped store could have changed since the lookup, so only batches fill the cache.
+        if (out != null && pending != null) {
+            synchronized (this) {
+                cache.put(key, out);
+            }
+        }
+        return out;
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.add(out);
+            return;
+        }
+        store.addUnspentTransactionOutput(out);
+        synchronized (this) {
+            cache.put(new StoredTransactionOutPoint(out), out);
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            // This is normally answered by the cache, as the output was just looked up to verify the spend.
+            if (getTransactionOutput(out.getHash(), out.getIndex()) == null || !pending.remove(out))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+            return;
+        }
+        synchronized (this) {
+            cache.remove(new StoredTransactionOutPoint(out));
+        }
+        store.removeUnspentTransactionOutput(out);
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null && pending.getAddedCount(hash) > 0)
+            return true;
+        synchronized (this) {
+            for (int i = 0; i < numOutputs; i++) {
+                if (cache.containsKey(new StoredTransactionOutPoint(hash, i)) && (pending == null || !pending.isRemoved(hash, i)))
+                    return true;
+            }
+        }
+        if (!store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (pending == null || pending.getRemovedCount(hash) == 0)
+            return true;
+        // Some of them were spent in this batch, so check whether any are left.
+        for (int i = 0; i < numOutputs; i++) {
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        }
+        return false;
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        pendingOutputs.set(new PendingOutputChanges());
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        pendingOutputs.remove();
+        try {
+            if (pending != null) {
+                // Removals first, as an output may have been removed and then added back within the batch.
+                for (StoredTransactionOutput out : pending.getRemoved())
+                    store.removeUnspentTransactionOutput(out);
+                for (StoredTransactionOutput out : pending.getAdded())
+                    store.addUnspentTransactionOutput(out);
+            }
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        if (pending != null) {
+            synchronized (this) {
+                for (StoredTransactionOutput out : pending.getRemoved())
+                    cache.remove(new StoredTransactionOutPoint(out));
+                // New outputs are the most likely to be spent soon.
+                for (StoredTransactionOutput out : pending.getAdded())
+                    cache.put(new StoredTransactionOutPoint(out), out);
+            }
+        }
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        pendingOutputs.remove();
+        store.abortDatabaseBatchWrite();
+    }
+
+    /** Returns the number of unspent output lookups that were answered from memory. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of unspent output lookups that had to go to the wrapped store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns the fraction of unspent output lookups that were answered from memory, or zero if there were none. */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** Returns the number of unspent outputs currently held in memory. */
+    public synchronized int getCacheSize() {
+        return cache.size();
+    }
+
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        store.put(storedBlock);
+    }
+
+    public void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        if (store instanceof BatchedBlockStore) {
+            ((BatchedBlockStore) store).putAll(blocks);
+        } else {
+            for (StoredBlock block : blocks)
+                store.put(block);
+        }
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return store.getVerifiedChainHead();
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setVerifiedChainHead(chainHead);
+    }
+
+    public void close() throws BlockStoreException {
+        synchronized (this) {
+            log.info("Closing with {} unspent outputs cached, hit rate {}", cache.size(), getHitRate());
+            cache.clear();
+        }
+        store.close();
+    }
+}
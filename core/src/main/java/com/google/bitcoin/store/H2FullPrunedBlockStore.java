@@ -27,8 +27,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -39,7 +41,7 @@ import java.util.List;
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
  */
-public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
+public class H2FullPrunedBlockStore implements FullPrunedBlockStore, BatchedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
 
     private Sha256Hash chainHeadHash;
@@ -51,6 +53,12 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
+    // The unspent output statements run for every input and output of a block, so they are only prepared once per
+    // connection.
+    private ThreadLocal<Map<String, PreparedStatement>> statements;
+    private List<Map<String, PreparedStatement>> allStatements;
+    // Unspent output changes made since beginDatabaseBatchWrite, written out when the batch is committed.
+    private ThreadLocal<PendingOutputChanges> pendingOutputs;
 
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
@@ -60,6 +68,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CHAIN_HEAD_SETTING = "chainhead";
     static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
     static final String VERSION_SETTING = "version";
+    // Version 04 packs the value and script of each open output into a single column.
+    static final String CURRENT_VERSION = "04";
+    static final int UNCOMPRESSED_OUTPUTS_VERSION = 3;
 
     static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers ( "
         + "hash BINARY(28) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
@@ -81,11 +92,17 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + "hash BINARY(32) NOT NULL,"
         + "index INT NOT NULL,"
         + "height INT NOT NULL,"
-        + "value BLOB NOT NULL,"
-        + "scriptBytes BLOB NOT NULL,"
+        // The value and script, as packed by TransactionOutputCompressor.
+        + "output VARBINARY NOT NULL,"
         + "PRIMARY KEY (hash, index),"
         + ")";
 
+    static final String SELECT_OPEN_OUTPUT = "SELECT height, output FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String INSERT_OPEN_OUTPUT = "INSERT INTO openOutputs (hash, index, height, output) VALUES (?, ?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_OPEN_OUTPUTS = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+    static final int DUPLICATE_KEY_ERROR_CODE = 23505;
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -102,6 +119,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<Map<String, PreparedStatement>>();
+        allStatements = new LinkedList<Map<String, PreparedStatement>>();
+        pendingOutputs = new ThreadLocal<PendingOutputChanges>();
 
         try {
             Class.forName(driver);
@@ -157,7 +177,46 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
+    // Returns the cached statement for the given SQL on this thread's connection, preparing it on first use.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statements.get();
+        if (cache == null) {
+            cache = new HashMap<String, PreparedStatement>();
+            statements.set(cache);
+            synchronized (this) {
+                allStatements.add(cache);
+            }
+        }
+        PreparedStatement s = cache.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            cache.put(sql, s);
+        }
+        return s;
+    }
+
+    private synchronized void closeStatements() {
+        for (Map<String, PreparedStatement> cache : allStatements) {
+            for (PreparedStatement s : cache.values()) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    log.warn("Failed to close PreparedStatement", e);
+                }
+            }
+            cache.clear();
+        }
+    }
+
+    private static void close(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null)
+            try {
+                results.close();
+            } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+    }
+
     public synchronized void close() {
+        closeStatements();
         for (Connection conn : allConnections) {
             try {
                 conn.rollback();
@@ -170,6 +229,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public void resetStore() throws BlockStoreException {
         maybeConnect();
+        closeStatements();
+        pendingOutputs.remove();
         try {
             Statement s = conn.get().createStatement();
             s.executeUpdate("DROP TABLE settings");
@@ -203,7 +264,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
-        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
+        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '" + CURRENT_VERSION + "')");
         s.close();
         createNewStore(params);
     }
@@ -214,7 +275,21 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         while (rs.next())
             if (rs.getString(1).equalsIgnoreCase("openOutputsIndex"))
                 throw new BlockStoreException("Attempted to open a H2 database with an old schema, please reset database.");
-        
+        rs.close();
+
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        if (!rs.next()) {
+            throw new BlockStoreException("corrupt H2 block store - no version");
+        }
+        byte[] version = rs.getBytes(1);
+        rs.close();
+        if (version.length == 1 && version[0] == UNCOMPRESSED_OUTPUTS_VERSION)
+            migrateOpenOutputs();
+        else if (version.length != 1 || version[0] != Integer.parseInt(CURRENT_VERSION, 16))
+            // Most likely written by a newer version, which this one could corrupt.
+            throw new BlockStoreException("Attempted to open a H2 block store of unknown version " +
+                    Utils.bytesToHexString(version));
+
         rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
         if (!rs.next()) {
             throw new BlockStoreException("corrupt H2 block store - no chain head pointer");
@@ -243,6 +318,70 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /**
+     * Rewrites the open outputs of a version 03 database, which kept the value and script of each output in BLOBs of
+     * their own, using {@link TransactionOutputCompressor}. H2 commits every table change straight away, so this can't
+     * be one transaction. Instead the outputs are copied into openOutputsNew, and the old table is only dropped and
+     * the new one renamed once the copy is complete. The version is updated last, so a conversion that didn't finish
+     * is picked up from wherever it stopped the next time the database is opened. This takes a while for a store that
+     * is in sync with the main chain.
+     */
+    private void migrateOpenOutputs() throws SQLException, BlockStoreException {
+        Statement s = conn.get().createStatement();
+        try {
+            if (tableExists("openOutputsOld")) {
+                // Left by an earlier version of this method, which renamed the old table out of the way first.
+                if (tableExists("openOutputs"))
+                    s.executeUpdate("DROP TABLE openOutputs");
+                s.executeUpdate("ALTER TABLE openOutputsOld RENAME TO openOutputs");
+            }
+            if (!tableExists("openOutputs")) {
+                // Stopped between dropping the old table and renaming the new one, which is complete.
+                if (!tableExists("openOutputsNew"))
+                    throw new BlockStoreException("corrupt H2 block store - no open outputs table");
+                s.executeUpdate("ALTER TABLE openOutputsNew RENAME TO openOutputs");
+            } else if (!columnExists("openOutputs", "output")) {
+                // Whatever was copied before the conversion stopped is thrown away.
+                if (tableExists("openOutputsNew"))
+                    s.executeUpdate("DROP TABLE openOutputsNew");
+                copyOpenOutputs();
+                s.executeUpdate("DROP TABLE openOutputs");
+                s.executeUpdate("ALTER TABLE openOutputsNew RENAME TO openOutputs");
+            }
+            // Otherwise it stopped after renaming the new table, so only the version is left to do.
+            s.executeUpdate("UPDATE settings SET value = '" + CURRENT_VERSION + "' WHERE name = '" + VERSION_SETTING + "'");
+        } finally {
+            s.close();
+        }
+    }
+
+    private void copyOpenOutputs() throws SQLException {
+        log.info("Converting open outputs to the compact encoding, this may take a while");
+        long start = System.currentTimeMillis();
+        Connection connection = conn.get();
+        Statement s = connection.createStatement();
+        try {
+            s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE.replaceFirst("openOutputs", "openOutputsNew"));
+            PreparedStatement insert = connection.prepareStatement(INSERT_OPEN_OUTPUT.replaceFirst("openOutputs", "openOutputsNew"));
+            ResultSet rs = s.executeQuery("SELECT hash, index, height, value, scriptBytes FROM openOutputs");
+            int count = 0;
+            while (rs.next()) {
+                StoredTransactionOutput out = new StoredTransactionOutput(new Sha256Hash(rs.getBytes(1)), rs.getInt(2),
+                        new BigInteger(rs.getBytes(4)), rs.getInt(3), true, rs.getBytes(5));
+                setOpenOutput(insert, out);
+                insert.addBatch();
+                if (++count % 10000 == 0)
+                    insert.executeBatch();
+            }
+            insert.executeBatch();
+            rs.close();
+            insert.close();
+            log.info("Converted {} open outputs in {} ms", count, System.currentTimeMillis() - start);
+        } finally {
+            s.close();
+        }
+    }
+
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
         try {
             // Set up the genesis block. When we start out fresh, it is by
@@ -272,6 +411,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.close();
         }
     }
+
+    private boolean columnExists(String table, String column) throws SQLException {
+        Statement s = conn.get().createStatement();
+        try {
+            ResultSet results = s.executeQuery("SELECT " + column + " FROM " + table + " WHERE 1 = 2");
+            results.close();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            s.close();
+        }
+    }
     
     /**
      * Dumps information about the size of actual data in the database to standard output
@@ -323,20 +475,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         System.out.printf("Undoable Blocks size: %d, count: %d, average size: %f%n", size, count, (double)size/count);
         
         totalSize += size; size = 0; count = 0;
-        long scriptSize = 0;
-        rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
+        long outputSize = 0;
+        rs = s.executeQuery("SELECT output FROM openOutputs");
         while (rs.next()) {
             size += 32; // hash
             size += 4; // index
             size += 4; // height
             size += rs.getBytes(1).length;
-            size += rs.getBytes(2).length;
-            scriptSize += rs.getBytes(2).length;
+            outputSize += rs.getBytes(1).length;
             count++;
         }
         rs.close();
-        System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average script size: %f (%d in id indexes)%n",
-                size, count, (double)size/count, (double)scriptSize/count, count * 8);
+        System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average packed output size: %f (%d in id indexes)%n",
+                size, count, (double)size/count, (double)outputSize/count, count * 8);
         
         totalSize += size;
         System.out.println("Total Size: " + totalSize);
@@ -386,6 +537,31 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
+    public void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        maybeConnect();
+        try {
+            // Unless we are inside a batch write already, write all of them in one database transaction.
+            boolean ownTransaction = conn.get().getAutoCommit();
+            if (ownTransaction)
+                conn.get().setAutoCommit(false);
+            try {
+                for (StoredBlock block : blocks)
+                    putUpdateStoredBlock(block, false);
+                if (ownTransaction)
+                    conn.get().commit();
+            } catch (SQLException e) {
+                if (ownTransaction)
+                    conn.get().rollback();
+                throw e;
+            } finally {
+                if (ownTransaction)
+                    conn.get().setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
@@ -636,80 +812,118 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutput out = pending.getAdded(hash, index);
+            if (out != null || pending.isRemoved(hash, index))
+                return out;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                        "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
             // Parse it.
-            int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            return TransactionOutputCompressor.decompress(hash, index, results.getInt(1), results.getBytes(2));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            close(results);
         }
     }
 
+    private static void setOpenOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, TransactionOutputCompressor.compress(out));
+    }
+
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.add(out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT);
+            setOpenOutput(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
+            if (e.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            // Whether the output is really in the database is checked when the batch is written.
+            if (!pending.remove(out))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            int updateCount = s.getUpdateCount();
-            s.close();
-            if (updateCount == 0)
+            if (s.executeUpdate() == 0)
                 throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Writes the unspent output changes of the current batch with one batched DELETE and one batched INSERT.
+    private void writePendingOutputs() throws SQLException, BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending == null || pending.isEmpty())
+            return;
+        // Deletes go first, as an output may have been removed and then added back within the batch.
+        if (!pending.getRemoved().isEmpty()) {
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
+            for (StoredTransactionOutput out : pending.getRemoved()) {
+                s.setBytes(1, out.getHash().getBytes());
+                s.setInt(2, (int)out.getIndex());
+                s.addBatch();
+            }
+            for (int updateCount : s.executeBatch())
+                if (updateCount == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        }
+        if (!pending.getAdded().isEmpty()) {
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT);
+            for (StoredTransactionOutput out : pending.getAdded()) {
+                setOpenOutput(s, out);
+                s.addBatch();
+            }
+            try {
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                // As with a single insert, an output that is already there (a duplicated coinbase) isn't an error.
+                if (e.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
+                    throw e;
+                for (SQLException next = e.getNextException(); next != null; next = next.getNextException())
+                    if (next.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
+                        throw e;
+            }
+        }
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
             conn.get().setAutoCommit(false);
+            pendingOutputs.set(new PendingOutputChanges());
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -718,15 +932,23 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
+            writePendingOutputs();
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
+            abortDatabaseBatchWrite();
             throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            abortDatabaseBatchWrite();
+            throw e;
+        } finally {
+            pendingOutputs.remove();
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        pendingOutputs.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -737,24 +959,25 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null && pending.getAddedCount(hash) > 0)
+            return true;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS);
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            if (pending != null)
+                count -= pending.getRemovedCount(hash);
+            return count > 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            close(results);
         }
     }
 }
@@ -0,0 +1,364 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.bitcoin.wallet.WalletTransaction.Pool;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Holds the spent and dead transactions of a wallet that was loaded with
+ * {@link com.google.bitcoin.core.Wallet#loadFromFile(File, boolean)}, without turning them into {@link Transaction}
+ * objects. Large wallets spend most of their loading time and memory on old history that is rarely looked at, so
+ * instead the serialized transactions are copied to a temporary file as the wallet is parsed and only an index of
+ * them is kept in memory. The wallet materializes a transaction from here the first time it is asked for it, and
+ * writes the ones that were never needed back out unchanged when it is saved.</p>
+ *
+ * <p>Spent and dead transactions that are directly connected to an unspent or pending one are always loaded, so the
+ * spendable outputs of the wallet and its balance are the same as if the whole wallet had been loaded.</p>
+ */
+public class LazyTransactionHistory {
+    private static final Logger log = LoggerFactory.getLogger(LazyTransactionHistory.class);
+
+    private static class Entry {
+        final long offset;
+        final int length;
+        final long updatedAt;
+        final Pool pool;
+        // The height of the block the transaction appeared in, or -1 if it isn't building.
+        final int appearedAtHeight;
+
+        Entry(long offset, int length, long updatedAt, Pool pool, int appearedAtHeight) {
+            this.offset = offset;
+            this.length = length;
+            this.updatedAt = updatedAt;
+            this.pool = pool;
+            this.appearedAtHeight = appearedAtHeight;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile data;
+    // Kept in file order, so saving reads the file sequentially.
+    private final Map<Sha256Hash, Entry> entries = new LinkedHashMap<Sha256Hash, Entry>();
+    private long dataLength;
+    private boolean parsed;
+    // The file is only closed once no snapshot is still reading from it, see clear().
+    private int openSnapshots;
+    private boolean cleared, closed;
+
+    public LazyTransactionHistory() throws IOException {
+        file = File.createTempFile("wallet-history", ".tmp");
+        file.deleteOnExit();
+        data = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Parses a serialized {@link Protos.Wallet} from the given stream, moving its spent and dead transactions into this
+     * history as they are read. The returned wallet proto holds everything else. This can only be called once.
+     */
+    public synchronized Protos.Wallet parseWallet(InputStream input) throws IOException {
+        checkState(!parsed, "Already parsed a wallet");
+        parsed = true;
+        CodedInputStream in = CodedInputStream.newInstance(input);
+        in.setSizeLimit(Integer.MAX_VALUE);
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream out = CodedOutputStream.newInstance(rest);
+        // Buffered so spilling doesn't cost a system call per transaction. Closing it would close the file.
+        BufferedOutputStream spill = new BufferedOutputStream(Channels.newOutputStream(data.getChannel()), 64 * 1024);
+        List<Protos.Transaction> kept = new ArrayList<Protos.Transaction>();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            final int field = WireFormat.getTagFieldNumber(tag);
+            final int wireType = WireFormat.getTagWireType(tag);
+            if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                ByteString bytes = in.readBytes();
+                Protos.Transaction txProto = Protos.Transaction.parseFrom(bytes);
+                Pool pool = getLazyPool(txProto);
+                if (pool != null) {
+                    bytes.writeTo(spill);
+                    put(txProto, pool, bytes.size());
+                } else {
+                    kept.add(txProto);
+                }
+            } else {
+                switch (wireType) {
+                    case WireFormat.WIRETYPE_VARINT: out.writeUInt64(field, in.readUInt64()); break;
+                    case WireFormat.WIRETYPE_FIXED64: out.writeFixed64(field, in.readFixed64()); break;
+                    case WireFormat.WIRETYPE_LENGTH_DELIMITED: out.writeBytes(field, in.readBytes()); break;
+                    case WireFormat.WIRETYPE_FIXED32: out.writeFixed32(field, in.readFixed32()); break;
+                    default: throw new InvalidProtocolBufferException("Unexpected wire type " + wireType + " in wallet");
+                }
+            }
+            // The size limit applies to everything read so far, not each field.
+            in.resetSizeCounter();
+        }
+        spill.flush();
+        out.flush();
+
+        // Load whatever the unspent and pending transactions are directly connected to, so spends and balances are
+        // calculated from complete data.
+        Set<Sha256Hash> connected = new HashSet<Sha256Hash>();
+        for (Protos.Transaction txProto : kept) {
+            for (Protos.TransactionInput inputProto : txProto.getTransactionInputList())
+                connected.add(WalletProtobufSerializer.byteStringToHash(inputProto.getTransactionOutPointHash()));
+            for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList())
+                if (outputProto.hasSpentByTransactionHash())
+                    connected.add(WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash()));
+        }
+        for (Sha256Hash hash : connected) {
+            Entry entry = entries.remove(hash);
+            if (entry != null)
+                kept.add(read(entry));
+        }
+        log.info("Loaded {} wallet transactions, left {} in the history file", kept.size(), entries.size());
+        return Protos.Wallet.newBuilder().mergeFrom(rest.toByteString()).addAllTransaction(kept).build();
+    }
+
+    @Nullable
+    private static Pool getLazyPool(Protos.Transaction txProto) {
+        switch (txProto.getPool()) {
+            case SPENT: return Pool.SPENT;
+            case DEAD: return Pool.DEAD;
+            default: return null;
+        }
+    }
+
+    private void put(Protos.Transaction txProto, Pool pool, int length) {
+        int appearedAtHeight = -1;
+        if (txProto.hasConfidence()) {
+            Protos.TransactionConfidence confidence = txProto.getConfidence();
+            if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING && confidence.hasAppearedAtHeight())
+                appearedAtHeight = confidence.getAppearedAtHeight();
+        }
+        Sha256Hash hash = WalletProtobufSerializer.byteStringToHash(txProto.getHash());
+        entries.put(hash, new Entry(dataLength, length, txProto.getUpdatedAt(), pool, appearedAtHeight));
+        dataLength += length;
+    }
+
+    private Protos.Transaction read(Entry entry) throws IOException {
+        return Protos.Transaction.parseFrom(readBytes(entry));
+    }
+
+    private synchronized byte[] readBytes(Entry entry) throws IOException {
+        byte[] bytes = new byte[entry.length];
+        data.seek(entry.offset);
+        data.readFully(bytes);
+        return bytes;
+    }
+
+    /** Returns true if the transaction with the given hash is in this history, ie, hasn't been materialized yet. */
+    public synchronized boolean contains(Sha256Hash hash) {
+        return entries.containsKey(hash);
+    }
+
+    /** Returns the pool the given transaction is in, or null if it isn't in this history. */
+    @Nullable
+    public synchronized Pool getPool(Sha256Hash hash) {
+        Entry entry = entries.get(hash);
+        return entry == null ? null : entry.pool;
+    }
+
+    /** Returns the number of transactions not yet materialized. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Returns the number of transactions from the given pool not yet materialized. */
+    public synchronized int size(Pool pool) {
+        int size = 0;
+        for (Entry entry : entries.values())
+            if (entry.pool == pool)
+                size++;
+        return size;
+    }
+
+    /** Returns the hashes of all transactions not yet materialized. */
+    public synchronized List<Sha256Hash> getHashes() {
+        return new ArrayList<Sha256Hash>(entries.keySet());
+    }
+
+    /**
+     * Returns the hashes of the given number of most recently updated transactions, newest first, or all of them if
+     * numTransactions is zero.
+     */
+    public synchronized List<Sha256Hash> getRecentHashes(int numTransactions, boolean includeDead) {
+        List<Map.Entry<Sha256Hash, Entry>> all = new ArrayList<Map.Entry<Sha256Hash, Entry>>();
+        for (Map.Entry<Sha256Hash, Entry> entry : entries.entrySet())
+            if (includeDead || entry.getValue().pool != Pool.DEAD)
+                all.add(entry);
+        Collections.sort(all, new Comparator<Map.Entry<Sha256Hash, Entry>>() {
+            public int compare(Map.Entry<Sha256Hash, Entry> e1, Map.Entry<Sha256Hash, Entry> e2) {
+                long t1 = e1.getValue().updatedAt, t2 = e2.getValue().updatedAt;
+                return t1 < t2 ? 1 : (t1 > t2 ? -1 : 0);
+            }
+        });
+        if (numTransactions > 0 && numTransactions < all.size())
+            all = all.subList(0, numTransactions);
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(all.size());
+        for (Map.Entry<Sha256Hash, Entry> entry : all)
+            hashes.add(entry.getKey());
+        return hashes;
+    }
+
+    /**
+     * Returns the height each building transaction not yet materialized appeared at, so depths can be worked out
+     * without loading them.
+     */
+    public synchronized Map<Sha256Hash, Integer> getAppearedAtHeights() {
+        Map<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+        for (Map.Entry<Sha256Hash, Entry> entry : entries.entrySet())
+            if (entry.getValue().appearedAtHeight >= 0)
+                heights.put(entry.getKey(), entry.getValue().appearedAtHeight);
+        return heights;
+    }
+
+    /**
+     * Removes the given transaction from this history and returns it, connected to the transactions in the loaded
+     * map it spends or is spent by. The caller is expected to add it to the wallet.
+     */
+    public synchronized WalletTransaction materialize(Sha256Hash hash, NetworkParameters params,
+                                                      Map<Sha256Hash, Transaction> loaded) throws UnreadableWalletException {
+        Entry entry = entries.get(hash);
+        checkState(entry != null, "Transaction %s is not in the wallet history", hash);
+        Protos.Transaction txProto;
+        try {
+            txProto = read(entry);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read transaction " + hash + " from the wallet history", e);
+        }
+        WalletTransaction wtx = new WalletProtobufSerializer().readWalletTransaction(txProto, params, loaded);
+        entries.remove(hash);
+        return wtx;
+    }
+
+    /**
+     * Adds the transactions not yet materialized to the given wallet proto, as they were when the wallet was loaded.
+     * The outputs of transactions already in the proto are marked as spent by the transactions added here, as the
+     * wallet couldn't connect them in memory.
+     */
+    public void addTo(Protos.Wallet.Builder walletBuilder) {
+        snapshot().addTo(walletBuilder);
+    }
+
+    /**
+     * Returns the transactions not yet materialized at this point. Reading them back is left to
+     * {@link Snapshot#addTo(Protos.Wallet.Builder)}, so whoever takes the snapshot whilst holding the wallet lock
+     * needn't keep holding it whilst the history file is read. That must be called exactly once.
+     */
+    public synchronized Snapshot snapshot() {
+        openSnapshots++;
+        return new Snapshot(new ArrayList<Entry>(entries.values()));
+    }
+
+    /** The transactions not yet materialized when {@link #snapshot()} was called. */
+    public class Snapshot {
+        private final List<Entry> snapshotEntries;
+        private boolean added;
+
+        private Snapshot(List<Entry> snapshotEntries) {
+            this.snapshotEntries = snapshotEntries;
+        }
+
+        /** Adds the transactions to the given wallet proto, see {@link LazyTransactionHistory#addTo(Protos.Wallet.Builder)}. */
+        public void addTo(Protos.Wallet.Builder walletBuilder) {
+            checkState(!added, "Snapshot already added");
+            added = true;
+            try {
+                addEntries(snapshotEntries, walletBuilder);
+            } finally {
+                snapshotClosed();
+            }
+        }
+    }
+
+    private synchronized void snapshotClosed() {
+        if (--openSnapshots == 0 && cleared)
+            close();
+    }
+
+    private void addEntries(List<Entry> entries, Protos.Wallet.Builder walletBuilder) {
+        if (entries.isEmpty())
+            return;
+        Map<ByteString, Integer> positions = new HashMap<ByteString, Integer>();
+        for (int i = 0; i < walletBuilder.getTransactionCount(); i++)
+            positions.put(walletBuilder.getTransaction(i).getHash(), i);
+        try {
+            for (Entry entry : entries) {
+                Protos.Transaction txProto = read(entry);
+                walletBuilder.addTransaction(txProto);
+                // Dead transactions are disconnected from what they tried to spend.
+                if (entry.pool == Pool.DEAD)
+                    continue;
+                for (int i = 0; i < txProto.getTransactionInputCount(); i++) {
+                    Protos.TransactionInput inputProto = txProto.getTransactionInput(i);
+                    Integer position = positions.get(inputProto.getTransactionOutPointHash());
+                    int index = inputProto.getTransactionOutPointIndex();
+                    if (position == null || index < 0 || index >= walletBuilder.getTransaction(position).getTransactionOutputCount())
+                        continue;
+                    Protos.TransactionOutput.Builder outputBuilder =
+                            walletBuilder.getTransactionBuilder(position).getTransactionOutputBuilder(index);
+                    if (!outputBuilder.hasSpentByTransactionHash())
+                        outputBuilder.setSpentByTransactionHash(txProto.getHash()).setSpentByTransactionIndex(i);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the wallet history", e);
+        }
+    }
+
+    /**
+     * Forgets all transactions not yet materialized and deletes the history file, once any snapshots taken before
+     * have been added.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        cleared = true;
+        if (openSnapshots == 0)
+            close();
+    }
+
+    private void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            data.close();
+        } catch (IOException e) {
+            log.warn("Could not close the wallet history file", e);
+        }
+        if (!file.delete())
+            log.warn("Could not delete the wallet history file {}", file);
+    }
+}
@@ -0,0 +1,509 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.common.collect.Lists;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>A full pruned block store kept in H2's MVStore, a log structured key-value store, rather than in SQL tables. It
+ * keeps the same data as {@link H2FullPrunedBlockStore} in four maps: headers by hash, undoable blocks by hash with
+ * an index of them by height for pruning, and unspent outputs keyed by their 36 byte outpoint (the transaction hash
+ * followed by the big endian output index). Skipping SQL parsing and row handling makes the unspent output lookups
+ * done for every input of a block much cheaper.</p>
+ *
+ * <p>Unspent output changes made during a database batch write are held in memory and put into the map when the
+ * batch is committed, together with a single MVStore commit for the whole batch. Aborting a batch rolls the store back
+ * to the last commit. Outside of a batch every write is committed straight away. Unlike the SQL stores, a batch is
+ * not isolated from other threads: the store is meant to be written to by one {@link AbstractBlockChain} at a
+ * time.</p>
+ */
+public class MVStoreFullPrunedBlockStore implements FullPrunedBlockStore, BatchedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MVStoreFullPrunedBlockStore.class);
+
+    static final String SETTINGS_MAP = "settings";
+    static final String HEADERS_MAP = "headers";
+    static final String UNDOABLE_BLOCKS_MAP = "undoableBlocks";
+    static final String UNDOABLE_HEIGHTS_MAP = "undoableHeights";
+    static final String OPEN_OUTPUTS_MAP = "openOutputs";
+
+    static final String CHAIN_HEAD_SETTING = "chainhead";
+    static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
+    static final String VERSION_SETTING = "version";
+    // Version 2 packs the value and script of each unspent output with TransactionOutputCompressor.
+    static final byte[] VERSION = new byte[] { 2 };
+    static final byte[] UNCOMPRESSED_OUTPUTS_VERSION = new byte[] { 1 };
+
+    private static final int OUTPOINT_SIZE = 36;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private final MVStore kvStore;
+    private final MVMap<String, byte[]> settings;
+    // Compact serialized StoredBlock followed by the wasUndoable flag.
+    private final MVMap<byte[], byte[]> headers;
+    // Height, then a flag saying whether the rest is TransactionOutputChanges or a list of transactions.
+    private final MVMap<byte[], byte[]> undoableBlocks;
+    // Height to the concatenated hashes of the undoable blocks at that height.
+    private final MVMap<Integer, byte[]> undoableHeights;
+    // Height of each unspent output followed by its value and script, as packed by TransactionOutputCompressor.
+    private final MVMap<byte[], byte[]> openOutputs;
+
+    private Sha256Hash chainHeadHash;
+    private StoredBlock chainHeadBlock;
+    private Sha256Hash verifiedChainHeadHash;
+    private StoredBlock verifiedChainHeadBlock;
+
+    // Unspent output changes made since beginDatabaseBatchWrite, put into the map when the batch is committed.
+    private final ThreadLocal<PendingOutputChanges> pendingOutputs = new ThreadLocal<PendingOutputChanges>();
+
+    /**
+     * Creates a new MVStoreFullPrunedBlockStore
+     * @param params A copy of the NetworkParameters used
+     * @param fileName The path to the store on disk, or null to keep it in memory
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public MVStoreFullPrunedBlockStore(NetworkParameters params, @Nullable String fileName, int fullStoreDepth)
+            throws BlockStoreException {
+        this.params = params;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        try {
+            MVStore.Builder builder = new MVStore.Builder().autoCommitDisabled();
+            if (fileName != null)
+                builder.fileName(fileName);
+            kvStore = builder.open();
+            settings = kvStore.openMap(SETTINGS_MAP);
+            headers = kvStore.openMap(HEADERS_MAP);
+            undoableBlocks = kvStore.openMap(UNDOABLE_BLOCKS_MAP);
+            undoableHeights = kvStore.openMap(UNDOABLE_HEIGHTS_MAP);
+            openOutputs = kvStore.openMap(OPEN_OUTPUTS_MAP);
+        } catch (IllegalStateException e) {
+            // MVStore reports files it can't open or read this way.
+            throw new BlockStoreException(e);
+        }
+        if (settings.get(VERSION_SETTING) == null) {
+            createNewStore();
+        } else {
+            initFromStore();
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by
+            // definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable. This is because of how the reference client inits
+            // its database - the genesis transaction isn't actually in the db so its spent flags can never be updated.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            settings.put(VERSION_SETTING, VERSION);
+            kvStore.commit();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private void initFromStore() throws BlockStoreException {
+        byte[] version = settings.get(VERSION_SETTING);
+        if (Arrays.equals(version, UNCOMPRESSED_OUTPUTS_VERSION))
+            migrateOpenOutputs();
+        else if (!Arrays.equals(version, VERSION))
+            throw new BlockStoreException("Attempted to open an MVStore block store of unknown version " + version[0]);
+
+        byte[] hashBytes = settings.get(CHAIN_HEAD_SETTING);
+        if (hashBytes == null)
+            throw new BlockStoreException("corrupt MVStore block store - no chain head pointer");
+        Sha256Hash hash = new Sha256Hash(hashBytes);
+        this.chainHeadHash = null;
+        this.chainHeadBlock = get(hash);
+        this.chainHeadHash = hash;
+        if (this.chainHeadBlock == null)
+            throw new BlockStoreException("corrupt MVStore block store - head block not found");
+
+        hashBytes = settings.get(VERIFIED_CHAIN_HEAD_SETTING);
+        if (hashBytes == null)
+            throw new BlockStoreException("corrupt MVStore block store - no verified chain head pointer");
+        hash = new Sha256Hash(hashBytes);
+        this.verifiedChainHeadHash = null;
+        this.verifiedChainHeadBlock = get(hash);
+        this.verifiedChainHeadHash = hash;
+        if (this.verifiedChainHeadBlock == null)
+            throw new BlockStoreException("corrupt MVStore block store - verified head block not found");
+    }
+
+    /**
+     * Rewrites the unspent outputs of a version 1 store, which kept the value of each output as a long followed by
+     * its script, using {@link TransactionOutputCompressor}. The rewritten outputs and the new version go out in one
+     * MVStore commit, so a conversion that doesn't finish leaves the store as it was.
+     */
+    private void migrateOpenOutputs() {
+        log.info("Converting unspent outputs to the compact encoding, this may take a while");
+        long start = System.currentTimeMillis();
+        int count = 0;
+        // The cursor reads the map as it was when created, so replacing the values as we go is safe.
+        Iterator<byte[]> keys = openOutputs.keyIterator(null);
+        while (keys.hasNext()) {
+            byte[] key = keys.next();
+            ByteBuffer buffer = ByteBuffer.wrap(openOutputs.get(key));
+            int height = buffer.getInt();
+            BigInteger value = BigInteger.valueOf(buffer.getLong());
+            byte[] scriptBytes = new byte[buffer.remaining()];
+            buffer.get(scriptBytes);
+            Sha256Hash hash = new Sha256Hash(Arrays.copyOf(key, 32));
+            long index = ((key[32] & 0xFFL) << 24) | ((key[33] & 0xFFL) << 16) | ((key[34] & 0xFFL) << 8) | (key[35] & 0xFFL);
+            openOutputs.put(key, serializeOutput(new StoredTransactionOutput(hash, index, value, height, true, scriptBytes)));
+            count++;
+        }
+        settings.put(VERSION_SETTING, VERSION);
+        kvStore.commit();
+        log.info("Converted {} unspent outputs in {} ms", count, System.currentTimeMillis() - start);
+    }
+
+    /** Throws away everything in the store and starts again from the genesis block. */
+    public synchronized void resetStore() throws BlockStoreException {
+        pendingOutputs.remove();
+        settings.clear();
+        headers.clear();
+        undoableBlocks.clear();
+        undoableHeights.clear();
+        openOutputs.clear();
+        chainHeadHash = verifiedChainHeadHash = null;
+        createNewStore();
+    }
+
+    public synchronized void close() {
+        pendingOutputs.remove();
+        if (kvStore.isClosed())
+            return;
+        // Anything not committed is an abandoned batch, so don't let close() write it out.
+        kvStore.rollbackTo(kvStore.getCurrentVersion());
+        kvStore.close();
+    }
+
+    // Commits the given change straight away unless this thread is in the middle of a batch.
+    private void maybeCommit() {
+        if (pendingOutputs.get() == null)
+            kvStore.commit();
+    }
+
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        putUpdateStoredBlock(storedBlock, false);
+        maybeCommit();
+    }
+
+    public void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        for (StoredBlock block : blocks)
+            putUpdateStoredBlock(block, false);
+        maybeCommit();
+    }
+
+    private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) {
+        byte[] key = storedBlock.getHeader().getHash().getBytes();
+        // As with the SQL stores, a header that is already there only ever gets marked as having been undoable.
+        if (!wasUndoable && headers.containsKey(key))
+            return;
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        storedBlock.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        headers.put(key, buffer.array());
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        byte[] hashBytes = storedBlock.getHeader().getHash().getBytes();
+        int height = storedBlock.getHeight();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(0xFF & (height >> 24));
+            bos.write(0xFF & (height >> 16));
+            bos.write(0xFF & (height >> 8));
+            bos.write(0xFF & height);
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(1);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(0);
+                int numTxn = undoableBlock.getTransactions().size();
+                bos.write(0xFF & (numTxn >> 0));
+                bos.write(0xFF & (numTxn >> 8));
+                bos.write(0xFF & (numTxn >> 16));
+                bos.write(0xFF & (numTxn >> 24));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        if (undoableBlocks.put(hashBytes, bos.toByteArray()) == null) {
+            byte[] hashes = undoableHeights.get(height);
+            if (hashes == null) {
+                undoableHeights.put(height, hashBytes);
+            } else {
+                byte[] newHashes = new byte[hashes.length + hashBytes.length];
+                System.arraycopy(hashes, 0, newHashes, 0, hashes.length);
+                System.arraycopy(hashBytes, 0, newHashes, hashes.length, hashBytes.length);
+                undoableHeights.put(height, newHashes);
+            }
+        }
+        putUpdateStoredBlock(storedBlock, true);
+        maybeCommit();
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        if (chainHeadHash != null && chainHeadHash.equals(hash))
+            return chainHeadBlock;
+        if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
+            return verifiedChainHeadBlock;
+        byte[] bytes = headers.get(hash.getBytes());
+        if (bytes == null)
+            return null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+            if (wasUndoableOnly && buffer.get() == 0)
+                return null;
+            block.getHeader().verifyHeader();
+            return block;
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (VerificationException e) {
+            // Should not be able to happen unless the database contains bad
+            // blocks.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] bytes = undoableBlocks.get(hash.getBytes());
+        if (bytes == null)
+            return null;
+        try {
+            // Skip the height.
+            int offset = 4;
+            if (bytes[offset++] == 1) {
+                TransactionOutputChanges outChangesObject =
+                        new TransactionOutputChanges(new ByteArrayInputStream(bytes, offset, bytes.length - offset));
+                return new StoredUndoableBlock(hash, outChangesObject);
+            }
+            int numTxn = ((bytes[offset++] & 0xFF) << 0) |
+                         ((bytes[offset++] & 0xFF) << 8) |
+                         ((bytes[offset++] & 0xFF) << 16) |
+                         ((bytes[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, bytes, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return chainHeadBlock;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.chainHeadHash = hash;
+        this.chainHeadBlock = chainHead;
+        settings.put(CHAIN_HEAD_SETTING, hash.getBytes());
+        maybeCommit();
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHeadBlock;
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.verifiedChainHeadHash = hash;
+        this.verifiedChainHeadBlock = chainHead;
+        settings.put(VERIFIED_CHAIN_HEAD_SETTING, hash.getBytes());
+        if (this.chainHeadBlock == null || this.chainHeadBlock.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        maybeCommit();
+    }
+
+    private void removeUndoableBlocksWhereHeightIsLessThan(int height) {
+        List<Integer> heights = new ArrayList<Integer>();
+        Iterator<Integer> it = undoableHeights.keyIterator(null);
+        while (it.hasNext()) {
+            Integer h = it.next();
+            if (h > height)
+                break;
+            heights.add(h);
+        }
+        for (Integer h : heights) {
+            byte[] hashes = undoableHeights.remove(h);
+            for (int offset = 0; offset < hashes.length; offset += 32) {
+                byte[] hashBytes = new byte[32];
+                System.arraycopy(hashes, offset, hashBytes, 0, 32);
+                undoableBlocks.remove(hashBytes);
+            }
+        }
+    }
+
+    private static byte[] outPointKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[OUTPOINT_SIZE];
+        System.arraycopy(hash.getBytes(), 0, key, 0, 32);
+        // index is actually an unsigned int
+        key[32] = (byte) (index >> 24);
+        key[33] = (byte) (index >> 16);
+        key[34] = (byte) (index >> 8);
+        key[35] = (byte) index;
+        return key;
+    }
+
+    private static byte[] serializeOutput(StoredTransactionOutput out) {
+        byte[] packed = TransactionOutputCompressor.compress(out);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + packed.length);
+        buffer.putInt(out.getHeight());
+        buffer.put(packed);
+        return buffer.array();
+    }
+
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutput out = pending.getAdded(hash, index);
+            if (out != null || pending.isRemoved(hash, index))
+                return out;
+        }
+        byte[] bytes = openOutputs.get(outPointKey(hash, index));
+        if (bytes == null)
+            return null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int height = buffer.getInt();
+        byte[] packed = new byte[buffer.remaining()];
+        buffer.get(packed);
+        return TransactionOutputCompressor.decompress(hash, index, height, packed);
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.add(out);
+            return;
+        }
+        openOutputs.put(outPointKey(out.getHash(), out.getIndex()), serializeOutput(out));
+        kvStore.commit();
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            // Whether the output is really in the store is checked when the batch is committed.
+            if (!pending.remove(out))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MVStoreFullPrunedBlockStore that it didn't have!");
+            return;
+        }
+        if (openOutputs.remove(outPointKey(out.getHash(), out.getIndex())) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MVStoreFullPrunedBlockStore that it didn't have!");
+        kvStore.commit();
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null && pending.getAddedCount(hash) > 0)
+            return true;
+        for (int i = 0; i < numOutputs; i++) {
+            if (openOutputs.containsKey(outPointKey(hash, i)) && (pending == null || !pending.isRemoved(hash, i)))
+                return true;
+        }
+        return false;
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        pendingOutputs.set(new PendingOutputChanges());
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        try {
+            if (pending != null) {
+                // Removals go first, as an output may have been removed and then added back within the batch.
+                for (StoredTransactionOutput out : pending.getRemoved())
+                    if (openOutputs.remove(outPointKey(out.getHash(), out.getIndex())) == null)
+                        throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MVStoreFullPrunedBlockStore that it didn't have!");
+                for (StoredTransactionOutput out : pending.getAdded())
+                    openOutputs.put(outPointKey(out.getHash(), out.getIndex()), serializeOutput(out));
+            }
+            kvStore.commit();
+        } catch (BlockStoreException e) {
+            abortDatabaseBatchWrite();
+            throw e;
+        } catch (IllegalStateException e) {
+            abortDatabaseBatchWrite();
+            throw new BlockStoreException(e);
+        } finally {
+            pendingOutputs.remove();
+        }
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        pendingOutputs.remove();
+        kvStore.rollbackTo(kvStore.getCurrentVersion());
+        // The chain heads may have been moved during the batch.
+        initFromStore();
+    }
+}
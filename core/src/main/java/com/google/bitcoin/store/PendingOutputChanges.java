@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * The unspent outputs added and removed since a SQL block store began a database batch write. They are written out
+ * with one batched statement each when the batch is committed, rather than a round trip per output, and an output that
+ * is created and spent within the same batch never reaches the database at all. Reads made during the batch must
+ * consult this first, as the database doesn't know about any of it yet.
+ */
+class PendingOutputChanges {
+    private final Map<StoredTransactionOutput, StoredTransactionOutput> added =
+            new LinkedHashMap<StoredTransactionOutput, StoredTransactionOutput>();
+    private final Set<StoredTransactionOutput> removed = new LinkedHashSet<StoredTransactionOutput>();
+    private final Map<Sha256Hash, Integer> addedCounts = new HashMap<Sha256Hash, Integer>();
+    private final Map<Sha256Hash, Integer> removedCounts = new HashMap<Sha256Hash, Integer>();
+
+    void add(StoredTransactionOutput out) {
+        if (added.put(out, out) == null)
+            adjust(addedCounts, out.getHash(), 1);
+    }
+
+    /**
+     * Records the removal of the given output. Returns false if the output was already removed in this batch, which
+     * means the caller is trying to spend it twice.
+     */
+    boolean remove(StoredTransactionOutput out) {
+        if (added.remove(out) != null) {
+            adjust(addedCounts, out.getHash(), -1);
+            return true;
+        }
+        if (!removed.add(out))
+            return false;
+        adjust(removedCounts, out.getHash(), 1);
+        return true;
+    }
+
+    private static void adjust(Map<Sha256Hash, Integer> counts, Sha256Hash hash, int delta) {
+        Integer count = counts.get(hash);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount == 0)
+            counts.remove(hash);
+        else
+            counts.put(hash, newCount);
+    }
+
+    /** Returns the output if it was added in this batch. */
+    @Nullable
+    StoredTransactionOutput getAdded(Sha256Hash hash, long index) {
+        return added.get(key(hash, index));
+    }
+
+    /** Returns true if the output was removed from the database in this batch (it may have been added again since). */
+    boolean isRemoved(Sha256Hash hash, long index) {
+        return removed.contains(key(hash, index));
+    }
+
+    int getAddedCount(Sha256Hash hash) {
+        Integer count = addedCounts.get(hash);
+        return count == null ? 0 : count;
+    }
+
+    int getRemovedCount(Sha256Hash hash) {
+        Integer count = removedCounts.get(hash);
+        return count == null ? 0 : count;
+    }
+
+    /** Outputs to insert, in the order they were added. */
+    Collection<StoredTransactionOutput> getAdded() {
+        return added.values();
+    }
+
+    /** Outputs to delete, in the order they were removed. These must be deleted before the inserts are made. */
+    Collection<StoredTransactionOutput> getRemoved() {
+        return removed;
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    // StoredTransactionOutput equality only looks at the hash and index.
+    private static StoredTransactionOutput key(Sha256Hash hash, long index) {
+        return new StoredTransactionOutput(hash, index, BigInteger.ZERO, 0, false, new byte[0]);
+    }
+}
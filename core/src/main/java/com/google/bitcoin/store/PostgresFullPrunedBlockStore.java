@@ -22,6 +22,7 @@ import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -29,12 +30,16 @@ import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * <p>A full pruned block store using the Postgres database engine. As an added bonus an address index is calculated,
  * so you can use {@link #calculateBalanceForAddress(com.google.bitcoin.core.Address)} to quickly look up
- * the quantity of bitcoins controlled by that address.</p>
+ * the quantity of bitcoins controlled by that address. {@link #calculateBalancesForAddresses(java.util.Collection)}
+ * and {@link #getOpenOutputsForAddresses(java.util.Collection, int, StoredTransactionOutput, int)} do the same for
+ * many addresses at once, and list the open outputs themselves a page at a time.</p>
  */
-public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
+public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore, BatchedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(PostgresFullPrunedBlockStore.class);
     private static final String POSTGRES_DUPLICATE_KEY_ERROR_CODE = "23505";
 
@@ -49,6 +54,12 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private int fullStoreDepth;
     private String username;
     private String password;
+    // The unspent output statements run for every input and output of a block, so they are only prepared once per
+    // connection.
+    private ThreadLocal<Map<String, PreparedStatement>> statements;
+    private List<Map<String, PreparedStatement>> allStatements;
+    // Unspent output changes made since beginDatabaseBatchWrite, written out when the batch is committed.
+    private ThreadLocal<PendingOutputChanges> pendingOutputs;
 
     private static final String driver = "org.postgresql.Driver";
     private static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings (\n" +
@@ -83,11 +94,37 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             "    addresstargetable integer" +
             ");";
 
+    private static final String SELECT_OPEN_OUTPUT = "SELECT height, value, scriptBytes FROM openOutputs " +
+            "WHERE hash = ? AND index = ?";
+    private static final String INSERT_OPEN_OUTPUT = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes, " +
+            "toAddress, addressTargetable) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    // A failed statement aborts the whole Postgres transaction, so within a batch write an output that is already there
+    // (a duplicated coinbase) has to be skipped by the insert itself rather than by catching the duplicate key error.
+    private static final String INSERT_OPEN_OUTPUT_IF_ABSENT = "INSERT INTO openOutputs (hash, index, height, value, " +
+            "scriptBytes, toAddress, addressTargetable) SELECT ?, ?, ?, ?, ?, ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM openOutputs WHERE hash = ? AND index = ?)";
+    private static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    private static final String COUNT_OPEN_OUTPUTS = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+
+    // The values are BigInteger.toByteArray() bytes, which Postgres can turn into a number by way of their hex text.
+    private static final String OUTPUT_VALUE = "('x'||lpad(substr(value::text, 3, 50),16,'0'))::bit(64)::bigint";
+    private static final String SELECT_ADDRESS_BALANCES = "SELECT toaddress, sum(" + OUTPUT_VALUE + ") FROM openoutputs " +
+            "WHERE toaddress = ANY(?) GROUP BY toaddress";
+    private static final String SELECT_ADDRESS_OUTPUTS = "SELECT hash, index, height, value, scriptbytes FROM openoutputs " +
+            "WHERE toaddress = ANY(?) AND height >= ? ORDER BY height, hash, index LIMIT ?";
+    private static final String SELECT_ADDRESS_OUTPUTS_AFTER = "SELECT hash, index, height, value, scriptbytes FROM openoutputs " +
+            "WHERE toaddress = ANY(?) AND height >= ? AND (height, hash, index) > (?, ?, ?) ORDER BY height, hash, index LIMIT ?";
+
     private static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
     // Some indexes to speed up inserts
     private static final String CREATE_HEADERS_HASH_INDEX = "CREATE INDEX headershashindex ON headers USING btree (hash);";
-    private static final String CREATE_OUTPUTS_ADDRESS_INDEX = "CREATE INDEX idx_address ON openoutputs USING btree (hash, index, height, toaddress);";
+    // Serves the address queries: the outputs of an address in height order, so a page is a single index range scan.
+    // Databases created before this index existed have an idx_address index on (hash, index, height, toaddress)
+    // instead, which can't be used to look up an address and may be dropped.
+    private static final String OUTPUTS_TO_ADDRESS_INDEX = "openoutputstoaddress";
+    private static final String CREATE_OUTPUTS_TO_ADDRESS_INDEX = "CREATE INDEX " + OUTPUTS_TO_ADDRESS_INDEX +
+            " ON openoutputs USING btree (toaddress, height, hash, index);";
     private static final String CREATE_OUTPUT_ADDRESS_TYPE_INDEX = "CREATE INDEX idx_addresstargetable ON openoutputs USING btree (addresstargetable);";
     private static final String CREATE_OUTPUTS_HASH_INDEX = "CREATE INDEX openoutputshash ON openoutputs USING btree (hash);";
     private static final String CREATE_OUTPUTS_HASH_INDEX_INDEX = "CREATE INDEX openoutputshashindex ON openoutputs USING btree (hash, index);";
@@ -116,6 +153,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<Map<String, PreparedStatement>>();
+        allStatements = new LinkedList<Map<String, PreparedStatement>>();
+        pendingOutputs = new ThreadLocal<PendingOutputChanges>();
 
         try {
             Class.forName(driver);
@@ -157,7 +197,46 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Returns the cached statement for the given SQL on this thread's connection, preparing it on first use.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statements.get();
+        if (cache == null) {
+            cache = new HashMap<String, PreparedStatement>();
+            statements.set(cache);
+            synchronized (this) {
+                allStatements.add(cache);
+            }
+        }
+        PreparedStatement s = cache.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            cache.put(sql, s);
+        }
+        return s;
+    }
+
+    private synchronized void closeStatements() {
+        for (Map<String, PreparedStatement> cache : allStatements) {
+            for (PreparedStatement s : cache.values()) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    log.warn("Failed to close PreparedStatement", e);
+                }
+            }
+            cache.clear();
+        }
+    }
+
+    private static void close(ResultSet results) throws BlockStoreException {
+        if (results != null)
+            try {
+                results.close();
+            } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+    }
+
     public synchronized void close() {
+        closeStatements();
         for (Connection conn : allConnections) {
             try {
                 conn.rollback();
@@ -170,6 +249,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public void resetStore() throws BlockStoreException {
         maybeConnect();
+        // Cached plans would refer to the dropped tables.
+        closeStatements();
+        pendingOutputs.remove();
         try {
             Statement s = conn.get().createStatement();
             s.execute("DROP TABLE settings");
@@ -208,7 +290,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         // Create indexes..
         s.executeUpdate(CREATE_HEADERS_HASH_INDEX);
         s.executeUpdate(CREATE_OUTPUT_ADDRESS_TYPE_INDEX);
-        s.executeUpdate(CREATE_OUTPUTS_ADDRESS_INDEX);
+        s.executeUpdate(CREATE_OUTPUTS_TO_ADDRESS_INDEX);
         s.executeUpdate(CREATE_OUTPUTS_HASH_INDEX);
         s.executeUpdate(CREATE_OUTPUTS_HASH_INDEX_INDEX);
         s.executeUpdate(CREATE_UNDOABLE_HASH_INDEX);
@@ -225,6 +307,13 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         Statement s = conn.get().createStatement();
         ResultSet rs;
 
+        rs = s.executeQuery("SELECT 1 FROM pg_indexes WHERE indexname = '" + OUTPUTS_TO_ADDRESS_INDEX + "'");
+        if (!rs.next()) {
+            log.info("Creating the address index on openoutputs, this may take a while");
+            s.executeUpdate(CREATE_OUTPUTS_TO_ADDRESS_INDEX);
+        }
+        rs.close();
+
         rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
         if (!rs.next()) {
             throw new BlockStoreException("corrupt Postgres block store - no chain head pointer");
@@ -394,6 +483,31 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    public void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        maybeConnect();
+        try {
+            // Unless we are inside a batch write already, write all of them in one database transaction.
+            boolean ownTransaction = conn.get().getAutoCommit();
+            if (ownTransaction)
+                conn.get().setAutoCommit(false);
+            try {
+                for (StoredBlock block : blocks)
+                    putUpdateStoredBlock(block, false);
+                if (ownTransaction)
+                    conn.get().commit();
+            } catch (SQLException e) {
+                if (ownTransaction)
+                    conn.get().rollback();
+                throw e;
+            } finally {
+                if (ownTransaction)
+                    conn.get().setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
@@ -670,15 +784,19 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutput out = pending.getAdded(hash, index);
+            if (out != null || pending.isRemoved(hash, index))
+                return out;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                            "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -691,17 +809,11 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            close(results);
         }
     }
 
-    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
-
+    private void setOpenOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
         // Calculate the toAddress (if any)
         String dbAddress = "";
         int type = 0;
@@ -741,48 +853,86 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             }
         }
 
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+        s.setString(6, dbAddress);
+        s.setInt(7, type);
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        maybeConnect();
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.add(out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT);
+            setOpenOutput(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            // Whether the output is really in the database is checked when the batch is written.
+            if (!pending.remove(out))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            if (s.executeUpdate() == 0)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Writes the unspent output changes of the current batch with one batched DELETE and one batched INSERT.
+    private void writePendingOutputs() throws SQLException, BlockStoreException {
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending == null || pending.isEmpty())
+            return;
+        // Deletes go first, as an output may have been removed and then added back within the batch.
+        if (!pending.getRemoved().isEmpty()) {
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
+            for (StoredTransactionOutput out : pending.getRemoved()) {
+                s.setBytes(1, out.getHash().getBytes());
+                s.setInt(2, (int)out.getIndex());
+                s.addBatch();
+            }
+            for (int updateCount : s.executeBatch())
+                if (updateCount == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+        }
+        if (!pending.getAdded().isEmpty()) {
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT_IF_ABSENT);
+            for (StoredTransactionOutput out : pending.getAdded()) {
+                setOpenOutput(s, out);
+                s.setBytes(8, out.getHash().getBytes());
+                s.setInt(9, (int)out.getIndex());
+                s.addBatch();
+            }
+            s.executeBatch();
+        }
+        if (log.isDebugEnabled())
+            log.debug("Wrote " + pending.getRemoved().size() + " output removals and " + pending.getAdded().size() +
+                    " output additions");
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
 
         maybeConnect();
@@ -792,6 +942,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             conn.get().setAutoCommit(false);
+            pendingOutputs.set(new PendingOutputChanges());
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -805,10 +956,17 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
 
         try {
+            writePendingOutputs();
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
+            abortDatabaseBatchWrite();
             throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            abortDatabaseBatchWrite();
+            throw e;
+        } finally {
+            pendingOutputs.remove();
         }
     }
 
@@ -818,6 +976,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
 
+        pendingOutputs.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -832,24 +991,25 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null && pending.getAddedCount(hash) > 0)
+            return true;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS);
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            if (pending != null)
+                count -= pending.getRemovedCount(hash);
+            return count > 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            close(results);
         }
     }
 
@@ -888,5 +1048,92 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /**
+     * Calculates the balances of many coinbase, to-address or p2sh addresses with a single query. Like
+     * {@link #calculateBalanceForAddress(com.google.bitcoin.core.Address)}, this only sees committed outputs.
+     * @param addresses The addresses to calculate the balances of
+     * @return The balance of each address supplied, in the order they were given. Addresses without any open outputs
+     *         have a balance of 0
+     * @throws BlockStoreException
+     */
+    public Map<Address, BigInteger> calculateBalancesForAddresses(Collection<Address> addresses) throws BlockStoreException {
+        maybeConnect();
+        Map<Address, BigInteger> balances = new LinkedHashMap<Address, BigInteger>();
+        Map<String, Address> byString = new HashMap<String, Address>();
+        for (Address address : addresses) {
+            balances.put(address, BigInteger.ZERO);
+            byString.put(address.toString(), address);
+        }
+        if (addresses.isEmpty())
+            return balances;
+        ResultSet results = null;
+        try {
+            PreparedStatement s = prepare(SELECT_ADDRESS_BALANCES);
+            s.setArray(1, addressArray(byString.keySet()));
+            results = s.executeQuery();
+            while (results.next())
+                balances.put(byString.get(results.getString(1)), BigInteger.valueOf(results.getLong(2)));
+            return balances;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            close(results);
+        }
+    }
+
+    /**
+     * Returns a page of the open outputs that pay any of the given addresses, ordered by the height they were created
+     * at and then by outpoint. To get the next page, pass the last output of this one as <tt>after</tt>. This only sees
+     * committed outputs.
+     * @param addresses The coinbase, to-address or p2sh addresses to look up
+     * @param sinceHeight Only outputs created at this height or later are returned. Use 0 for all of them
+     * @param after The last output of the previous page, or null for the first page
+     * @param limit The maximum number of outputs to return
+     * @throws BlockStoreException
+     */
+    public List<StoredTransactionOutput> getOpenOutputsForAddresses(Collection<Address> addresses, int sinceHeight,
+            @Nullable StoredTransactionOutput after, int limit) throws BlockStoreException {
+        checkArgument(limit > 0, "limit must be positive");
+        maybeConnect();
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        if (addresses.isEmpty())
+            return outputs;
+        Set<String> addressStrings = new HashSet<String>();
+        for (Address address : addresses)
+            addressStrings.add(address.toString());
+        ResultSet results = null;
+        try {
+            PreparedStatement s;
+            if (after == null) {
+                s = prepare(SELECT_ADDRESS_OUTPUTS);
+                s.setInt(3, limit);
+            } else {
+                s = prepare(SELECT_ADDRESS_OUTPUTS_AFTER);
+                s.setInt(3, after.getHeight());
+                s.setBytes(4, after.getHash().getBytes());
+                s.setInt(5, (int) after.getIndex());
+                s.setInt(6, limit);
+            }
+            s.setArray(1, addressArray(addressStrings));
+            s.setInt(2, sinceHeight);
+            results = s.executeQuery();
+            while (results.next()) {
+                // index is actually an unsigned int
+                long index = results.getInt(2) & 0xFFFFFFFFL;
+                BigInteger value = new BigInteger(results.getBytes(4));
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                outputs.add(new StoredTransactionOutput(new Sha256Hash(results.getBytes(1)), index, value,
+                        results.getInt(3), true, results.getBytes(5)));
+            }
+            return outputs;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            close(results);
+        }
+    }
 
+    private Array addressArray(Collection<String> addresses) throws SQLException {
+        return conn.get().createArrayOf("varchar", addresses.toArray(new String[addresses.size()]));
+    }
 }
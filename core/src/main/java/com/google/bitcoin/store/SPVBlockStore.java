@@ -31,6 +31,7 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -43,7 +44,7 @@ import static com.google.common.base.Preconditions.checkState;
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements BatchedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -182,6 +183,32 @@ public class SPVBlockStore implements BlockStore {
         } finally { lock.unlock(); }
     }
 
+    public void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            // Write the records one after the other, and only move the ring cursor once at the end.
+            int cursor = getRingCursor(buffer);
+            final int fileSize = getFileSize();
+            for (StoredBlock block : blocks) {
+                if (cursor == fileSize) {
+                    // Wrapped around.
+                    cursor = FILE_PROLOGUE_BYTES;
+                }
+                buffer.position(cursor);
+                Sha256Hash hash = block.getHeader().getHash();
+                notFoundCache.remove(hash);
+                buffer.put(hash.getBytes());
+                block.serializeCompact(buffer);
+                cursor = buffer.position();
+                blockCache.put(hash, block);
+            }
+            setRingCursor(buffer, cursor);
+        } finally { lock.unlock(); }
+    }
+
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
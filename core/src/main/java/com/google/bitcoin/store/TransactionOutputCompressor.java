@@ -0,0 +1,252 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static com.google.bitcoin.script.ScriptOpCodes.*;
+
+/**
+ * <p>Packs the value and script of an unspent output the same way the reference client does in its chainstate. The
+ * value is stored as a variable length integer after dropping trailing decimal zeros, and the common script templates
+ * are replaced by a one byte type followed by their payload:</p>
+ *
+ * <ul>
+ *     <li>0: pay to address, followed by the 20 byte key hash</li>
+ *     <li>1: pay to script hash, followed by the 20 byte script hash</li>
+ *     <li>2 or 3: pay to compressed public key, followed by its 32 byte x coordinate</li>
+ *     <li>4 or 5: pay to uncompressed public key, followed by its 32 byte x coordinate. The key is recovered from the
+ *     curve when the output is read back.</li>
+ * </ul>
+ *
+ * <p>Any other script is stored as its length plus six followed by the script itself. A typical pay to address output
+ * takes around 23 bytes this way, against 30 or more as a value BLOB and a script BLOB.</p>
+ */
+public final class TransactionOutputCompressor {
+    private static final int SPECIAL_SCRIPTS = 6;
+
+    private TransactionOutputCompressor() {}
+
+    /** Returns the compact encoding of the value and script of the given output. */
+    public static byte[] compress(StoredTransactionOutput out) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+        writeVarInt(bos, compressAmount(out.getValue().longValue()));
+        byte[] script = out.getScriptBytes();
+        byte[] compressed = compressScript(script);
+        if (compressed != null) {
+            bos.write(compressed, 0, compressed.length);
+        } else {
+            writeVarInt(bos, script.length + SPECIAL_SCRIPTS);
+            bos.write(script, 0, script.length);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Rebuilds an output from what {@link #compress(StoredTransactionOutput)} returned for it.
+     * @throws BlockStoreException if the bytes can't be decoded, ie the database is corrupt
+     */
+    public static StoredTransactionOutput decompress(Sha256Hash hash, long index, int height, byte[] bytes)
+            throws BlockStoreException {
+        try {
+            int[] cursor = new int[1];
+            BigInteger value = BigInteger.valueOf(decompressAmount(readVarInt(bytes, cursor)));
+            long type = readVarInt(bytes, cursor);
+            byte[] script;
+            if (type < SPECIAL_SCRIPTS) {
+                script = decompressScript((int) type, bytes, cursor[0]);
+            } else {
+                int length = (int) (type - SPECIAL_SCRIPTS);
+                if (cursor[0] + length != bytes.length)
+                    throw new BlockStoreException("Compressed output has the wrong length");
+                script = Arrays.copyOfRange(bytes, cursor[0], bytes.length);
+            }
+            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+            return new StoredTransactionOutput(hash, index, value, height, true, script);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Removes trailing decimal zeros from an amount, which most amounts have plenty of. */
+    static long compressAmount(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while ((n % 10) == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            long d = n % 10;
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            long d = (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+
+    // Returns the type byte and payload for a script matching one of the templates, or null.
+    private static byte[] compressScript(byte[] script) {
+        if (script.length == 25 && (script[0] & 0xFF) == OP_DUP && (script[1] & 0xFF) == OP_HASH160 && script[2] == 20
+                && (script[23] & 0xFF) == OP_EQUALVERIFY && (script[24] & 0xFF) == OP_CHECKSIG) {
+            return typeAndPayload(0, script, 3, 20);
+        }
+        if (script.length == 23 && (script[0] & 0xFF) == OP_HASH160 && script[1] == 20
+                && (script[22] & 0xFF) == OP_EQUAL) {
+            return typeAndPayload(1, script, 2, 20);
+        }
+        if (script.length == 35 && script[0] == 33 && (script[1] == 2 || script[1] == 3)
+                && (script[34] & 0xFF) == OP_CHECKSIG) {
+            return typeAndPayload(script[1], script, 2, 32);
+        }
+        if (script.length == 67 && script[0] == 65 && script[1] == 4 && (script[66] & 0xFF) == OP_CHECKSIG) {
+            byte[] compressed = typeAndPayload(4 | (script[65] & 1), script, 2, 32);
+            // Only keys that are really on the curve can be recovered from their x coordinate.
+            try {
+                if (Arrays.equals(decompressScript(compressed[0], compressed, 1), script))
+                    return compressed;
+            } catch (BlockStoreException e) {
+                // Not a valid point, fall through.
+            }
+        }
+        return null;
+    }
+
+    private static byte[] typeAndPayload(int type, byte[] script, int offset, int length) {
+        byte[] bytes = new byte[1 + length];
+        bytes[0] = (byte) type;
+        System.arraycopy(script, offset, bytes, 1, length);
+        return bytes;
+    }
+
+    private static byte[] decompressScript(int type, byte[] bytes, int offset) throws BlockStoreException {
+        switch (type) {
+            case 0: {
+                checkPayload(bytes, offset, 20);
+                byte[] script = new byte[25];
+                script[0] = (byte) OP_DUP;
+                script[1] = (byte) OP_HASH160;
+                script[2] = 20;
+                System.arraycopy(bytes, offset, script, 3, 20);
+                script[23] = (byte) OP_EQUALVERIFY;
+                script[24] = (byte) OP_CHECKSIG;
+                return script;
+            }
+            case 1: {
+                checkPayload(bytes, offset, 20);
+                byte[] script = new byte[23];
+                script[0] = (byte) OP_HASH160;
+                script[1] = 20;
+                System.arraycopy(bytes, offset, script, 2, 20);
+                script[22] = (byte) OP_EQUAL;
+                return script;
+            }
+            case 2:
+            case 3: {
+                checkPayload(bytes, offset, 32);
+                byte[] script = new byte[35];
+                script[0] = 33;
+                script[1] = (byte) type;
+                System.arraycopy(bytes, offset, script, 2, 32);
+                script[34] = (byte) OP_CHECKSIG;
+                return script;
+            }
+            default: {
+                checkPayload(bytes, offset, 32);
+                byte[] compressedKey = new byte[33];
+                compressedKey[0] = (byte) (type - 2);
+                System.arraycopy(bytes, offset, compressedKey, 1, 32);
+                byte[] key;
+                try {
+                    ECPoint point = ECKey.CURVE.getCurve().decodePoint(compressedKey);
+                    key = new ECPoint.Fp(ECKey.CURVE.getCurve(), point.getX(), point.getY(), false).getEncoded();
+                } catch (RuntimeException e) {
+                    // Bouncy Castle throws this for an x coordinate that isn't on the curve.
+                    throw new BlockStoreException(e);
+                }
+                byte[] script = new byte[67];
+                script[0] = 65;
+                System.arraycopy(key, 0, script, 1, 65);
+                script[66] = (byte) OP_CHECKSIG;
+                return script;
+            }
+        }
+    }
+
+    private static void checkPayload(byte[] bytes, int offset, int length) throws BlockStoreException {
+        if (bytes.length - offset != length)
+            throw new BlockStoreException("Compressed output has the wrong length");
+    }
+
+    // The reference client's variable length integers: seven bits per byte, most significant first, with the high bit
+    // set on all but the last byte. Unlike VarInt these need only one byte below 128.
+    static void writeVarInt(ByteArrayOutputStream bos, long n) {
+        byte[] tmp = new byte[10];
+        int len = 0;
+        while (true) {
+            tmp[len] = (byte) ((n & 0x7F) | (len != 0 ? 0x80 : 0x00));
+            if (n <= 0x7F)
+                break;
+            n = (n >>> 7) - 1;
+            len++;
+        }
+        for (int i = len; i >= 0; i--)
+            bos.write(tmp[i]);
+    }
+
+    static long readVarInt(byte[] bytes, int[] cursor) {
+        long n = 0;
+        while (true) {
+            int b = bytes[cursor[0]++] & 0xFF;
+            n = (n << 7) | (b & 0x7F);
+            if ((b & 0x80) != 0)
+                n++;
+            else
+                return n;
+        }
+    }
+}
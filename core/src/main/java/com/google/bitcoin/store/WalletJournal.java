@@ -0,0 +1,541 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only log of wallet changes kept next to a wallet file. Instead of serializing the entire wallet every
+ * time something changes, only the transactions, keys, watched scripts and extensions that changed since the last
+ * save are appended to the journal as a {@link Protos.Wallet} record, so the cost of a save follows the size of the
+ * change rather than the size of the wallet. Once the journal grows too large compared to the wallet file it is
+ * compacted: the whole wallet is written out with {@link Wallet#saveToFile(File, File)} and the journal starts
+ * over.</p>
+ *
+ * <p>The journal begins with the SHA-256 hash of the wallet file it extends, and a journal that doesn't match the
+ * wallet file next to it is ignored, so a stale journal can never be replayed over newer data. Records are framed
+ * with their length and a CRC32, and a record that was only partly written when the process died is dropped when
+ * loading. {@link Wallet#loadFromFile(File)} replays the journal automatically.</p>
+ *
+ * <p>A new journal always requires a compaction before the first record can be appended, as it can't know whether
+ * the wallet file on disk is up to date. Transaction removal, re-organizations and changes to the encryption of the
+ * wallet also fall back to a compaction. A transaction that is only buried deeper by a new block isn't written out
+ * again, its depth is worked out from the last block seen when the journal is replayed. Journaling is normally switched on with
+ * {@link com.google.bitcoin.wallet.WalletFiles#setJournalingEnabled(boolean)}.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** Appended to the name of the wallet file to get the name of its journal. */
+    public static final String FILE_SUFFIX = ".journal";
+    /** By default the journal is compacted once it's half the size of the wallet file. */
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    private static final int MAGIC = 0x574a4e31;  // "WJN1"
+    private static final int HEADER_LENGTH = 4 + 32;
+    private static final int RECORD_OVERHEAD = 4 + 4;
+    // Stops a corrupted length field from making us allocate a huge buffer.
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private final File walletFile;
+    private final File journalFile;
+
+    // Tracks what changed since the last record was built. This is called into by the wallet with its lock held, so
+    // must never be held whilst calling back into the wallet.
+    private final ReentrantLock lock = Threading.lock("WalletJournal");
+    @GuardedBy("lock") private Set<Sha256Hash> changedTransactions = new HashSet<Sha256Hash>();
+    @GuardedBy("lock") private List<ECKey> addedKeys = new ArrayList<ECKey>();
+    @GuardedBy("lock") private List<Script> addedScripts = new ArrayList<Script>();
+    @GuardedBy("lock") private Set<String> changedExtensions = new HashSet<String>();
+    @GuardedBy("lock") private boolean compactionRequired = true;
+    // Incremented every time the wallet takes a copy of itself to write out, so records built before that can be
+    // thrown away.
+    @GuardedBy("lock") private long generation;
+
+    // Guards the journal file. Always taken before lock when both are needed, and never whilst the wallet is locked.
+    private final ReentrantLock fileLock = Threading.lock("WalletJournal file");
+    // Signalled when a wallet file has been written or given up on.
+    private final Condition snapshotFinished = fileLock.newCondition();
+    // The generation of the wallet file the journal on disk extends, and the latest one written or given up on.
+    @GuardedBy("fileLock") private long fileGeneration, finishedGeneration;
+    @GuardedBy("fileLock") private long snapshotLength;
+    @GuardedBy("fileLock") private long journalLength;
+    @GuardedBy("fileLock") private Sha256Hash lastSeenBlockHash;
+    @GuardedBy("fileLock") private int recordCount;
+
+    private volatile double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    /** Creates a journal for the given wallet file. Nothing is written until the wallet is next saved. */
+    public WalletJournal(File walletFile) {
+        this.walletFile = checkNotNull(walletFile);
+        this.journalFile = getJournalFile(walletFile);
+    }
+
+    /** Returns the file the journal for the given wallet file is written to. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + FILE_SUFFIX);
+    }
+
+    /** Returns the wallet file this journal extends. */
+    public File getWalletFile() {
+        return walletFile;
+    }
+
+    /** Returns true if the given file is the wallet file this journal extends. */
+    public boolean isJournalFor(File file) {
+        try {
+            return file.getCanonicalFile().equals(walletFile.getCanonicalFile());
+        } catch (IOException e) {
+            return file.getAbsoluteFile().equals(walletFile.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Sets how large the journal may grow, as a fraction of the wallet file size, before the next save compacts it
+     * into a new wallet file. Larger values make saves cheaper but loading slower.
+     */
+    public void setCompactionRatio(double ratio) {
+        checkArgument(ratio > 0);
+        this.compactionRatio = ratio;
+    }
+
+    /** Records that the given transaction was added to the wallet, moved between pools or had its confidence changed. */
+    public void transactionChanged(Sha256Hash hash) {
+        lock.lock();
+        try {
+            changedTransactions.add(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the given keys were added to the wallet. */
+    public void keysAdded(List<ECKey> keys) {
+        lock.lock();
+        try {
+            addedKeys.addAll(keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the given scripts were added to the wallet. */
+    public void scriptsAdded(List<Script> scripts) {
+        lock.lock();
+        try {
+            addedScripts.addAll(scripts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the wallet extension with the given ID was added or updated. */
+    public void extensionChanged(String id) {
+        lock.lock();
+        try {
+            changedExtensions.add(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a change that can't be expressed as a journal record, such as a transaction being removed, so the next
+     * save writes out the whole wallet.
+     */
+    public void requireCompaction() {
+        lock.lock();
+        try {
+            compactionRequired = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the next save should write out the whole wallet rather than append to the journal. */
+    public boolean isCompactionDue() {
+        fileLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (compactionRequired)
+                    return true;
+            } finally {
+                lock.unlock();
+            }
+            return journalLength - HEADER_LENGTH > snapshotLength * compactionRatio;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /** Returns the number of records appended since the wallet file was last written. */
+    public int getRecordCount() {
+        fileLock.lock();
+        try {
+            return recordCount;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the wallet, with its lock held, once it has taken the copy of itself that is about to be written to
+     * the wallet file. Everything recorded so far is part of that copy, so is forgotten. Doesn't touch the journal
+     * file, so the wallet isn't kept waiting for a save or append that is in progress. Must be followed by
+     * {@link #snapshotWritten(long, byte[], long, Sha256Hash)} or {@link #snapshotAborted(long)} once the file has
+     * been written without the wallet lock. Appends of changes made after this call wait until then, so they can't
+     * land in the journal that is about to be replaced.
+     *
+     * @return the generation of the copy, to be passed to the method called once it has been written
+     */
+    public long snapshotStarted() {
+        lock.lock();
+        try {
+            changedTransactions = new HashSet<Sha256Hash>();
+            addedKeys = new ArrayList<ECKey>();
+            addedScripts = new ArrayList<Script>();
+            changedExtensions = new HashSet<String>();
+            compactionRequired = false;
+            return ++generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called once the copy of the wallet taken at {@link #snapshotStarted()} is safely in the wallet file, to restart
+     * the journal on top of it. Failures are logged rather than thrown: the new wallet file is complete by itself and
+     * an old journal no longer matches it.
+     *
+     * @param generation the value returned by {@link #snapshotStarted()} when the copy was taken
+     * @param sha256 the SHA-256 hash of the new wallet file
+     * @param length the length of the new wallet file in bytes
+     * @param lastSeenBlockHash the last block the wallet had seen when it was written
+     */
+    public void snapshotWritten(long generation, byte[] sha256, long length, @Nullable Sha256Hash lastSeenBlockHash) {
+        checkArgument(sha256.length == 32);
+        fileLock.lock();
+        try {
+            // Overlapping saves can finish out of order, and the journal of a later copy must not be replaced.
+            if (generation < fileGeneration)
+                return;
+            FileOutputStream stream = new FileOutputStream(journalFile);
+            try {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(MAGIC);
+                out.write(sha256);
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            this.fileGeneration = generation;
+            this.snapshotLength = length;
+            this.journalLength = HEADER_LENGTH;
+            this.lastSeenBlockHash = lastSeenBlockHash;
+            this.recordCount = 0;
+        } catch (IOException e) {
+            log.error("Failed to restart wallet journal " + journalFile, e);
+            requireCompaction();
+        } finally {
+            finishedLocked(generation);
+            fileLock.unlock();
+        }
+    }
+
+    /** Called instead of {@link #snapshotWritten(long, byte[], long, Sha256Hash)} if the wallet file wasn't written. */
+    public void snapshotAborted(long generation) {
+        fileLock.lock();
+        try {
+            // What changed before the snapshot was forgotten, so only another full save can capture it now, unless a
+            // later copy already made it to disk.
+            if (generation >= fileGeneration)
+                requireCompaction();
+        } finally {
+            finishedLocked(generation);
+            fileLock.unlock();
+        }
+    }
+
+    @GuardedBy("fileLock")
+    private void finishedLocked(long generation) {
+        finishedGeneration = Math.max(finishedGeneration, generation);
+        snapshotFinished.signalAll();
+    }
+
+    /**
+     * Appends everything that changed since the last save to the journal and forces it to disk. Must not be called
+     * whilst {@link #isCompactionDue()} is true.
+     *
+     * @return the number of bytes appended, which is zero if nothing changed
+     */
+    public long append(Wallet wallet) throws IOException {
+        Set<Sha256Hash> transactions;
+        List<ECKey> keys;
+        List<Script> scripts;
+        Set<String> extensions;
+        long recordGeneration;
+        lock.lock();
+        try {
+            checkState(!compactionRequired, "Wallet journal needs compacting first");
+            transactions = changedTransactions;
+            keys = addedKeys;
+            scripts = addedScripts;
+            extensions = changedExtensions;
+            changedTransactions = new HashSet<Sha256Hash>();
+            addedKeys = new ArrayList<ECKey>();
+            addedScripts = new ArrayList<Script>();
+            changedExtensions = new HashSet<String>();
+            recordGeneration = generation;
+        } finally {
+            lock.unlock();
+        }
+
+        // Build the record without holding either lock. The transactions are serialized under the wallet lock, as
+        // they are live objects. Spending moves transactions between pools, so the transactions connected to a
+        // changed one are written out too.
+        Protos.Wallet.Builder record = Protos.Wallet.newBuilder();
+        record.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        record.addAllTransaction(wallet.serializeWalletTransactions(transactions, true));
+        for (ECKey key : keys)
+            record.addKey(WalletProtobufSerializer.makeKeyProto(key));
+        for (Script script : scripts) {
+            record.addWatchedScript(Protos.Script.newBuilder()
+                    .setProgram(ByteString.copyFrom(script.getProgram()))
+                    .setCreationTimestamp(script.getCreationTimeSeconds() * 1000));
+        }
+        if (!extensions.isEmpty()) {
+            Map<String, WalletExtension> walletExtensions = wallet.getExtensions();
+            for (String id : extensions) {
+                WalletExtension extension = walletExtensions.get(id);
+                if (extension != null)
+                    record.addExtension(WalletProtobufSerializer.makeExtensionProto(extension));
+            }
+        }
+        if (wallet.getDescription() != null)
+            record.setDescription(wallet.getDescription());
+        Sha256Hash blockHash = wallet.getLastBlockSeenHash();
+        if (blockHash != null) {
+            record.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(blockHash));
+            record.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            record.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        if (wallet.getKeyRotationTime() != null)
+            record.setKeyRotationTime(wallet.getKeyRotationTime().getTime() / 1000);
+
+        fileLock.lock();
+        try {
+            // Wait for a wallet file still being written to restart the journal this record belongs in.
+            while (finishedGeneration < recordGeneration)
+                snapshotFinished.awaitUninterruptibly();
+            lock.lock();
+            try {
+                // If a later copy of the wallet was taken in the meantime it already contains everything in this
+                // record, and if the file this record follows on from wasn't written a compaction is due anyway.
+                if (generation != recordGeneration || fileGeneration != recordGeneration)
+                    return 0;
+            } finally {
+                lock.unlock();
+            }
+            if (record.getTransactionCount() == 0 && record.getKeyCount() == 0 && record.getWatchedScriptCount() == 0
+                    && record.getExtensionCount() == 0 && (blockHash == null || blockHash.equals(lastSeenBlockHash)))
+                return 0;
+            byte[] bytes = record.build().toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            FileOutputStream stream = new FileOutputStream(journalFile, true);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                out.writeInt(bytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(bytes);
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            journalLength += RECORD_OVERHEAD + bytes.length;
+            lastSeenBlockHash = blockHash;
+            recordCount++;
+            return RECORD_OVERHEAD + bytes.length;
+        } catch (IOException e) {
+            // The changes in this record are lost from the journal, so only a full save can capture them now.
+            requireCompaction();
+            throw e;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Opens the given wallet file for reading with {@link WalletProtobufSerializer#readWallet(java.io.InputStream)}.
+     * If a journal that matches the wallet file exists, the returned stream contains the wallet with the journal
+     * applied to it, otherwise it just reads the file.
+     */
+    public static InputStream openWallet(File walletFile) throws IOException {
+        File journalFile = getJournalFile(walletFile);
+        if (!journalFile.exists())
+            return new FileInputStream(walletFile);
+        byte[] snapshot = Files.toByteArray(walletFile);
+        List<Protos.Wallet> records = readRecords(journalFile, Sha256Hash.create(snapshot).getBytes());
+        if (records.isEmpty())
+            return new ByteArrayInputStream(snapshot);
+        log.info("Replaying {} wallet journal records from {}", records.size(), journalFile);
+        Protos.Wallet wallet = replay(WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(snapshot)), records);
+        return new ByteArrayInputStream(wallet.toByteArray());
+    }
+
+    private static List<Protos.Wallet> readRecords(File journalFile, byte[] snapshotHash) throws IOException {
+        List<Protos.Wallet> records = new ArrayList<Protos.Wallet>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] hash = new byte[32];
+            if (in.readInt() != MAGIC) {
+                log.warn("{} is not a wallet journal, ignoring it", journalFile);
+                return records;
+            }
+            in.readFully(hash);
+            if (!Arrays.equals(hash, snapshotHash)) {
+                log.info("Ignoring {} as it was written for a different wallet file", journalFile);
+                return records;
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;  // Clean end of the journal.
+                }
+                int expectedCrc = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    log.warn("Corrupt record length {} in {}, ignoring the rest of it", length, journalFile);
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if ((int) crc.getValue() != expectedCrc) {
+                    log.warn("Checksum mismatch in {}, ignoring the rest of it", journalFile);
+                    break;
+                }
+                records.add(Protos.Wallet.parseFrom(bytes));
+            }
+        } catch (EOFException e) {
+            log.warn("{} ends with a partially written record, ignoring it", journalFile);
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /** Applies the given journal records, oldest first, to the given wallet. */
+    static Protos.Wallet replay(Protos.Wallet snapshot, List<Protos.Wallet> records) {
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+        for (Protos.Transaction tx : snapshot.getTransactionList())
+            transactions.put(tx.getHash(), tx);
+        Map<ByteString, Protos.Key> keys = new LinkedHashMap<ByteString, Protos.Key>();
+        for (Protos.Key key : snapshot.getKeyList())
+            keys.put(keyId(key), key);
+        Map<ByteString, Protos.Script> scripts = new LinkedHashMap<ByteString, Protos.Script>();
+        for (Protos.Script script : snapshot.getWatchedScriptList())
+            scripts.put(script.getProgram(), script);
+        Map<String, Protos.Extension> extensions = new LinkedHashMap<String, Protos.Extension>();
+        for (Protos.Extension extension : snapshot.getExtensionList())
+            extensions.put(extension.getId(), extension);
+
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+        for (Protos.Wallet record : records) {
+            for (Protos.Transaction tx : record.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            for (Protos.Key key : record.getKeyList())
+                keys.put(keyId(key), key);
+            for (Protos.Script script : record.getWatchedScriptList())
+                scripts.put(script.getProgram(), script);
+            for (Protos.Extension extension : record.getExtensionList())
+                extensions.put(extension.getId(), extension);
+            if (record.hasDescription())
+                builder.setDescription(record.getDescription());
+            if (record.hasLastSeenBlockHash()) {
+                builder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+                builder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+            }
+            if (record.hasLastSeenBlockTimeSecs())
+                builder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+            if (record.hasKeyRotationTime())
+                builder.setKeyRotationTime(record.getKeyRotationTime());
+        }
+        // Changes in depth alone aren't journaled, so bring the depth of building transactions up to the last block.
+        if (builder.hasLastSeenBlockHeight()) {
+            int height = builder.getLastSeenBlockHeight();
+            for (Map.Entry<ByteString, Protos.Transaction> entry : transactions.entrySet()) {
+                Protos.Transaction tx = entry.getValue();
+                if (!tx.hasConfidence())
+                    continue;
+                Protos.TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING
+                        || !confidence.hasAppearedAtHeight() || confidence.getAppearedAtHeight() > height)
+                    continue;
+                int depth = height - confidence.getAppearedAtHeight() + 1;
+                if (!confidence.hasDepth() || confidence.getDepth() != depth)
+                    entry.setValue(tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build());
+            }
+        }
+        builder.clearTransaction().addAllTransaction(transactions.values());
+        builder.clearKey().addAllKey(keys.values());
+        builder.clearWatchedScript().addAllWatchedScript(scripts.values());
+        builder.clearExtension().addAllExtension(extensions.values());
+        return builder.build();
+    }
+
+    private static ByteString keyId(Protos.Key key) {
+        // Keys written by old versions may lack the public key.
+        return key.hasPublicKey() ? key.getPublicKey() : key.getPrivateKey();
+    }
+
+    @Override
+    public String toString() {
+        fileLock.lock();
+        try {
+            return String.format("Wallet journal %s: %d records, %d bytes on top of a %d byte wallet", journalFile,
+                    recordCount, journalLength, snapshotLength);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+}
@@ -37,12 +37,14 @@ import org.multibit.store.WalletVersionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -77,6 +79,12 @@ public class WalletProtobufSerializer {
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private boolean loadHistoryLazily = false;
+    protected boolean writeLazyHistory = true;
+
+    // Set whilst reading a wallet whose spent and dead transactions are left in a history file.
+    @Nullable protected LazyTransactionHistory lazyHistory;
+    private boolean skipMissingSpenders;
 
     public WalletProtobufSerializer() {
         txMap = new HashMap<ByteString, Transaction>();
@@ -91,6 +99,25 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * If this property is set to true, {@link #readWallet(java.io.InputStream)} leaves the spent and dead transactions
+     * of the wallet in a {@link LazyTransactionHistory} and the wallet only loads them when they are asked for. This
+     * makes large wallets much faster to load and smaller in memory.
+     */
+    public void setLoadHistoryLazily(boolean value) {
+        loadHistoryLazily = value;
+    }
+
+    /**
+     * If this property is set to false, {@link #walletToProto(Wallet)} leaves out the transactions that are still in
+     * the {@link LazyTransactionHistory} of the wallet. This lets
+     * {@link Wallet#saveToFile(java.io.File, java.io.File)} take a {@link LazyTransactionHistory#snapshot()} with the
+     * wallet locked, and read the history file only once it has released the lock.
+     */
+    public void setWriteLazyHistory(boolean value) {
+        writeLazyHistory = value;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -128,40 +155,12 @@ public class WalletProtobufSerializer {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
+        LazyTransactionHistory history = writeLazyHistory ? wallet.getLazyTransactionHistory() : null;
+        if (history != null)
+            history.addTo(walletBuilder);
 
         for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                                                         // .setLabel() TODO
-                                                            .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
-
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
-
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
-                }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
-            }
-
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
+            walletBuilder.addKey(makeKeyProto(key));
         }
 
         for (Script script : wallet.getWatchedScripts()) {
@@ -215,16 +214,66 @@ public class WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
+    protected static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                                                     // .setLabel() TODO
+                                                        .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
+            walletBuilder.addExtension(makeExtensionProto(extension));
         }
     }
 
+    protected static Protos.Extension makeExtensionProto(WalletExtension extension) {
+        Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+        proto.setId(extension.getWalletExtensionID());
+        proto.setMandatory(extension.isWalletExtensionMandatory());
+        proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+        return proto.build();
+    }
+
+    /**
+     * Converts the given wallet transactions to protobufs. Callers must hold the lock of the wallet they belong to, see
+     * {@link Wallet#serializeWalletTransactions(java.util.Collection, boolean)}.
+     */
+    public static List<Protos.Transaction> makeTxProtos(Iterable<WalletTransaction> wtxs) {
+        List<Protos.Transaction> result = new ArrayList<Protos.Transaction>();
+        for (WalletTransaction wtx : wtxs)
+            result.add(makeTxProto(wtx));
+        return result;
+    }
+
     protected static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
@@ -371,19 +420,46 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
+            Protos.Wallet walletProto = parseWalletProto(input);
             final String paramsID = walletProto.getNetworkIdentifier();
             NetworkParameters params = NetworkParameters.fromID(paramsID);
             if (params == null)
                 throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
             Wallet wallet = new Wallet(params);
             readWallet(walletProto, wallet);
+            attachLazyHistory(wallet);
             return wallet;
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            discardLazyHistory();
         }
     }
 
+    /**
+     * Parses the wallet proto from the given stream. If the history is loaded lazily, the spent and dead transactions
+     * are left in {@link #lazyHistory} until {@link #attachLazyHistory(Wallet)} hands them to the wallet.
+     */
+    protected Protos.Wallet parseWalletProto(InputStream input) throws IOException {
+        if (!loadHistoryLazily)
+            return parseToProto(input);
+        discardLazyHistory();
+        lazyHistory = new LazyTransactionHistory();
+        return lazyHistory.parseWallet(input);
+    }
+
+    protected void attachLazyHistory(Wallet wallet) {
+        if (lazyHistory != null)
+            wallet.setLazyTransactionHistory(lazyHistory);
+        lazyHistory = null;
+    }
+
+    protected void discardLazyHistory() {
+        if (lazyHistory != null)
+            lazyHistory.clear();
+        lazyHistory = null;
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -599,6 +675,49 @@ public class WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
+    /**
+     * Reads a single transaction that was left out of a wallet by a {@link LazyTransactionHistory}, connecting it to
+     * the given already loaded transactions that it spends or that spend it. As when a whole wallet is read, dead
+     * transactions are not connected to the outputs they tried to spend.
+     */
+    public WalletTransaction readWalletTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                                   Map<Sha256Hash, Transaction> loaded) throws UnreadableWalletException {
+        try {
+            readTransaction(txProto, params);
+            for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+                if (!outputProto.hasSpentByTransactionHash())
+                    continue;
+                Transaction spendingTx = loaded.get(byteStringToHash(outputProto.getSpentByTransactionHash()));
+                if (spendingTx != null)
+                    txMap.put(outputProto.getSpentByTransactionHash(), spendingTx);
+            }
+            if (txProto.getConfidence().hasOverridingTransaction()) {
+                ByteString overridingHash = txProto.getConfidence().getOverridingTransaction();
+                Transaction overridingTx = loaded.get(byteStringToHash(overridingHash));
+                if (overridingTx != null)
+                    txMap.put(overridingHash, overridingTx);
+            }
+            // Spenders that aren't loaded yet will connect themselves when they are.
+            skipMissingSpenders = true;
+            WalletTransaction wtx = connectTransactionOutputs(txProto);
+            if (wtx.getPool() != WalletTransaction.Pool.DEAD) {
+                for (TransactionInput input : wtx.getTransaction().getInputs()) {
+                    Transaction parent = loaded.get(input.getOutpoint().getHash());
+                    long index = input.getOutpoint().getIndex();
+                    if (parent == null || index >= parent.getOutputs().size())
+                        continue;
+                    TransactionOutput output = parent.getOutput((int) index);
+                    if (output.getSpentBy() == null)
+                        input.connect(output);
+                }
+            }
+            return wtx;
+        } finally {
+            skipMissingSpenders = false;
+            txMap.clear();
+        }
+    }
+
     private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
@@ -624,6 +743,11 @@ public class WalletProtobufSerializer {
             if (transactionOutput.hasSpentByTransactionHash()) {
                 final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
+                if (spendingTx == null && (skipMissingSpenders ||
+                        (lazyHistory != null && lazyHistory.contains(byteStringToHash(spentByTransactionHash))))) {
+                    // Connected when the spending transaction is materialized, see LazyTransactionHistory.
+                    continue;
+                }
                 if (spendingTx == null) {
                     throw new UnreadableWalletException(String.format("Could not connect %s to %s",
                             tx.getHashAsString(), byteStringToHash(spentByTransactionHash)));
@@ -19,21 +19,39 @@ package com.google.bitcoin.utils;
 import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ProtocolException;
-import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Transaction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.</p>
+ *
+ * <p>Each file is memory mapped and scanned for the network magic in place. By default blocks are parsed one at a
+ * time on the thread calling {@link #next()}. Callers that can spare the memory and cores may instead ask for a pool
+ * of worker threads with {@link #BlockFileLoader(NetworkParameters, List, int)}, which parses up to
+ * {@link #MAX_BLOCKS_AHEAD} blocks ahead of the consumer and still returns them in file order. The worker threads are
+ * daemons and are shut down once the last block has been returned, or by {@link #close()}.</p>
  * 
  * <p>In order to comply with Iterator&lt;Block>, this class swallows a lot of IOExceptions, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
@@ -70,14 +88,64 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
-    private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    /**
+     * How many blocks may be parsed, or waiting to be parsed, ahead of the one returned by {@link #next()} when there
+     * are worker threads. Up to this many blocks are held in memory at once.
+     */
+    public static final int MAX_BLOCKS_AHEAD = 256;
+
+    private final Iterator<File> fileIt;
+    private final NetworkParameters params;
+    private final byte[] magic;
+    // The mapped part of the current file, positioned after the last block read from it.
+    private ByteBuffer currentFile = null;
     private Block nextBlock = null;
-    private NetworkParameters params;
-    
+
+    // Blocks being parsed, in file order. Null if blocks are parsed on the calling thread.
+    private final ExecutorService parsers;
+    private final ArrayDeque<Future<Block>> parsing = new ArrayDeque<Future<Block>>();
+
+    private long blockCount = 0;
+    private long byteCount = 0;
+
+    /**
+     * Reads blocks from the given files, parsing them on the thread calling {@link #next()}.
+     */
     public BlockFileLoader(NetworkParameters params, List<File> files) {
-        fileIt = files.iterator();
+        this(params, files, 0);
+    }
+
+    /**
+     * Reads blocks from the given files, parsing them on the given number of worker threads up to
+     * {@link #MAX_BLOCKS_AHEAD} blocks ahead. With zero threads blocks are parsed on the thread calling
+     * {@link #next()}, as with {@link #BlockFileLoader(NetworkParameters, List)}.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int parserThreads) {
+        checkArgument(parserThreads >= 0);
+        this.fileIt = files.iterator();
         this.params = params;
+        long packetMagic = params.getPacketMagic();
+        this.magic = new byte[] {
+                (byte) (packetMagic >>> 24), (byte) (packetMagic >>> 16), (byte) (packetMagic >>> 8), (byte) packetMagic
+        };
+        if (parserThreads > 0) {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("BlockFileLoader parser %d");
+            this.parsers = Executors.newFixedThreadPool(parserThreads, builder.build());
+        } else {
+            this.parsers = null;
+        }
+    }
+
+    /** Returns how many blocks have been returned by {@link #next()} so far. */
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    /** Returns the total serialized size of the blocks returned by {@link #next()} so far. */
+    public long getByteCount() {
+        return byteCount;
     }
     
     @Override
@@ -93,73 +161,146 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
             throw new NoSuchElementException();
         Block next = nextBlock;
         nextBlock = null;
+        blockCount++;
+        byteCount += next.getMessageSize();
         return next;
     }
-    
+
+    /**
+     * Stops the worker threads. Only needed if iteration is abandoned before the end; no more blocks are returned.
+     */
+    public void close() {
+        if (parsers != null)
+            parsers.shutdownNow();
+        parsing.clear();
+        currentFile = null;
+        while (fileIt.hasNext())
+            fileIt.next();
+    }
+
     private void loadNextBlock() {
         while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
+            // Keep the workers busy while the consumer is adding the block we return.
+            while (parsing.size() < (parsers == null ? 1 : MAX_BLOCKS_AHEAD)) {
+                byte[] bytes = readNextBlockBytes();
+                if (bytes == null)
                     break;
-            }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
+                Callable<Block> parse = parseTask(bytes);
+                if (parsers != null) {
+                    parsing.add(parsers.submit(parse));
+                } else {
+                    try {
+                        parsing.add(Futures.immediateFuture(parse.call()));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);  // Cannot happen, parse tasks don't throw.
+                    }
                 }
             }
+            Future<Block> future = parsing.poll();
+            if (future == null) {
+                nextBlock = null;
+                if (parsers != null)
+                    parsers.shutdown();
+                return;
+            }
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
+                nextBlock = future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            if (nextBlock != null)
+                return;
+            // Didn't parse, skip it.
+        }
+    }
+
+    private Callable<Block> parseTask(final byte[] bytes) {
+        return new Callable<Block>() {
+            @Override
+            public Block call() {
                 try {
-                    nextBlock = new Block(params, bytes);
+                    Block block = new Block(params, bytes);
+                    // Hash everything here so that the consumer finds it cached.
+                    block.getHash();
+                    if (block.getTransactions() != null) {
+                        for (Transaction tx : block.getTransactions())
+                            tx.getHash();
+                    }
+                    return block;
                 } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
+                    return null;
                 }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+            }
+        };
+    }
+
+    /** Returns the bytes of the next block found in the files, or null once all files have been read. */
+    private byte[] readNextBlockBytes() {
+        while (true) {
+            if (currentFile == null || currentFile.remaining() < 8) {
+                if (!fileIt.hasNext())
+                    return null;
+                currentFile = map(fileIt.next());
+                continue;
+            }
+            int pos = indexOfMagic(currentFile);
+            if (pos < 0) {
+                currentFile = null;
+                continue;
+            }
+            long size = currentFile.getInt(pos + 4) & 0xffffffffL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0) {
+                currentFile.position(pos + 4);
+                continue;
+            }
+            if (pos + 8 + size > currentFile.limit()) {
+                // Truncated, which is normal for the last file of a node that is still running.
+                currentFile = null;
                 continue;
             }
+            byte[] bytes = new byte[(int) size];
+            currentFile.position(pos + 8);
+            currentFile.get(bytes);
+            return bytes;
+        }
+    }
+
+    /** Returns the position of the next magic at or after the buffer position which leaves room for a size. */
+    private int indexOfMagic(ByteBuffer buffer) {
+        final byte first = magic[0];
+        final int end = buffer.limit() - 8;
+        for (int i = buffer.position(); i <= end; i++) {
+            if (buffer.get(i) == first && buffer.get(i + 1) == magic[1] && buffer.get(i + 2) == magic[2]
+                    && buffer.get(i + 3) == magic[3])
+                return i;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer map(File file) {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            // Block files are 128MB at most, well within what a single mapping can address.
+            long size = Math.min(channel.size(), Integer.MAX_VALUE);
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
         }
     }
 
@@ -18,12 +18,14 @@
 package com.google.bitcoin.wallet;
 
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.WalletJournal;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.*;
@@ -49,6 +51,7 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -107,16 +110,51 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>Switches incremental saving on or off. When on, a {@link WalletJournal} is kept next to the wallet file and
+     * most saves only append the transactions, keys and extensions that changed since the previous save to it, so
+     * their cost follows the size of the change rather than the size of the wallet. Every so often, and whenever
+     * something changed that can't be journaled, the whole wallet is written out as usual and the journal restarts.</p>
+     *
+     * <p>{@link Wallet#loadFromFile(File)} applies the journal when loading. Listeners are only told about saves that
+     * write the whole wallet file.</p>
+     */
+    public void setJournalingEnabled(boolean enabled) {
+        if (enabled == (vJournal != null))
+            return;
+        if (enabled) {
+            WalletJournal journal = new WalletJournal(file);
+            vJournal = journal;
+            wallet.setJournal(journal);
+        } else {
+            // Any journal left on disk still matches the wallet file, so stays valid until the next save replaces it.
+            vJournal = null;
+            wallet.setJournal(null);
+        }
+    }
+
+    /** Returns the journal used for incremental saves, or null if journaling is switched off. */
+    @Nullable
+    public WalletJournal getJournal() {
+        return vJournal;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. The wallet is only locked whilst it's copied, so two saves can be writing at
+        // once (using different temp files), but an older copy never replaces a newer one.
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
         saveNowInternal();
     }
 
     private void saveNowInternal() throws IOException {
         long now = System.currentTimeMillis();
+        final WalletJournal journal = vJournal;
+        if (journal != null && !journal.isCompactionDue()) {
+            long bytes = journal.append(wallet);
+            log.info("Appended {} bytes to wallet journal in {}msec", bytes, System.currentTimeMillis() - now);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
@@ -125,7 +163,8 @@ public class WalletFiles {
         wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
-        log.info("Save completed in {}msec", System.currentTimeMillis() - now);
+        log.info("Save completed in {}msec, wallet was locked for {}msec", System.currentTimeMillis() - now,
+                wallet.getLastSaveLockMillis());
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
@@ -1,4 +1,4 @@
-/* 
+/*
  * SparkBit's Bitcoinj
  *
  * Copyright 2014 Coin Sciences Ltd.
@@ -23,47 +23,120 @@
  */
 package org.coinspark.core;
 
-import java.io.File;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
-import java.util.logging.Level;
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * CoinSpark log.
+ *
+ * Messages written to a file are queued in a bounded buffer and appended by a single background thread, which keeps
+ * the file open, so logging never waits for the disk. If the buffer is full the message is dropped and the number of
+ * dropped messages is written once there is room again. Errors are the exception: error() waits briefly for room
+ * rather than dropping the message, and if there is none, or the file can no longer be written, the error goes to the
+ * slf4j log instead. It never waits for the disk. close() writes out whatever is still queued, and is called by a
+ * shutdown hook if the logger is still open when the JVM exits. Messages below the level set with setLevel() are discarded
+ * before any formatting is done; callers building expensive messages should check isEnabled() first.
+ *
+ * The location of the caller is only looked up when asked for, either for a single message or for all of them with
+ * setCallerLocation().
+ */
 public class CSLogger {
-    
+
     public enum CSLevel {
-        
+
         ERROR("ERR!"),
         WARNING("WRN!"),
         INFO("I   "),
         DEBUG("DBG "),
         TRACE("T   ");
-        
+
         private String abbr;
-        
+
         CSLevel(String abbr) {
             this.abbr = abbr;
         }
-        
+
         public String getAbbr() {
             return abbr;
-        }       
+        }
+    }
+
+    /**
+     * Number of messages which may be waiting to be written to the file.
+     */
+    public static final int BUFFER_SIZE = 8192;
+
+    // How long error() waits for room in the buffer before logging to slf4j instead.
+    private static final long ERROR_TIMEOUT_MILLIS = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(CSLogger.class);
+
+    private static class Entry
+    {
+        final long time;
+        final CSLevel level;
+        final String message;
+        final String location;
+
+        Entry(long Time, CSLevel Level, String Message, String Location)
+        {
+            time=Time;
+            level=Level;
+            message=Message;
+            location=Location;
+        }
     }
-    
+
+    // Tells the writer thread to stop.
+    private static final Entry CLOSE = new Entry(0, CSLevel.TRACE, "", null);
+
+    // Only used by the writer thread, apart from line().
     private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     private String fileName;
-    private static final Logger log = LoggerFactory.getLogger(CSLogger.class);
-    
+    private volatile CSLevel level = CSLevel.TRACE;
+    private volatile boolean callerLocation = false;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(BUFFER_SIZE);
+    private final AtomicLong dropped = new AtomicLong();
+    private Thread writerThread;
+    private Thread shutdownHook;
+    private volatile boolean closed = false;
+
     public CSLogger(String FileName)
     {
-        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));        
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
         fileName=FileName;
+        if(fileName != null)
+        {
+            writerThread=new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeEntries();
+                }
+            }, "CSLogger writer for " + fileName);
+            writerThread.setDaemon(true);
+            writerThread.start();
+            // The writer thread doesn't keep the JVM alive, so drain the queue on the way out.
+            shutdownHook=new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            }, "CSLogger shutdown for " + fileName);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
     }
-    
+
     public CSLogger(String FileName,boolean ShowDate)
     {
         this(FileName);
@@ -72,130 +145,273 @@ public class CSLogger {
             sdf=null;
         }
     }
-    
-    public String line(String Message, CSLevel Level, int depth)
+
+    /**
+     * Sets the least important level which is still logged, TRACE (everything) by default.
+     * @param Level
+     */
+    public void setLevel(CSLevel Level)
+    {
+        level=Level;
+    }
+
+    public CSLevel getLevel()
     {
-        String result="";
+        return level;
+    }
 
-        if(sdf != null)
-        {
-            result += sdf.format(new Date()) + "\t";
-        }
-        result += Level.getAbbr() + "\t";
-        result += Message;
-        
+    /**
+     * Returns true if messages of the given level are logged.
+     * @param Level
+     * @return
+     */
+    public boolean isEnabled(CSLevel Level)
+    {
+        return Level.ordinal() <= level.ordinal();
+    }
+
+    /**
+     * If true, the class, method and line of the caller are added to every message. This walks the stack for each
+     * message, so it is off by default.
+     * @param Enabled
+     */
+    public void setCallerLocation(boolean Enabled)
+    {
+        callerLocation=Enabled;
+    }
+
+    public String line(String Message, CSLevel Level, int depth)
+    {
+        String location=null;
         if(depth>0)
         {
-            result += "\t";
-            StackTraceElement ste=Thread.currentThread().getStackTrace()[depth];
-            result += "[" + ste.getClassName() + "." + ste.getMethodName() + ", line " + ste.getLineNumber() +"]";
+            location=location(Thread.currentThread().getStackTrace()[depth]);
         }
-        
-        return result;
+        return format(new Entry(System.currentTimeMillis(), Level, Message, location));
     }
 
-    public void debug(String Message)
+    private String format(Entry entry)
     {
-        String output=line(Message, CSLevel.DEBUG,3);
-        if(fileName != null)
+        StringBuilder result=new StringBuilder();
+
+        if(sdf != null)
         {
-            try {
-                FileUtils.writeStringToFile(new File(fileName), output + "\n",true);
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(CSLogger.class.getName()).log(Level.SEVERE, null, ex);
+            // SimpleDateFormat isn't thread safe, and line() may be called from any thread.
+            synchronized(sdf)
+            {
+                result.append(sdf.format(new Date(entry.time))).append("\t");
             }
         }
-        else
+        result.append(entry.level.getAbbr()).append("\t");
+        result.append(entry.message);
+
+        if(entry.location != null)
         {
-            log.info(output);
+            result.append("\t").append(entry.location);
         }
+
+        return result.toString();
     }
-    
-    public void trace(String Message)
+
+    private static String location(StackTraceElement ste)
     {
-        String output=line(Message, CSLevel.TRACE,3);
-        if(fileName != null)
+        return "[" + ste.getClassName() + "." + ste.getMethodName() + ", line " + ste.getLineNumber() +"]";
+    }
+
+    // Must be called directly from the public logging methods, as it relies on the depth of the stack.
+    private void write(CSLevel Level, String Message, boolean Trace)
+    {
+        if(!isEnabled(Level))
         {
-            try {
-                FileUtils.writeStringToFile(new File(fileName), output + "\n",true);
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(CSLogger.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            return;
         }
-        else
+
+        String location=null;
+        if(Trace || callerLocation)
         {
-            log.info(output);
+            // 0 is this method, 1 the logging method and 2 its caller.
+            location=location(new Throwable().getStackTrace()[2]);
         }
-    }
-    
-    public void error(String Message)
-    {
-        String output=line(Message, CSLevel.ERROR,3);
+        Entry entry=new Entry(System.currentTimeMillis(), Level, Message, location);
+
         if(fileName != null)
         {
-            try {
-                FileUtils.writeStringToFile(new File(fileName), output + "\n",true);
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(CSLogger.class.getName()).log(Level.SEVERE, null, ex);
+            if(closed)
+            {
+                return;
+            }
+            if(Level == CSLevel.ERROR)
+            {
+                if(!offerError(entry))
+                {
+                    toLog(entry);
+                }
+            }
+            else if(!queue.offer(entry))
+            {
+                dropped.incrementAndGet();
             }
         }
         else
         {
-            log.error(output);
+            toLog(entry);
         }
     }
 
-    public void warning(String Message,boolean trace)
+    private void toLog(Entry entry)
     {
-        int depth=0;
-        if(trace){
-            depth=3;
-        }
-        String output=line(Message, CSLevel.WARNING,depth);
-        if(fileName != null)
+        String output=format(entry);
+        switch(entry.level)
         {
-            try {
-                FileUtils.writeStringToFile(new File(fileName), output + "\n",true);
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(CSLogger.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            case DEBUG:
+            case TRACE:
+                log.info(output);
+                break;
+            default:
+                log.error(output);
+                break;
         }
-        else
+    }
+
+    // Queues the entry behind everything logged before it, waiting a little for room if need be. Returns false if it
+    // couldn't be queued or the writer thread has stopped, as it does when the file can't be written, so that the
+    // caller, which may hold locks, is never held up for long.
+    private boolean offerError(Entry entry)
+    {
+        if(!writerThread.isAlive())
         {
-            log.error(output);
+            return false;
+        }
+        try {
+            return queue.offer(entry, ERROR_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && writerThread.isAlive();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
-    
-    public void warning(String Message)
+
+    private void writeEntries()
     {
-        warning(Message,false);
+        Writer out=null;
+        try {
+            out=new BufferedWriter(new FileWriter(fileName, true));
+            boolean closing=false;
+            while(!closing)
+            {
+                Entry entry=queue.take();
+                // Write whatever has piled up, then flush so the file is current whenever we are idle. On close,
+                // whatever was queued behind CLOSE by callers which hadn't seen it yet is written too.
+                while(entry != null)
+                {
+                    if(entry == CLOSE)
+                    {
+                        closing=true;
+                    }
+                    else
+                    {
+                        out.write(format(entry));
+                        out.write("\n");
+                    }
+                    entry=queue.poll();
+                }
+                long count=dropped.getAndSet(0);
+                if(count > 0)
+                {
+                    out.write(format(new Entry(System.currentTimeMillis(), CSLevel.WARNING,
+                            count + " messages dropped, log buffer full", null)));
+                    out.write("\n");
+                }
+                out.flush();
+            }
+        } catch (IOException ex) {
+            log.error("Cannot write to " + fileName, ex);
+        } catch (InterruptedException ex) {
+            // Stop.
+        } finally {
+            if(out != null)
+            {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    log.error("Cannot close " + fileName, ex);
+                }
+            }
+        }
     }
-    
-    public void info(String Message,boolean trace)
+
+    /**
+     * Writes out everything logged so far and closes the file. Nothing is logged to the file afterwards.
+     */
+    public void close()
     {
-        int depth=0;
-        if(trace){
-            depth=3;
+        if(writerThread == null)
+        {
+            return;
         }
-        
-        String output=line(Message, CSLevel.INFO,depth);
-        if(fileName != null)
+        synchronized(this)
         {
-            try {
-                FileUtils.writeStringToFile(new File(fileName), output + "\n",true);
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(CSLogger.class.getName()).log(Level.SEVERE, null, ex);
+            if(closed)
+            {
+                return;
             }
+            closed=true;
         }
-        else
+        if(Thread.currentThread() != shutdownHook)
         {
-            log.error(output);
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // Already shutting down, and the hook will find us closed.
+            }
+        }
+        try {
+            // If the writer thread has stopped nobody will take from the queue, so don't wait on it forever.
+            while(writerThread.isAlive())
+            {
+                if(queue.offer(CLOSE, ERROR_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                {
+                    break;
+                }
+            }
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
-    
+
+    public void debug(String Message)
+    {
+        write(CSLevel.DEBUG, Message, false);
+    }
+
+    public void trace(String Message)
+    {
+        write(CSLevel.TRACE, Message, false);
+    }
+
+    public void error(String Message)
+    {
+        write(CSLevel.ERROR, Message, false);
+    }
+
+    public void warning(String Message,boolean trace)
+    {
+        write(CSLevel.WARNING, Message, trace);
+    }
+
+    public void warning(String Message)
+    {
+        write(CSLevel.WARNING, Message, false);
+    }
+
+    public void info(String Message,boolean trace)
+    {
+        write(CSLevel.INFO, Message, trace);
+    }
+
     public void info(String Message)
     {
-        info(Message,false);
+        write(CSLevel.INFO, Message, false);
     }
-    
+
 }
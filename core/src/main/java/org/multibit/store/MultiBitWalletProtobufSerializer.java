@@ -22,6 +22,7 @@ import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.LazyTransactionHistory;
 import com.google.bitcoin.store.UnreadableWalletException;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.wallet.WalletTransaction;
@@ -119,6 +120,9 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
+        LazyTransactionHistory history = writeLazyHistory ? wallet.getLazyTransactionHistory() : null;
+        if (history != null)
+            history.addTo(walletBuilder);
 
         for (ECKey key : wallet.getKeys()) {
             Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
@@ -362,7 +366,7 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
+            Protos.Wallet walletProto = parseWalletProto(input);
             final String paramsID = walletProto.getNetworkIdentifier();
             NetworkParameters params = NetworkParameters.fromID(paramsID);
             if (params == null)
@@ -393,9 +397,12 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
               wallet = new Wallet(params);
             }
             readWallet(walletProto, wallet);
+            attachLazyHistory(wallet);
             return wallet;
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            discardLazyHistory();
         }
     }
 
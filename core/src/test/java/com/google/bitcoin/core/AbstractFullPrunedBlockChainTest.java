@@ -200,6 +200,47 @@ public abstract class AbstractFullPrunedBlockChainTest
         assertNull(out.get());
     }
     
+    @Test
+    public void unspentOutputsInBatchWrite() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        Sha256Hash hash = Sha256Hash.create(new byte[] { 1 });
+        StoredTransactionOutput out0 = new StoredTransactionOutput(hash, 0, Utils.COIN, 1, false, new byte[] { 1 });
+        StoredTransactionOutput out1 = new StoredTransactionOutput(hash, 1, Utils.COIN, 1, false, new byte[] { 2 });
+
+        // Changes made during a batch are visible to it straight away. An output created and spent in the same batch
+        // is gone once it's committed.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out0);
+        store.addUnspentTransactionOutput(out1);
+        assertEquals(out0, store.getTransactionOutput(hash, 0));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+        store.removeUnspentTransactionOutput(out0);
+        assertNull(store.getTransactionOutput(hash, 0));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertArrayEquals(out1.getScriptBytes(), store.getTransactionOutput(hash, 1).getScriptBytes());
+
+        // Aborting a batch throws its changes away.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out1);
+        assertNull(store.getTransactionOutput(hash, 1));
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+        store.abortDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(hash, 1));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+
+        // Adding an output that is already there, as a duplicated coinbase does, doesn't stop the rest of the batch.
+        StoredTransactionOutput out2 = new StoredTransactionOutput(hash, 2, Utils.COIN, 1, false, new byte[] { 3 });
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out1);
+        store.addUnspentTransactionOutput(out2);
+        store.commitDatabaseBatchWrite();
+        assertArrayEquals(out1.getScriptBytes(), store.getTransactionOutput(hash, 1).getScriptBytes());
+        assertArrayEquals(out2.getScriptBytes(), store.getTransactionOutput(hash, 2).getScriptBytes());
+        store.close();
+    }
+
     @Test
     public void testFirst100KBlocks() throws Exception {
         NetworkParameters params = MainNetParams.get();
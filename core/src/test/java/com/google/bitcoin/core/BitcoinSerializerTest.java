@@ -249,6 +249,57 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testSerializeToArray() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        assertArrayEquals(txMessage, bs.serialize(tx));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        assertArrayEquals(txMessage, bos.toByteArray());
+    }
+
+    @Test
+    public void testDeserializePayloadArray() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        ByteBuffer buffer = ByteBuffer.wrap(txMessage);
+        bs.seekPastMagicBytes(buffer);
+        BitcoinSerializer.BitcoinPacketHeader header = bs.deserializeHeader(buffer);
+        byte[] payload = Arrays.copyOfRange(txMessage, buffer.position(), txMessage.length);
+        Transaction tx = (Transaction) bs.deserializePayload(header, payload);
+        assertEquals(bs.deserialize(ByteBuffer.wrap(txMessage)).getHash(), tx.getHash());
+        assertArrayEquals(txMessage, bs.serialize(tx));
+
+        // A corrupted payload must be rejected, the same as when it is read from a buffer.
+        payload = payload.clone();
+        payload[payload.length - 1] ^= 1;
+        try {
+            bs.deserializePayload(header, payload);
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload).flip();
+        try {
+            bs.deserializePayload(header, direct);
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void testDeserializeFromDirectBuffer() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        ByteBuffer direct = ByteBuffer.allocateDirect(txMessage.length);
+        direct.put(txMessage).flip();
+        Transaction tx = (Transaction) bs.deserialize(direct);
+        assertFalse(direct.hasRemaining());
+        assertArrayEquals(txMessage, bs.serialize(tx));
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
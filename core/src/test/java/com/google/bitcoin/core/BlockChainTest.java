@@ -24,6 +24,7 @@ import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.MemoryBlockStore;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.After;
 import org.junit.Before;
@@ -31,7 +32,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
@@ -174,6 +177,87 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphansConnectInAnyOrder() throws Exception {
+        // Blocks arriving backwards are all connected once the first one turns up.
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = unitTestParams.getGenesisBlock();
+        for (int i = 0; i < 50; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(49, chain.getOrphanCount());
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+        assertEquals(49, chain.getOrphansConnectedCount());
+        assertEquals(prev.cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void orphanLimits() throws Exception {
+        chain.setOrphanLimits(10, Long.MAX_VALUE);
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = unitTestParams.getGenesisBlock();
+        for (int i = 0; i < 20; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        // The oldest orphans are dropped.
+        for (int i = 1; i < blocks.size(); i++)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(10, chain.getOrphanCount());
+        assertEquals(9, chain.getOrphansEvictedCount());
+        assertFalse(chain.isOrphan(blocks.get(1).getHash()));
+        assertFalse(chain.isOrphan(blocks.get(9).getHash()));
+        assertTrue(chain.isOrphan(blocks.get(10).getHash()));
+        // So nothing builds on the first block any more.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(blocks.get(0).cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(10, chain.getOrphanCount());
+    }
+
+    @Test
+    public void addHeaders() throws Exception {
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = unitTestParams.getGenesisBlock();
+        for (int i = 0; i < 300; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            headers.add(prev.cloneAsHeader());
+        }
+        // Only runs that build on the chain head can be added in bulk.
+        assertFalse(chain.addHeaders(headers.subList(1, headers.size())));
+        assertEquals(0, chain.getBestChainHeight());
+        // As can only runs that link up.
+        List<Block> gap = new ArrayList<Block>(headers.subList(0, 5));
+        gap.remove(2);
+        assertFalse(chain.addHeaders(gap));
+        assertEquals(0, chain.getBestChainHeight());
+
+        ListenableFuture<StoredBlock> future = chain.getHeightFuture(300);
+        // Listeners are told about each header in turn, with the chain head at that header, as with add().
+        final List<Sha256Hash> reported = new ArrayList<Sha256Hash>();
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                assertEquals(block, chain.getChainHead());
+                reported.add(block.getHeader().getHash());
+            }
+        }, Threading.SAME_THREAD);
+        assertTrue(chain.addHeaders(headers));
+        assertEquals(headers.size(), reported.size());
+        for (int i = 0; i < headers.size(); i++)
+            assertEquals(headers.get(i).getHash(), reported.get(i));
+        assertEquals(300, chain.getBestChainHeight());
+        assertEquals(prev.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(prev.cloneAsHeader(), future.get().getHeader());
+        assertEquals(prev.getHash(), blockStore.getChainHead().getHeader().getHash());
+        for (int i = 0; i < headers.size(); i++)
+            assertEquals(i + 1, blockStore.get(headers.get(i).getHash()).getHeight());
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -0,0 +1,49 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A CachingFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest, wrapping a MemoryFullPrunedBlockStore
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        // Small enough that the cache has to evict whilst loading the test chains.
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 100);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op for memory store, because it's not persistent
+    }
+
+    @Test
+    public void spendsAreServedFromCache() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        CachingFullPrunedBlockStore store = (CachingFullPrunedBlockStore) createStore(params, 10);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        assertTrue(store.getCacheSize() > 0);
+        assertNotNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertEquals(0, store.getMisses());
+        assertEquals(1.0, store.getHitRate(), 0.0);
+        store.close();
+    }
+}
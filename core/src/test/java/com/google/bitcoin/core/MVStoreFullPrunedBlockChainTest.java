@@ -0,0 +1,37 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.MVStoreFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * An MVStore implementation of the FullPrunedBlockStoreTest
+ */
+public class MVStoreFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private static final String FILE_NAME = "test.mv.db";
+
+    private MVStoreFullPrunedBlockStore store;
+
+    @After
+    public void tearDown() throws Exception {
+        // The store keeps its file locked until it is closed.
+        if (store != null)
+            store.close();
+        new File(FILE_NAME).delete();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        new File(FILE_NAME).delete();
+        store = new MVStoreFullPrunedBlockStore(params, FILE_NAME, blockCount);
+        return store;
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((MVStoreFullPrunedBlockStore)store).resetStore();
+    }
+}
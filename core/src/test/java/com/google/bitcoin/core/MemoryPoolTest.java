@@ -25,6 +25,7 @@ import org.junit.Test;
 import java.net.InetAddress;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class MemoryPoolTest {
@@ -75,4 +76,65 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void ageEviction() throws Exception {
+        Utils.setMockClock();
+        try {
+            MemoryPool pool = new MemoryPool(100, 60 * 1000, 4);
+            pool.seen(tx1.getHash(), address1);
+            assertTrue(pool.maybeWasSeen(tx1.getHash()));
+            Utils.rollMockClock(30);
+            assertTrue(pool.maybeWasSeen(tx1.getHash()));
+            Utils.rollMockClock(31);
+            assertFalse(pool.maybeWasSeen(tx1.getHash()));
+            assertEquals(0, pool.numBroadcastPeers(tx1.getHash()));
+            assertEquals(1, pool.getAgeEvictionCount());
+        } finally {
+            Utils.mockTime = null;
+        }
+    }
+
+    @Test
+    public void sizeEvictionAndStats() throws Exception {
+        MemoryPool pool = new MemoryPool(1, 0, 1);
+        pool.seen(tx1.getHash(), address1);
+        pool.seen(tx1.getHash(), address2);
+        assertEquals(2, pool.getLookupCount());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0.5, pool.getHitRate(), 0.0001);
+        Sha256Hash other = Sha256Hash.create(new byte[] { 1 });
+        pool.seen(other, address1);
+        assertFalse(pool.maybeWasSeen(tx1.getHash()));
+        assertTrue(pool.maybeWasSeen(other));
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(1, pool.getAnnouncingPeers(other).size());
+    }
+
+    @Test
+    public void peerIndexesAreRecycled() throws Exception {
+        MemoryPool pool = new MemoryPool(1, 0, 1);
+        // Each announcement evicts the one before, along with the only reference to its peer.
+        for (int i = 0; i < 1000; i++) {
+            PeerAddress address = new PeerAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }));
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) (i >> 8), (byte) i });
+            pool.seen(hash, address);
+            pool.seen(hash, address);
+            assertEquals(1, pool.numPeerIndexes());
+            assertEquals(address, pool.getAnnouncingPeers(hash).get(0));
+            assertEquals(1, pool.getAnnouncingPeers(hash).size());
+        }
+        assertTrue(pool.numPeerSlots() <= 2);
+
+        // Downloading the transaction moves the peers to its confidence and gives the indexes back.
+        pool = new MemoryPool();
+        pool.seen(tx1.getHash(), address1);
+        pool.seen(tx1.getHash(), address2);
+        assertEquals(2, pool.numPeerIndexes());
+        Transaction t = pool.seen(tx1, address3);
+        assertEquals(3, t.getConfidence().numBroadcastPeers());
+        assertEquals(0, pool.numPeerIndexes());
+        pool.seen(tx2.getHash(), address3);
+        assertEquals(0, pool.numPeerIndexes());
+    }
 }
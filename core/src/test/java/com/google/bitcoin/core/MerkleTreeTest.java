@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MerkleTreeTest {
+    // The straightforward way of building the tree, one level at a time.
+    private static Sha256Hash referenceRoot(List<Sha256Hash> leaves) {
+        List<byte[]> tree = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            tree.add(leaf.getBytes());
+        int levelOffset = 0;
+        for (int levelSize = leaves.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
+                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
+                tree.add(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        return new Sha256Hash(tree.get(tree.size() - 1));
+    }
+
+    private static List<Sha256Hash> randomLeaves(Random random, int count) {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            leaves.add(new Sha256Hash(hash));
+        }
+        return leaves;
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        Random random = new Random(1);
+        // Odd and even levels, and sizes either side of the parallel threshold.
+        for (int count : new int[] { 1, 2, 3, 4, 5, 7, 8, MerkleTree.PARALLEL_THRESHOLD - 1,
+                MerkleTree.PARALLEL_THRESHOLD, MerkleTree.PARALLEL_THRESHOLD * 2 + 1, 5001 }) {
+            List<Sha256Hash> leaves = randomLeaves(random, count);
+            Sha256Hash expected = referenceRoot(leaves);
+            assertEquals(expected, MerkleTree.computeRoot(leaves));
+
+            byte[] tree = MerkleTree.buildTree(leaves);
+            byte[] root = Utils.reverseBytes(Arrays.copyOfRange(tree, tree.length - 32, tree.length));
+            assertEquals(expected, new Sha256Hash(root));
+        }
+    }
+
+    @Test
+    public void combine() throws Exception {
+        List<Sha256Hash> leaves = randomLeaves(new Random(2), 2);
+        assertEquals(referenceRoot(leaves), MerkleTree.combine(leaves.get(0), leaves.get(1)));
+    }
+}
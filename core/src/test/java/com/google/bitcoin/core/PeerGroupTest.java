@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.net.discovery.PeerDiscovery;
 import com.google.bitcoin.net.discovery.PeerDiscoveryException;
 import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.MemoryBlockStore;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.Threading;
@@ -193,6 +194,70 @@ public class PeerGroupTest extends TestWithPeerGroup {
         peerGroup.stopAndWait();
     }
 
+    @Test
+    public void receiveTxRetriedOnAnotherPeer() throws Exception {
+        // Check that a transaction the first announcing peer doesn't send is asked of another peer that announced it.
+        peerGroup.startAndWait();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        BigInteger value = Utils.toNanoCoins(1, 0);
+        Transaction t1 = TestUtils.createFakeTx(unitTestParams, value, address);
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        inv.addTransaction(t1);
+        Utils.setMockClock();
+        try {
+            inbound(p1, inv);
+            assertTrue(outbound(p1) instanceof GetDataMessage);
+            inbound(p2, inv);
+            assertNull(outbound(p2));
+
+            // p1 never sends it, so once the request times out p2 is asked instead.
+            Utils.rollMockClockMillis(TransactionRequestTracker.DEFAULT_TIMEOUT_MILLIS);
+            TransactionRequestTracker tracker = peerGroup.getTransactionRequestTracker();
+            tracker.checkTimeouts();
+            GetDataMessage getdata = (GetDataMessage) waitForOutbound(p2);
+            assertEquals(t1.getHash(), getdata.getItems().get(0).hash);
+            inbound(p2, t1);
+            // Asks for dependency.
+            getdata = (GetDataMessage) outbound(p2);
+            inbound(p2, new NotFoundMessage(unitTestParams, getdata.getItems()));
+            pingAndWait(p2);
+            assertEquals(value, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+            assertNull(outbound(p1));
+
+            assertEquals(2, tracker.getRequestCount());
+            assertEquals(1, tracker.getTimeoutCount());
+            assertEquals(1, tracker.getRetryCount());
+            assertEquals(1, tracker.getFetchedCount());
+            assertEquals(TransactionRequestTracker.DEFAULT_TIMEOUT_MILLIS, tracker.getMaxLatencyMillis());
+            assertEquals(0, tracker.size());
+        } finally {
+            Utils.mockTime = null;
+        }
+        peerGroup.stopAndWait();
+    }
+
+    @Test
+    public void servePendingTransactions() throws Exception {
+        // Check that a peer asking for one of our pending transactions gets it, until it confirms.
+        peerGroup.startAndWait();
+        InboundMessageQueuer p1 = connectPeer(1);
+
+        Transaction t1 = TestUtils.createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), address);
+        wallet.receivePending(t1, null);
+        GetDataMessage getdata = new GetDataMessage(unitTestParams);
+        getdata.addTransaction(t1.getHash());
+        inbound(p1, getdata);
+        assertEquals(t1, outbound(p1));
+
+        Block b1 = TestUtils.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), t1);
+        blockChain.add(b1);
+        inbound(p1, getdata);
+        assertNull(outbound(p1));
+        peerGroup.stopAndWait();
+    }
+
     @Test
     public void singleDownloadPeer1() throws Exception {
         // Check that we don't attempt to retrieve blocks on multiple peers.
@@ -272,6 +337,100 @@ public class PeerGroupTest extends TestWithPeerGroup {
         peerGroup.stop();
     }
 
+    @Test
+    public void parallelChainDownload() throws Exception {
+        // Check that headers come from the download peer, the blocks are then shared out between all the peers in
+        // batches, and that blocks owed by a peer which goes away are asked of another one.
+        peerGroup.setParallelChainDownload(true);
+        peerGroup.startAndWait();
+
+        final int batch = BlockDownloadScheduler.BATCH_SIZE;
+        Block[] blocks = new Block[batch + 4];
+        blocks[0] = TestUtils.makeSolvedTestBlock(blockStore, address);
+        for (int i = 1; i < blocks.length; i++)
+            blocks[i] = TestUtils.makeSolvedTestBlock(blocks[i - 1]);
+        VersionMessage ver = new VersionMessage(params, blocks.length);
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        ver.clientVersion = remoteVersionMessage.clientVersion;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        InboundMessageQueuer p2 = connectPeer(2, ver);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+        assertEquals(Sha256Hash.ZERO_HASH, getheaders.getStopHash());
+        assertNull(outbound(p2));
+        inbound(p1, new HeadersMessage(params, blocks));
+
+        // The first batch goes to p1 and the rest to p2.
+        GetDataMessage getdata1 = (GetDataMessage) outbound(p1);
+        GetDataMessage getdata2 = (GetDataMessage) outbound(p2);
+        assertEquals(batch, getdata1.getItems().size());
+        assertEquals(blocks[0].getHash(), getdata1.getItems().get(0).hash);
+        assertEquals(4, getdata2.getItems().size());
+        assertEquals(blocks[batch].getHash(), getdata2.getItems().get(0).hash);
+        // Each getdata for filtered blocks is followed by a ping.
+        assertTrue(outbound(p1) instanceof Ping);
+        assertTrue(outbound(p2) instanceof Ping);
+
+        // p1 delivers its blocks, but p2 disconnects instead, so p1 is asked for the rest.
+        for (int i = 0; i < batch; i++)
+            inbound(p1, blocks[i]);
+        pingAndWait(p1);
+        assertEquals(batch, blockChain.getBestChainHeight());
+        closePeer(peerOf(p2));
+        GetDataMessage getdata3 = (GetDataMessage) waitForOutbound(p1);
+        assertEquals(4, getdata3.getItems().size());
+        assertEquals(blocks[batch].getHash(), getdata3.getItems().get(0).hash);
+        assertTrue(waitForOutbound(p1) instanceof Ping);
+
+        // Once everything is in, p1 goes back to following the chain as usual.
+        for (int i = batch; i < blocks.length; i++)
+            inbound(p1, blocks[i]);
+        GetBlocksMessage getblocks = (GetBlocksMessage) waitForOutbound(p1);
+        assertEquals(blocks[blocks.length - 1].getHash(), getblocks.getLocator().get(0));
+        assertEquals(blocks.length, blockChain.getBestChainHeight());
+        peerGroup.stop();
+    }
+
+    @Test
+    public void parallelChainDownloadChainThrows() throws Exception {
+        // If adding a block throws, as it does when the block store fails, the download falls back to the usual one
+        // instead of waiting forever for the block to be delivered.
+        peerGroup.setParallelChainDownload(true);
+        peerGroup.startAndWait();
+
+        Block[] blocks = new Block[4];
+        blocks[0] = TestUtils.makeSolvedTestBlock(blockStore, address);
+        for (int i = 1; i < blocks.length; i++)
+            blocks[i] = TestUtils.makeSolvedTestBlock(blocks[i - 1]);
+        final Sha256Hash failing = blocks[1].getHash();
+        blockChain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                if (block.getHeader().getHash().equals(failing))
+                    throw new RuntimeException(new BlockStoreException("Simulated failure"));
+            }
+        }, Threading.SAME_THREAD);
+        VersionMessage ver = new VersionMessage(params, blocks.length);
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        ver.clientVersion = remoteVersionMessage.clientVersion;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, blocks));
+        assertEquals(blocks.length, ((GetDataMessage) outbound(p1)).getItems().size());
+        assertTrue(outbound(p1) instanceof Ping);
+        inbound(p1, blocks[0]);
+        inbound(p1, blocks[1]);
+        // The scheduler gave up, and the peer carries on with getblocks.
+        assertTrue(waitForOutbound(p1) instanceof GetBlocksMessage);
+        peerGroup.stop();
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
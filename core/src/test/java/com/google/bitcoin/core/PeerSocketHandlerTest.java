@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.net.MessageWriteTarget;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final BitcoinSerializer serializer = new BitcoinSerializer(params);
+    private final List<Message> received = new ArrayList<Message>();
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private final List<Boolean> pauses = new ArrayList<Boolean>();
+    private boolean closed;
+    private PeerSocketHandler handler;
+    private ByteBuffer readBuffer;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new PeerSocketHandler(params, new InetSocketAddress("127.0.0.1", 8333)) {
+            @Override
+            protected void processMessage(Message m) throws Exception {
+                received.add(m);
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        handler.setMessageExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        handler.setWriteTarget(new MessageWriteTarget() {
+            @Override
+            public void writeBytes(byte[] message) {
+            }
+
+            @Override
+            public void setReadingPaused(boolean paused) {
+                pauses.add(paused);
+            }
+
+            @Override
+            public void closeConnection() {
+                closed = true;
+            }
+        });
+        readBuffer = ByteBuffer.allocate(65536);
+    }
+
+    // Feeds the bytes to the handler a buffer at a time, like ConnectionHandler does.
+    private void feed(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(readBuffer.remaining(), bytes.length - offset);
+            readBuffer.put(bytes, offset, length);
+            offset += length;
+            readBuffer.flip();
+            assertEquals(readBuffer.position(), handler.receiveBytes(readBuffer));
+            readBuffer.compact();
+        }
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+    }
+
+    @Test
+    public void messagesAreProcessedInOrderOnTheExecutor() throws Exception {
+        feed(serializer.serialize(new Ping(1)));
+        feed(serializer.serialize(new Ping(2)));
+        // Nothing is decoded on the network thread, and one task drains the peer's messages.
+        assertTrue(received.isEmpty());
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(2, received.size());
+        assertEquals(1, ((Ping) received.get(0)).getNonce());
+        assertEquals(2, ((Ping) received.get(1)).getNonce());
+
+        feed(serializer.serialize(new Ping(3)));
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(3, ((Ping) received.get(2)).getNonce());
+        assertTrue(pauses.isEmpty());
+    }
+
+    @Test
+    public void readingIsPausedWhilstTooMuchIsQueued() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("junk", new byte[Block.MAX_BLOCK_SIZE], bos);
+        byte[] big = bos.toByteArray();
+        int count = PeerSocketHandler.MAX_QUEUED_BYTES / Block.MAX_BLOCK_SIZE + 1;
+        for (int i = 0; i < count; i++)
+            feed(big);
+        assertEquals(1, pauses.size());
+        assertTrue(pauses.get(0));
+        runTasks();
+        assertEquals(count, received.size());
+        assertEquals(2, pauses.size());
+        assertFalse(pauses.get(1));
+    }
+
+    @Test
+    public void corruptMessageClosesConnection() throws Exception {
+        byte[] bad = serializer.serialize(new Ping(1));
+        bad[bad.length - 1] ^= 1;
+        feed(bad);
+        feed(serializer.serialize(new Ping(2)));
+        runTasks();
+        assertTrue(closed);
+        assertTrue(received.isEmpty());
+    }
+}
@@ -1,9 +1,19 @@
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.store.PostgresFullPrunedBlockStore;
 import org.junit.Ignore;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
 
 /**
  * A Postgres implementation of the {@link AbstractFullPrunedBlockChainTest}
@@ -27,4 +37,44 @@ public class PostgresFullPrunedBlockChainTest extends AbstractFullPrunedBlockCha
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((PostgresFullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void addressQueries() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        PostgresFullPrunedBlockStore store = (PostgresFullPrunedBlockStore) createStore(params, 10);
+        resetStore(store);
+        Address a = new ECKey().toAddress(params);
+        Address b = new ECKey().toAddress(params);
+        Address unused = new ECKey().toAddress(params);
+        byte[] scriptA = ScriptBuilder.createOutputScript(a).getProgram();
+        byte[] scriptB = ScriptBuilder.createOutputScript(b).getProgram();
+        for (int i = 0; i < 5; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+            store.addUnspentTransactionOutput(new StoredTransactionOutput(hash, 0, Utils.COIN, 10 + i, false, scriptA));
+            store.addUnspentTransactionOutput(new StoredTransactionOutput(hash, 1, Utils.CENT, 10 + i, false, scriptB));
+        }
+
+        Map<Address, BigInteger> balances = store.calculateBalancesForAddresses(Arrays.asList(a, b, unused));
+        assertEquals(Utils.COIN.multiply(BigInteger.valueOf(5)), balances.get(a));
+        assertEquals(Utils.CENT.multiply(BigInteger.valueOf(5)), balances.get(b));
+        assertEquals(BigInteger.ZERO, balances.get(unused));
+        assertEquals(balances.get(a), store.calculateBalanceForAddress(a));
+
+        // Page through both addresses' outputs three at a time.
+        List<StoredTransactionOutput> page = store.getOpenOutputsForAddresses(Arrays.asList(a, b), 0, null, 3);
+        assertEquals(3, page.size());
+        int total = page.size();
+        while (page.size() == 3) {
+            page = store.getOpenOutputsForAddresses(Arrays.asList(a, b), 0, page.get(page.size() - 1), 3);
+            total += page.size();
+        }
+        assertEquals(10, total);
+
+        // Only outputs from the last two blocks.
+        List<StoredTransactionOutput> recent = store.getOpenOutputsForAddresses(Arrays.asList(a), 13, null, 100);
+        assertEquals(2, recent.size());
+        assertEquals(13, recent.get(0).getHeight());
+        assertArrayEquals(scriptA, recent.get(0).getScriptBytes());
+        store.close();
+    }
 }
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class TransactionRelayIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private TransactionRelayIndex index;
+    private Wallet wallet1, wallet2;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new TransactionRelayIndex();
+        wallet1 = new Wallet(params);
+        wallet2 = new Wallet(params);
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        wallet1.addKey(key1);
+        wallet2.addKey(key2);
+        for (Wallet wallet : new Wallet[] { wallet1, wallet2 }) {
+            wallet.addEventListener(index, Threading.SAME_THREAD);
+            index.addWallet(wallet);
+        }
+        // Pays both wallets.
+        tx = createFakeTx(params, Utils.toNanoCoins(1, 0), key1.toAddress(params));
+        tx.addOutput(Utils.toNanoCoins(1, 0), key2.toAddress(params));
+    }
+
+    @Test
+    public void keptUntilNoWalletHasItPending() throws Exception {
+        wallet1.receivePending(tx, null);
+        wallet2.receivePending(new Transaction(params, tx.bitcoinSerialize()), null);
+        assertNotNull(index.get(tx.getHash()));
+        // Still pending in the other wallet.
+        index.removeWallet(wallet1);
+        assertNotNull(index.get(tx.getHash()));
+        // Dropped without an event about the transaction itself.
+        wallet2.clearTransactions(0);
+        assertNull(index.get(tx.getHash()));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void confirmedInOneWallet() throws Exception {
+        Transaction copy = new Transaction(params, tx.bitcoinSerialize());
+        wallet1.receivePending(tx, null);
+        wallet2.receivePending(copy, null);
+        // Only wallet1's copy is confirmed, wallet2 still relays its own.
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        index.onTransactionConfidenceChanged(wallet1, tx);
+        assertNotNull(index.get(tx.getHash()));
+        copy.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        index.onTransactionConfidenceChanged(wallet2, copy);
+        assertNull(index.get(tx.getHash()));
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+import static com.google.bitcoin.utils.TestUtils.makeSolvedTestBlock;
+import static org.junit.Assert.*;
+
+public class TransactionRelevanceIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private TransactionRelevanceIndex index;
+    private Wallet wallet1, wallet2;
+    private ECKey key1, key2;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new TransactionRelevanceIndex();
+        wallet1 = new Wallet(params);
+        key1 = new ECKey();
+        wallet1.addKey(key1);
+        wallet2 = new Wallet(params);
+        key2 = new ECKey();
+        wallet2.addKey(key2);
+        index.addWallet(wallet1);
+        index.addWallet(wallet2);
+    }
+
+    @Test
+    public void matchesOutputsAndSpends() throws Exception {
+        Transaction tx1 = createFakeTx(params, Utils.toNanoCoins(1, 0), key1.toAddress(params));
+        assertEquals(ImmutableSet.of(wallet1), index.match(tx1));
+        Transaction tx2 = createFakeTx(params, Utils.toNanoCoins(1, 0), key2);
+        assertEquals(ImmutableSet.of(wallet2), index.match(tx2));
+        assertEquals(Collections.<Wallet>emptySet(),
+                index.match(createFakeTx(params, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params))));
+
+        // A spend of a wallet's transaction with nothing else to go by, like a spend of a pay to pubkey output.
+        Transaction spend = new Transaction(params);
+        spend.addInput(new TransactionInput(params, spend, new byte[0], new TransactionOutPoint(params, 0, tx1)));
+        spend.addOutput(Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        assertEquals(Collections.<Wallet>emptySet(), index.match(spend));
+        wallet1.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx1));
+        assertEquals(ImmutableSet.of(wallet1), index.match(spend));
+        // As is the transaction itself, and another spending the same output as it.
+        assertEquals(ImmutableSet.of(wallet1), index.match(tx1));
+        Transaction doubleSpend = new Transaction(params);
+        TransactionOutPoint outpoint = tx1.getInput(0).getOutpoint();
+        doubleSpend.addInput(new TransactionInput(params, doubleSpend, new byte[0],
+                new TransactionOutPoint(params, outpoint.getIndex(), outpoint.getHash())));
+        doubleSpend.addOutput(Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        assertEquals(ImmutableSet.of(wallet1), index.match(doubleSpend));
+    }
+
+    @Test
+    public void keysAddedLater() throws Exception {
+        ECKey key = new ECKey();
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), key.toAddress(params));
+        TransactionRelevanceIndex.Matcher matcher = index.newMatcher();
+        assertFalse(matcher.mayBeRelevant(tx, wallet2));
+        wallet2.addKey(key);
+        assertTrue(matcher.mayBeRelevant(tx, wallet2));
+        assertFalse(matcher.mayBeRelevant(tx, wallet1));
+        // Listeners that aren't indexed wallets are always asked.
+        assertTrue(matcher.mayBeRelevant(tx, new Wallet(params)));
+    }
+
+    @Test
+    public void watchedScripts() throws Exception {
+        Address watched = new ECKey().toAddress(params);
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), watched);
+        assertEquals(Collections.<Wallet>emptySet(), index.match(tx));
+        wallet1.addWatchedAddress(watched);
+        assertEquals(ImmutableSet.of(wallet1), index.match(tx));
+        // Scripts watched before the wallet was added count too.
+        Wallet wallet3 = new Wallet(params);
+        wallet3.addWatchedAddress(watched);
+        index.addWallet(wallet3);
+        assertEquals(ImmutableSet.of(wallet1, wallet3), index.match(tx));
+    }
+
+    @Test
+    public void watchedAddressReceivesThroughChain() throws Exception {
+        Wallet wallet = new Wallet(params);
+        BlockChain chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        Address watched = new ECKey().toAddress(params);
+        wallet.addWatchedAddress(watched);
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), watched);
+        assertTrue(chain.add(makeSolvedTestBlock(params.getGenesisBlock(), tx)));
+        assertNotNull(wallet.getTransaction(tx.getHash()));
+        assertEquals(Utils.toNanoCoins(1, 0), wallet.getWatchedBalance());
+    }
+
+    @Test
+    public void removeWallet() throws Exception {
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), key1.toAddress(params));
+        // Added twice, as by two peers, so it stays until removed twice.
+        index.addWallet(wallet1);
+        index.removeWallet(wallet1);
+        assertEquals(ImmutableSet.of(wallet1), index.match(tx));
+        index.removeWallet(wallet1);
+        assertFalse(index.contains(wallet1));
+        assertEquals(Collections.<Wallet>emptySet(), index.match(tx));
+        wallet1.addKey(new ECKey());
+        assertEquals(Collections.<Wallet>emptySet(), index.match(tx));
+        assertTrue(index.contains(wallet2));
+    }
+}
@@ -559,6 +559,100 @@ public class WalletTest extends TestWithWallet {
         assertEquals(BigInteger.ZERO.subtract(toNanoCoins(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void readsFromSnapshot() throws Exception {
+        // Threads that don't hold the lock read from a snapshot which has every change finished before the read.
+        final BigInteger nanos = Utils.toNanoCoins(1, 0);
+        final Transaction tx1 = sendMoneyToWallet(nanos, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        assertEquals(nanos, wallet.getBalance());
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                results.add(wallet.getBalance());
+                results.add(wallet.getTransaction(tx1.getHash()));
+                results.add(wallet.findKeyFromPubHash(myKey.getPubKeyHash()));
+            }
+        };
+        // Nothing changed since the last read, so the reader doesn't need the lock.
+        wallet.lock.lock();
+        try {
+            reader.start();
+            reader.join(10000);
+            assertFalse(reader.isAlive());
+        } finally {
+            wallet.lock.unlock();
+        }
+        assertEquals(Arrays.<Object>asList(nanos, tx1, myKey), results);
+        assertEquals(0, wallet.getReadSnapshotWaitCount());
+
+        // A change made since is seen straight away.
+        sendMoneyToWallet(nanos, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(nanos.add(nanos), wallet.getBalance());
+        ECKey key = new ECKey();
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        wallet.addKey(key);
+        assertEquals(key, wallet.findKeyFromPubKey(key.getPubKey()));
+        assertEquals(2, wallet.getKeychainSize());
+    }
+
+    @Test
+    public void readOnlyCallsKeepSnapshot() throws Exception {
+        // Methods that only read don't make the snapshot out of date, so a reader doesn't end up waiting for whoever
+        // holds the lock after them.
+        final BigInteger nanos = Utils.toNanoCoins(1, 0);
+        sendMoneyToWallet(nanos, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        assertEquals(nanos, wallet.getBalance());
+        wallet.getLastBlockSeenHeight();
+        wallet.getLastBlockSeenHash();
+        wallet.getKeyCrypter();
+        wallet.getCoinSelector();
+        wallet.getWatchedScripts();
+        wallet.getExtensions();
+        wallet.doesAcceptRiskyTransactions();
+        wallet.getRiskAnalyzer();
+        wallet.getTransactions(true);
+        wallet.CS.getNumberUTXO();
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                results.add(wallet.getBalance());
+            }
+        };
+        long builds = wallet.getReadSnapshotBuildCount();
+        wallet.lock.lock();
+        try {
+            reader.start();
+            reader.join(10000);
+            assertFalse(reader.isAlive());
+        } finally {
+            wallet.lock.unlock();
+        }
+        assertEquals(Arrays.<Object>asList(nanos), results);
+        assertEquals(0, wallet.getReadSnapshotWaitCount());
+        assertEquals(builds, wallet.getReadSnapshotBuildCount());
+    }
+
+    @Test
+    public void snapshotBuiltOncePerBatchOfChanges() throws Exception {
+        // Writers only mark the snapshot out of date, the next reader copies the wallet once for all their changes.
+        final BigInteger nanos = Utils.toNanoCoins(1, 0);
+        sendMoneyToWallet(nanos, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        assertEquals(nanos, wallet.getBalance());
+        long builds = wallet.getReadSnapshotBuildCount();
+        for (int i = 0; i < 5; i++)
+            sendMoneyToWallet(nanos, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        assertEquals(builds, wallet.getReadSnapshotBuildCount());
+        assertEquals(nanos.multiply(BigInteger.valueOf(6)), wallet.getBalance());
+        assertEquals(nanos.multiply(BigInteger.valueOf(6)), wallet.getBalance());
+        assertEquals(builds + 1, wallet.getReadSnapshotBuildCount());
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -2295,4 +2389,79 @@ public class WalletTest extends TestWithWallet {
         }
         assertTrue(TransactionSignature.isEncodingCanonical(dummySig));
     }
+
+    @Test
+    public void batchedConfidenceEvents() throws Exception {
+        Transaction t1 = sendMoneyToWallet(Utils.CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction t2 = sendMoneyToWallet(Utils.CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        wallet.setConfidenceEventBatching(true, 0);
+        final List<Map<Transaction, TransactionConfidence.Listener.ChangeReason>> batches =
+                new ArrayList<Map<Transaction, TransactionConfidence.Listener.ChangeReason>>();
+        final AtomicInteger singleEvents = new AtomicInteger();
+        class BatchListener extends AbstractWalletEventListener implements TransactionConfidenceBatchListener {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                singleEvents.incrementAndGet();
+            }
+
+            @Override
+            public void onTransactionConfidencesChanged(Wallet wallet, Map<Transaction, TransactionConfidence.Listener.ChangeReason> changes) {
+                batches.add(changes);
+            }
+        }
+        wallet.addEventListener(new BatchListener(), Threading.SAME_THREAD);
+        final AtomicInteger confidenceEvents = new AtomicInteger();
+        TransactionConfidence.Listener listener = new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                confidenceEvents.incrementAndGet();
+            }
+        };
+        t1.getConfidence().addEventListener(listener, Threading.SAME_THREAD);
+        t2.getConfidence().addEventListener(listener, Threading.SAME_THREAD);
+
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(TransactionConfidence.Listener.ChangeReason.DEPTH, batches.get(0).get(t1));
+        assertEquals(0, singleEvents.get());
+        assertEquals(2, confidenceEvents.get());
+        assertEquals(1, wallet.getCoalescedConfidenceEventCount());
+    }
+
+    @Test
+    public void derivedConfidenceDepth() throws Exception {
+        wallet.setConfidenceNotifyDepth(3);
+        Transaction t1 = sendMoneyToWallet(Utils.CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, t1.getConfidence().getDepthInBlocks());
+        final List<TransactionConfidence.Listener.ChangeReason> reasons = Lists.newArrayList();
+        t1.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                reasons.add(reason);
+            }
+        }, Threading.SAME_THREAD);
+        BigInteger work = t1.getConfidence().getWorkDone();
+
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(2, t1.getConfidence().getDepthInBlocks());
+        assertEquals(work.multiply(BigInteger.valueOf(2)), t1.getConfidence().getWorkDone());
+        assertEquals(0, reasons.size());
+
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(3, t1.getConfidence().getDepthInBlocks());
+        assertEquals(1, reasons.size());
+        assertEquals(TransactionConfidence.Listener.ChangeReason.DEPTH, reasons.get(0));
+
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(4, t1.getConfidence().getDepthInBlocks());
+        assertEquals(1, reasons.size());
+
+        // Switching back keeps the derived values.
+        wallet.setConfidenceNotifyDepth(0);
+        assertEquals(4, t1.getConfidence().getDepthInBlocks());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(5, t1.getConfidence().getDepthInBlocks());
+    }
 }
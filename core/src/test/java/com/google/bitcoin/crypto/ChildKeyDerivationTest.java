@@ -16,9 +16,12 @@
 
 package com.google.bitcoin.crypto;
 
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -125,6 +128,35 @@ public class ChildKeyDerivationTest {
         return hexEncode(pubKey.getPubKeyBytes());
     }
 
+    @Test
+    public void batchDerivationMatchesSingle() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicKey pubOnly = master.getPubOnly();
+        // Big enough to be split across threads.
+        List<DeterministicKey> pubBatch = HDKeyDerivation.deriveChildKeys(pubOnly, 10, 300, false);
+        assertEquals(300, pubBatch.size());
+        for (int i = 0; i < pubBatch.size(); i += 37) {
+            DeterministicKey single = HDKeyDerivation.deriveChildKey(pubOnly, new ChildNumber(10 + i, false));
+            assertEquals(single.getPath(), pubBatch.get(i).getPath());
+            assertEquals(hexEncode(single.getPubKeyBytes()), hexEncode(pubBatch.get(i).getPubKeyBytes()));
+            assertEquals(hexEncode(single.getChainCode()), hexEncode(pubBatch.get(i).getChainCode()));
+        }
+        List<DeterministicKey> privBatch = HDKeyDerivation.deriveChildKeys(master, 0, 5, true);
+        for (int i = 0; i < privBatch.size(); i++) {
+            DeterministicKey single = HDKeyDerivation.deriveChildKey(master, new ChildNumber(i, true));
+            assertEquals(hexEncode(single.getPrivKeyBytes()), hexEncode(privBatch.get(i).getPrivKeyBytes()));
+        }
+
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+        ImmutableList<ChildNumber> parentPath = ImmutableList.of(ChildNumber.ZERO);
+        List<DeterministicKey> children = hierarchy.deriveChildren(parentPath, true, true, 0, 20, false);
+        assertEquals(20, children.size());
+        assertEquals(hexEncode(children.get(7).getPubKeyBytes()),
+                hexEncode(hierarchy.get(ImmutableList.of(ChildNumber.ZERO, new ChildNumber(7, false)), true, false).getPubKeyBytes()));
+        // The next child continues after the batch.
+        assertEquals(new ChildNumber(20, false), hierarchy.deriveNextChild(parentPath, true, false, false).getChildNumber());
+    }
+
     private static String hexEncode(byte[] bytes) {
         return new String(Hex.encode(bytes));
     }
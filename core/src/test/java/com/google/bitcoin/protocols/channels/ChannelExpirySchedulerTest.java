@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChannelExpirySchedulerTest {
+    private ChannelExpiryScheduler scheduler;
+    private BlockingQueue<String> fired;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new ChannelExpiryScheduler();
+        fired = new LinkedBlockingQueue<String>();
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void firesInOrderOfExpiry() throws Exception {
+        long now = System.currentTimeMillis();
+        scheduler.schedule(new Object(), now + 300, record("second"));
+        scheduler.schedule(new Object(), now + 100, record("first"));
+        // Already due, so runs straight away.
+        scheduler.schedule(new Object(), now - 1000, record("overdue"));
+        assertEquals(3, scheduler.size());
+        assertEquals("overdue", fired.poll(5, TimeUnit.SECONDS));
+        assertEquals("first", fired.poll(5, TimeUnit.SECONDS));
+        assertEquals("second", fired.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() >= now + 300);
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void reschedule() throws Exception {
+        Object channel = new Object();
+        long now = System.currentTimeMillis();
+        scheduler.schedule(channel, now + 60 * 60 * 1000, record("later"));
+        // Scheduling the same channel again replaces the action, and an earlier time wakes the scheduler up.
+        scheduler.schedule(channel, now + 100, record("sooner"));
+        assertEquals(1, scheduler.size());
+        assertEquals("sooner", fired.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.size());
+        assertFalse(scheduler.cancel(channel));
+        // And a later time means it doesn't fire at the earlier one.
+        now = System.currentTimeMillis();
+        scheduler.schedule(channel, now + 200, record("early"));
+        scheduler.schedule(channel, now + 60 * 60 * 1000, record("late"));
+        assertNull(fired.poll(500, TimeUnit.MILLISECONDS));
+        assertTrue(scheduler.cancel(channel));
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        Object channel1 = new Object(), channel2 = new Object();
+        long now = System.currentTimeMillis();
+        scheduler.schedule(channel1, now + 100, record("cancelled"));
+        scheduler.schedule(channel2, now + 200, record("kept"));
+        assertTrue(scheduler.cancel(channel1));
+        assertFalse(scheduler.cancel(channel1));
+        assertEquals(1, scheduler.size());
+        assertEquals("kept", fired.poll(5, TimeUnit.SECONDS));
+        assertNull(fired.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removingClientChannelCancelsExpiry() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Wallet wallet = new Wallet(params);
+        StoredPaymentChannelClientStates channels = new StoredPaymentChannelClientStates(wallet,
+                new TransactionBroadcaster() {
+                    @Override
+                    public ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
+                        fail();
+                        return null;
+                    }
+                });
+        wallet.addExtension(channels);
+        Transaction contract = new Transaction(params);
+        Transaction refund = new Transaction(params);
+        refund.setLockTime(Utils.currentTimeMillis() / 1000 + 60 * 60 * 24);
+        StoredClientChannel channel = new StoredClientChannel(contract.getHash(), contract, refund, new ECKey(),
+                Utils.COIN, Utils.CENT, false);
+        int scheduled = ChannelExpiryScheduler.INSTANCE.size();
+        channels.putChannel(channel);
+        assertEquals(scheduled + 1, ChannelExpiryScheduler.INSTANCE.size());
+        channels.removeChannel(channel);
+        assertEquals(scheduled, ChannelExpiryScheduler.INSTANCE.size());
+        // Nothing left to cancel, as removing the channel already did.
+        assertFalse(ChannelExpiryScheduler.INSTANCE.cancel(channel));
+    }
+}
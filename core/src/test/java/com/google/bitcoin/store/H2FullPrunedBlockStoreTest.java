@@ -0,0 +1,210 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final String DB_NAME = "migrationtest";
+
+    private StoredTransactionOutput out1, out2;
+
+    @Before
+    public void setUp() throws Exception {
+        deleteFiles();
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        out1 = new StoredTransactionOutput(new Sha256Hash(new byte[32]), 0, Utils.COIN, 10, true, script);
+        out2 = new StoredTransactionOutput(Sha256Hash.create(new byte[] { 1 }), 3, Utils.CENT, 20, true, script);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Test
+    public void migratesVersion3() throws Exception {
+        createVersion3Store();
+        assertOutputsMigrated();
+    }
+
+    @Test
+    public void migrationStoppedDuringCopy() throws Exception {
+        createVersion3Store();
+        // A partial copy, which holds a row the old table doesn't have any more.
+        execute("CREATE TABLE openOutputsNew (hash BINARY(32) NOT NULL, index INT NOT NULL, height INT NOT NULL, "
+                + "output VARBINARY NOT NULL, PRIMARY KEY (hash, index))");
+        execute("INSERT INTO openOutputsNew VALUES (X'" + Utils.bytesToHexString(new byte[32]) + "', 7, 1, X'00')");
+        assertOutputsMigrated();
+        assertFalse(tableExists("openOutputsNew"));
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, DB_NAME, 10);
+        assertNull(store.getTransactionOutput(out1.getHash(), 7));
+        close(store);
+    }
+
+    @Test
+    public void migrationStoppedBeforeRename() throws Exception {
+        // The old table is gone and the complete new one still has its temporary name.
+        createVersion4Store();
+        execute("ALTER TABLE openOutputs RENAME TO openOutputsNew");
+        setVersion3();
+        assertOutputsMigrated();
+    }
+
+    @Test
+    public void migrationStoppedBeforeVersionUpdate() throws Exception {
+        createVersion4Store();
+        setVersion3();
+        assertOutputsMigrated();
+    }
+
+    @Test
+    public void refusesUnknownVersion() throws Exception {
+        createVersion4Store();
+        execute("UPDATE settings SET value = '05' WHERE name = '" + H2FullPrunedBlockStore.VERSION_SETTING + "'");
+        try {
+            new H2FullPrunedBlockStore(params, DB_NAME, 10);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void migrationStoppedByEarlierVersion() throws Exception {
+        // The old table renamed out of the way and a partially filled new one, as migrations used to leave behind.
+        createVersion3Store();
+        execute("ALTER TABLE openOutputs RENAME TO openOutputsOld");
+        execute(H2FullPrunedBlockStore.CREATE_OPEN_OUTPUT_TABLE);
+        assertOutputsMigrated();
+        assertFalse(tableExists("openOutputsOld"));
+    }
+
+    private void createVersion4Store() throws Exception {
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, DB_NAME, 10);
+        store.addUnspentTransactionOutput(out1);
+        store.addUnspentTransactionOutput(out2);
+        close(store);
+    }
+
+    private void createVersion3Store() throws Exception {
+        createVersion4Store();
+        execute("DROP TABLE openOutputs");
+        execute("CREATE TABLE openOutputs (hash BINARY(32) NOT NULL, index INT NOT NULL, height INT NOT NULL, "
+                + "value BLOB NOT NULL, scriptBytes BLOB NOT NULL, PRIMARY KEY (hash, index))");
+        Connection connection = connect();
+        try {
+            PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) VALUES (?, ?, ?, ?, ?)");
+            for (StoredTransactionOutput out : new StoredTransactionOutput[] { out1, out2 }) {
+                insert.setBytes(1, out.getHash().getBytes());
+                insert.setInt(2, (int) out.getIndex());
+                insert.setInt(3, out.getHeight());
+                insert.setBytes(4, out.getValue().toByteArray());
+                insert.setBytes(5, out.getScriptBytes());
+                insert.executeUpdate();
+            }
+            insert.close();
+        } finally {
+            connection.close();
+        }
+        setVersion3();
+    }
+
+    private void setVersion3() throws Exception {
+        execute("UPDATE settings SET value = '03' WHERE name = '" + H2FullPrunedBlockStore.VERSION_SETTING + "'");
+    }
+
+    private void assertOutputsMigrated() throws Exception {
+        // Twice, to check that the first open finished the job.
+        for (int i = 0; i < 2; i++) {
+            H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, DB_NAME, 10);
+            for (StoredTransactionOutput expected : new StoredTransactionOutput[] { out1, out2 }) {
+                StoredTransactionOutput out = store.getTransactionOutput(expected.getHash(), expected.getIndex());
+                assertNotNull(out);
+                assertEquals(expected.getValue(), out.getValue());
+                assertEquals(expected.getHeight(), out.getHeight());
+                assertArrayEquals(expected.getScriptBytes(), out.getScriptBytes());
+            }
+            close(store);
+        }
+    }
+
+    private static void close(H2FullPrunedBlockStore store) throws Exception {
+        store.close();
+        shutdown();
+    }
+
+    // The store doesn't close its connections, so H2 keeps the database open until it is shut down explicitly. Shutting
+    // it down makes the next store really open it again, and lets the files be deleted.
+    private static void shutdown() throws Exception {
+        Connection connection = connect();
+        try {
+            connection.createStatement().execute("SHUTDOWN");
+        } finally {
+            connection.close();
+        }
+    }
+
+    private boolean tableExists(String table) throws Exception {
+        Connection connection = connect();
+        try {
+            connection.createStatement().executeQuery("SELECT * FROM " + table + " WHERE 1 = 2").close();
+            return true;
+        } catch (java.sql.SQLException e) {
+            return false;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        Connection connection = connect();
+        try {
+            Statement s = connection.createStatement();
+            s.executeUpdate(sql);
+            s.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static Connection connect() throws Exception {
+        Class.forName(H2FullPrunedBlockStore.driver);
+        return DriverManager.getConnection("jdbc:h2:" + DB_NAME);
+    }
+
+    private static void deleteFiles() throws Exception {
+        shutdown();
+        new File(DB_NAME + ".h2.db").delete();
+        new File(DB_NAME + ".trace.db").delete();
+    }
+}
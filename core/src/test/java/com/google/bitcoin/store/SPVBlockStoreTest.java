@@ -24,8 +24,11 @@ import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +61,30 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void putAll() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        // More than fit in the ring, so writing wraps around.
+        for (int i = 0; i < SPVBlockStore.DEFAULT_NUM_HEADERS + 10; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(prev);
+        }
+        store.putAll(blocks);
+        store.setChainHead(prev);
+        store.close();
+
+        store = new SPVBlockStore(params, f);
+        assertEquals(prev, store.getChainHead());
+        assertEquals(blocks.get(10), store.get(blocks.get(10).getHeader().getHash()));
+        assertNull(store.get(blocks.get(9).getHeader().getHash()));
+    }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class TransactionOutputCompressorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Sha256Hash HASH = Sha256Hash.create(new byte[] { 1 });
+
+    private static StoredTransactionOutput roundTrip(BigInteger value, byte[] script, int expectedLength) throws Exception {
+        StoredTransactionOutput out = new StoredTransactionOutput(HASH, 3, value, 100, false, script);
+        byte[] packed = TransactionOutputCompressor.compress(out);
+        if (expectedLength >= 0)
+            assertEquals(expectedLength, packed.length);
+        StoredTransactionOutput result = TransactionOutputCompressor.decompress(HASH, 3, 100, packed);
+        assertEquals(out, result);
+        assertEquals(value, result.getValue());
+        assertArrayEquals(script, result.getScriptBytes());
+        assertEquals(100, result.getHeight());
+        return result;
+    }
+
+    @Test
+    public void amounts() throws Exception {
+        long[] amounts = { 0, 1, 9, 10, 12345, Utils.COIN.longValue(), 50 * Utils.COIN.longValue(),
+                21000000 * Utils.COIN.longValue(), 2099999997690000L, Long.MAX_VALUE / 10 };
+        for (long amount : amounts)
+            assertEquals(amount, TransactionOutputCompressor.decompressAmount(TransactionOutputCompressor.compressAmount(amount)));
+        // Round numbers of coins need very few bits.
+        assertTrue(TransactionOutputCompressor.compressAmount(50 * Utils.COIN.longValue()) < 128);
+    }
+
+    @Test
+    public void templates() throws Exception {
+        BigInteger value = Utils.toNanoCoins(1, 50);
+        ECKey key = new ECKey();
+        // Amount, type byte and payload.
+        roundTrip(value, ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram(), 1 + 1 + 20);
+        roundTrip(value, ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram(), 1 + 1 + 20);
+        roundTrip(value, ScriptBuilder.createOutputScript(key).getProgram(), 1 + 1 + 32);
+        ECKey uncompressed = new ECKey(new BigInteger(1, key.getPrivKeyBytes()), null, false);
+        roundTrip(value, ScriptBuilder.createOutputScript(uncompressed).getProgram(), 1 + 1 + 32);
+    }
+
+    @Test
+    public void otherScripts() throws Exception {
+        roundTrip(BigInteger.ZERO, new byte[0], 2);
+        roundTrip(Utils.COIN, new byte[] { 1, 2, 3 }, 2 + 3);
+        // An uncompressed "key" that isn't on the curve can't be recovered from its x coordinate, so is kept whole.
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey(new BigInteger(1, new ECKey().getPrivKeyBytes()), null, false)).getProgram();
+        script[40] ^= 1;
+        roundTrip(Utils.COIN, script, 2 + script.length);
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void truncated() throws Exception {
+        StoredTransactionOutput out = new StoredTransactionOutput(HASH, 0, Utils.COIN, 1, false, new byte[] { 1, 2, 3 });
+        byte[] packed = TransactionOutputCompressor.compress(out);
+        byte[] truncated = new byte[packed.length - 1];
+        System.arraycopy(packed, 0, truncated, 0, truncated.length);
+        TransactionOutputCompressor.decompress(HASH, 0, 1, truncated);
+    }
+}
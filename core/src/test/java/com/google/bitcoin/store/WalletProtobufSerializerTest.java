@@ -26,6 +26,8 @@ import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.io.Files;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos;
 import org.junit.Before;
@@ -33,12 +35,15 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
 import static org.junit.Assert.*;
@@ -299,6 +304,193 @@ public class WalletProtobufSerializerTest {
         assertTrue(wallet2.getTransaction(coinbase.getHash()).isCoinBase());
     }
 
+    @Test
+    public void journal() throws Exception {
+        File file = File.createTempFile("bitcoinj-unit-test", null);
+        file.deleteOnExit();
+        WalletJournal.getJournalFile(file).deleteOnExit();
+        WalletJournal journal = new WalletJournal(file);
+        myWallet.setJournal(journal);
+        // Nothing can be appended until a full copy of the wallet has been written.
+        assertTrue(journal.isCompactionDue());
+        myWallet.saveToFile(file);
+        assertFalse(journal.isCompactionDue());
+
+        // Changes after that only go into the journal.
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        myWallet.receivePending(t1, null);
+        ECKey key2 = new ECKey();
+        myWallet.addKey(key2);
+        long walletLength = file.length();
+        assertTrue(journal.append(myWallet) > 0);
+        assertEquals(walletLength, file.length());
+        assertEquals(0, journal.append(myWallet));
+        assertEquals(1, journal.getRecordCount());
+
+        Wallet wallet1 = Wallet.loadFromFile(file);
+        assertArrayEquals(t1.bitcoinSerialize(), wallet1.getTransaction(t1.getHash()).bitcoinSerialize());
+        assertEquals(Utils.toNanoCoins(1, 0), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertNotNull(wallet1.findKeyFromPubHash(key2.getPubKeyHash()));
+        assertEquals(2, wallet1.getKeychainSize());
+
+        // A full save restarts the journal.
+        myWallet.saveToFile(file);
+        assertEquals(0, journal.getRecordCount());
+        assertEquals(1, Wallet.loadFromFile(file).getTransactions(true).size());
+
+        // A journal that doesn't match the wallet file is ignored.
+        ECKey key3 = new ECKey();
+        myWallet.addKey(key3);
+        assertTrue(journal.append(myWallet) > 0);
+        myWallet.setJournal(null);
+        Wallet other = new Wallet(params);
+        other.saveToFile(file);
+        Wallet wallet2 = Wallet.loadFromFile(file);
+        assertEquals(0, wallet2.getKeychainSize());
+        assertEquals(0, wallet2.getTransactions(true).size());
+    }
+
+
+    @Test
+    public void journalDerivesDepths() throws Exception {
+        File file = File.createTempFile("bitcoinj-unit-test", null);
+        file.deleteOnExit();
+        WalletJournal.getJournalFile(file).deleteOnExit();
+        WalletJournal journal = new WalletJournal(file);
+        myWallet.setJournal(journal);
+        BlockChain chain = new BlockChain(params, myWallet, new MemoryBlockStore(params));
+        Block b1 = params.getGenesisBlock().createNextBlock(myAddress);
+        assertTrue(chain.add(b1));
+        Transaction t1 = myWallet.getTransactions(false).iterator().next();
+        myWallet.saveToFile(file);
+
+        // Blocks that only bury t1 deeper don't write it to the journal again.
+        Address other = new ECKey().toAddress(params);
+        Block b2 = b1.createNextBlock(other);
+        Block b3 = b2.createNextBlock(other);
+        assertTrue(chain.add(b2));
+        assertTrue(chain.add(b3));
+        assertEquals(3, t1.getConfidence().getDepthInBlocks());
+        long appended = journal.append(myWallet);
+        assertTrue(appended > 0);
+        assertTrue(appended < t1.bitcoinSerialize().length);
+
+        // But its depth is still right once the journal is replayed.
+        Wallet wallet1 = Wallet.loadFromFile(file);
+        assertEquals(b3.getHash(), wallet1.getLastBlockSeenHash());
+        TransactionConfidence confidence = wallet1.getTransaction(t1.getHash()).getConfidence();
+        assertEquals(1, confidence.getAppearedAtChainHeight());
+        assertEquals(3, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void journalOverlappingSaves() throws Exception {
+        File file = File.createTempFile("bitcoinj-unit-test", null);
+        file.deleteOnExit();
+        WalletJournal.getJournalFile(file).deleteOnExit();
+        final WalletJournal journal = new WalletJournal(file);
+        myWallet.setJournal(journal);
+        myWallet.saveToFile(file);
+
+        // A copy of the wallet that has been taken but not written yet, as by a save in progress on another thread,
+        // doesn't hold up the next save.
+        final long generation = journal.snapshotStarted();
+        myWallet.addKey(new ECKey());
+        Thread saver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    myWallet.saveToFile(journal.getWalletFile());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        saver.start();
+        saver.join(10000);
+        assertFalse(saver.isAlive());
+        // The earlier copy giving up doesn't force a compaction, as a later one is on disk.
+        journal.snapshotAborted(generation);
+        assertFalse(journal.isCompactionDue());
+
+        // An append waits for a wallet file still being written, then goes into the journal that follows it.
+        final long generation2 = journal.snapshotStarted();
+        final ECKey key = new ECKey();
+        myWallet.addKey(key);
+        final AtomicLong appended = new AtomicLong(-1);
+        Thread appender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    appended.set(journal.append(myWallet));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        appender.start();
+        appender.join(200);
+        assertTrue(appender.isAlive());
+        journal.snapshotWritten(generation2, Sha256Hash.create(Files.toByteArray(file)).getBytes(), file.length(), null);
+        appender.join(10000);
+        assertFalse(appender.isAlive());
+        assertTrue(appended.get() > 0);
+        assertEquals(1, journal.getRecordCount());
+        assertNotNull(Wallet.loadFromFile(file).findKeyFromPubHash(key.getPubKeyHash()));
+    }
+    @Test
+    public void lazyHistory() throws Exception {
+        // t1 pays us and t2 spends that elsewhere, so both are old history. t3 is unspent.
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        Transaction t2 = new Transaction(params);
+        t2.addInput(t1.getOutput(0));
+        t2.getInput(0).connect(t1.getOutput(0));
+        t2.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        Transaction t3 = createFakeTx(params, Utils.toNanoCoins(2, 0), myAddress);
+        myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, t1));
+        myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, t2));
+        myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, t3));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        byte[] saved = output.toByteArray();
+
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadHistoryLazily(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(saved));
+        assertEquals(2, wallet1.getLazyTransactionHistory().size());
+        assertEquals(Utils.toNanoCoins(2, 0), wallet1.getBalance());
+
+        // Saving writes out the history that was never loaded, still connected to what it spends.
+        output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet1, output);
+        Wallet wallet2 = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(3, wallet2.getTransactions(true).size());
+        assertEquals(t2.getHash(), wallet2.getTransaction(t1.getHash()).getOutput(0).getSpentBy().getParentTransaction().getHash());
+        output = new ByteArrayOutputStream();
+        wallet1.saveToFileStream(output);
+        assertEquals(3, new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()))
+                .getTransactions(true).size());
+
+        // Asking for a transaction loads it along with the transactions it spends.
+        Transaction t2Loaded = wallet1.getTransaction(t2.getHash());
+        assertArrayEquals(t2.bitcoinSerialize(), t2Loaded.bitcoinSerialize());
+        assertEquals(0, wallet1.getLazyTransactionHistory().size());
+        assertSame(t2Loaded, wallet1.getTransaction(t1.getHash()).getOutput(0).getSpentBy().getParentTransaction());
+        assertEquals(Utils.toNanoCoins(2, 0), wallet1.getBalance());
+
+        // A save reads the history after releasing the wallet lock, by which time it may have been cleared. What was
+        // in it when the wallet was copied is still written.
+        serializer = new WalletProtobufSerializer();
+        serializer.setLoadHistoryLazily(true);
+        Wallet wallet3 = serializer.readWallet(new ByteArrayInputStream(saved));
+        LazyTransactionHistory history = wallet3.getLazyTransactionHistory();
+        LazyTransactionHistory.Snapshot snapshot = history.snapshot();
+        history.clear();
+        Protos.Wallet.Builder builder = Protos.Wallet.newBuilder();
+        snapshot.addTo(builder);
+        assertEquals(2, builder.getTransactionCount());
+    }
+
     @Test
     public void testExtensions() throws Exception {
         myWallet.addExtension(new SomeFooExtension("com.whatever.required", true));
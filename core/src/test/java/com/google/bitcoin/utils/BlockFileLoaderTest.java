@@ -0,0 +1,92 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BlockFileLoaderTest {
+    private final NetworkParameters params = UnitTestParams.get();
+
+    private static void writeBlock(NetworkParameters params, ByteArrayOutputStream out, byte[] bytes) throws Exception {
+        byte[] magic = new byte[4];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), magic, 0);
+        out.write(magic);
+        Utils.uint32ToByteStreamLE(bytes.length, out);
+        out.write(bytes);
+    }
+
+    private File writeFile(List<Block> blocks) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Block block : blocks) {
+            writeBlock(params, out, block.bitcoinSerialize());
+            // Junk between blocks is skipped.
+            out.write(new byte[] { 1, 2, 3 });
+        }
+        // So is a block cut short at the end of the file, followed by the zero padding bitcoind preallocates.
+        byte[] last = blocks.get(blocks.size() - 1).bitcoinSerialize();
+        writeBlock(params, out, last);
+        byte[] bytes = out.toByteArray();
+        File file = File.createTempFile("blockfileloader", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(bytes, 0, bytes.length - last.length / 2);
+        stream.close();
+        return file;
+    }
+
+    private void checkLoads(int threads) throws Exception {
+        Address to = new ECKey().toAddress(params);
+        List<Block> blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 600; i++) {
+            block = block.createNextBlock(to);
+            blocks.add(block);
+        }
+        File first = writeFile(blocks.subList(0, 300));
+        File second = writeFile(blocks.subList(300, 600));
+
+        BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(first, second), threads);
+        List<Block> loaded = new ArrayList<Block>();
+        for (Block b : loader)
+            loaded.add(b);
+        assertEquals(blocks, loaded);
+        assertFalse(loader.hasNext());
+        assertEquals(600, loader.getBlockCount());
+    }
+
+    @Test
+    public void loadsInOrder() throws Exception {
+        checkLoads(0);
+        checkLoads(4);
+    }
+}
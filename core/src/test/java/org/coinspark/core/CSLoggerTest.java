@@ -0,0 +1,143 @@
+/*
+ * SparkBit's Bitcoinj
+ *
+ * Copyright 2014 Coin Sciences Ltd.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.coinspark.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class CSLoggerTest {
+    private File file;
+    private CSLogger logger;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("cslogger", ".cslog");
+        file.deleteOnExit();
+        logger = new CSLogger(file.getPath(), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logger.close();
+        file.delete();
+    }
+
+    @Test
+    public void closeWritesEverythingInOrder() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            logger.info("message " + i);
+        logger.close();
+        List<String> lines = lines();
+        assertEquals(1000, lines.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals("I   \tmessage " + i, lines.get(i));
+        // Nothing goes to the file once it's closed.
+        logger.info("too late");
+        logger.error("too late");
+        assertEquals(1000, lines().size());
+    }
+
+    @Test
+    public void errorsAreWrittenInOrder() throws Exception {
+        logger.info("before");
+        logger.error("failed");
+        logger.close();
+        List<String> lines = lines();
+        assertEquals(2, lines.size());
+        assertEquals("I   \tbefore", lines.get(0));
+        assertEquals("ERR!\tfailed", lines.get(1));
+    }
+
+    @Test(timeout = 30000)
+    public void errorsDontWaitForAFileWhichCannotBeWritten() throws Exception {
+        // A directory can't be opened for writing, so the writer thread stops straight away and nothing takes from the
+        // queue. Neither logging nor closing may then wait for it.
+        File dir = Files.createTempDir();
+        try {
+            CSLogger broken = new CSLogger(dir.getPath(), false);
+            for (int i = 0; i < CSLogger.BUFFER_SIZE * 2; i++)
+                broken.info("lost");
+            for (int i = 0; i < 10; i++)
+                broken.error("logged elsewhere");
+            broken.close();
+        } finally {
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void levels() throws Exception {
+        logger.setLevel(CSLogger.CSLevel.WARNING);
+        assertFalse(logger.isEnabled(CSLogger.CSLevel.INFO));
+        logger.info("hidden");
+        logger.debug("hidden");
+        logger.warning("shown");
+        logger.close();
+        List<String> lines = lines();
+        assertEquals(1, lines.size());
+        assertEquals("WRN!\tshown", lines.get(0));
+    }
+
+    @Test
+    public void overflow() throws Exception {
+        // Far more than the buffer holds, faster than the disk takes it, so some are dropped. Every message is either
+        // in the file, in order, or counted in a dropped line written after the messages that made it.
+        int total = CSLogger.BUFFER_SIZE * 8;
+        for (int i = 0; i < total; i++)
+            logger.info(Integer.toString(i));
+        logger.error("done");
+        logger.close();
+        Pattern droppedLine = Pattern.compile("WRN!\t(\\d+) messages dropped, log buffer full");
+        int written = 0, dropped = 0, last = -1;
+        for (String line : lines()) {
+            Matcher matcher = droppedLine.matcher(line);
+            if (matcher.matches()) {
+                dropped += Integer.parseInt(matcher.group(1));
+            } else if (line.startsWith("I   \t")) {
+                int i = Integer.parseInt(line.substring(5));
+                assertTrue(i > last);
+                last = i;
+                written++;
+            } else {
+                assertEquals("ERR!\tdone", line);
+            }
+        }
+        assertEquals(total, written + dropped);
+        assertTrue(written >= CSLogger.BUFFER_SIZE);
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.readLines(file, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,85 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.store.PostgresFullPrunedBlockStore;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Measures the latency of the address queries of {@link PostgresFullPrunedBlockStore} against an existing, synced
+ * database. The addresses to query are read from a file with one address per line, for instance taken from an
+ * explorer's access logs so the mix of busy and quiet addresses is realistic.
+ */
+public class AddressQueryBenchmark {
+    private static final int PAGE_SIZE = 100;
+    private static final int BATCH_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: AddressQueryBenchmark (prod|test) hostname dbName username password addressFile [rounds]");
+        Preconditions.checkArgument(args.length == 6 || args.length == 7);
+        NetworkParameters params = args[0].equals("test") ? TestNet3Params.get() : MainNetParams.get();
+        int rounds = args.length == 7 ? Integer.parseInt(args[6]) : 1000;
+
+        List<Address> addresses = new ArrayList<Address>();
+        for (String line : Files.readLines(new File(args[5]), Charsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty())
+                addresses.add(new Address(params, line));
+        }
+        Preconditions.checkArgument(!addresses.isEmpty(), "No addresses in " + args[5]);
+
+        PostgresFullPrunedBlockStore store =
+                new PostgresFullPrunedBlockStore(params, 1000, args[1], args[2], args[3], args[4]);
+        Random random = new Random(1);
+        long[] single = new long[rounds], batch = new long[rounds], firstPage = new long[rounds], allPages = new long[rounds];
+        long outputs = 0;
+        for (int i = 0; i < rounds; i++) {
+            Address address = addresses.get(random.nextInt(addresses.size()));
+            List<Address> some = new ArrayList<Address>(BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++)
+                some.add(addresses.get(random.nextInt(addresses.size())));
+
+            long start = System.nanoTime();
+            store.calculateBalanceForAddress(address);
+            single[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            store.calculateBalancesForAddresses(some);
+            batch[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<StoredTransactionOutput> page = store.getOpenOutputsForAddresses(Collections.singleton(address), 0, null, PAGE_SIZE);
+            firstPage[i] = System.nanoTime() - start;
+
+            outputs += page.size();
+            while (page.size() == PAGE_SIZE) {
+                page = store.getOpenOutputsForAddresses(Collections.singleton(address), 0, page.get(PAGE_SIZE - 1), PAGE_SIZE);
+                outputs += page.size();
+            }
+            allPages[i] = System.nanoTime() - start;
+        }
+        store.close();
+
+        System.out.printf("%d rounds over %d addresses, %.1f open outputs per address%n",
+                rounds, addresses.size(), (double) outputs / rounds);
+        print("Balance of one address", single);
+        print("Balances of " + BATCH_SIZE + " addresses", batch);
+        print("First page of outputs", firstPage);
+        print("All pages of outputs", allPages);
+    }
+
+    private static void print(String name, long[] nanos) {
+        Arrays.sort(nanos);
+        System.out.printf("%-30s p50 %8.2f ms  p90 %8.2f ms  p99 %8.2f ms  max %8.2f ms%n", name,
+                nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 9 / 10] / 1e6,
+                nanos[nanos.length * 99 / 100] / 1e6, nanos[nanos.length - 1] / 1e6);
+    }
+}
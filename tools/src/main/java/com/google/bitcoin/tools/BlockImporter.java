@@ -11,6 +11,8 @@ import java.io.File;
 
 /** Very thin wrapper around {@link com.google.bitcoin.utils.BlockFileLoader} */
 public class BlockImporter {
+    private static final long REPORT_INTERVAL_MSEC = 10 * 1000;
+
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
@@ -48,9 +50,27 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
+        // Parse ahead on every core, so that the chain rather than parsing is what limits the import.
+        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList(),
+                Runtime.getRuntime().availableProcessors());
         
-        for (Block block : loader)
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        for (Block block : loader) {
             chain.add(block);
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_INTERVAL_MSEC) {
+                report(loader, now - start);
+                lastReport = now;
+            }
+        }
+        report(loader, System.currentTimeMillis() - start);
+    }
+
+    private static void report(BlockFileLoader loader, long elapsedMsec) {
+        double seconds = Math.max(elapsedMsec, 1) / 1000.0;
+        System.out.println(String.format("%d blocks, %.1f MB in %.0f s: %.1f blocks/s, %.2f MB/s",
+                loader.getBlockCount(), loader.getByteCount() / 1e6, seconds,
+                loader.getBlockCount() / seconds, loader.getByteCount() / 1e6 / seconds));
     }
 }
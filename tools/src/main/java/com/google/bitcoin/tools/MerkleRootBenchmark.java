@@ -0,0 +1,101 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.MerkleTree;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import com.google.common.base.Preconditions;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how fast merkle roots are computed for blocks with as many transactions as real main net blocks have, from
+ * an almost empty block up to the largest ones seen. Each size is measured the way Block used to do it, with a list
+ * of byte arrays hashed under the global digest lock, then with {@link MerkleTree} on one thread and in parallel.
+ */
+public class MerkleRootBenchmark {
+    private static final int[] TX_COUNTS = { 1, 250, 1000, 2500, 5000 };
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: MerkleRootBenchmark [rounds]");
+        Preconditions.checkArgument(args.length <= 1);
+        int rounds = args.length == 1 ? Integer.parseInt(args[0]) : 2000;
+        System.out.printf("%d processors%n", Runtime.getRuntime().availableProcessors());
+        Random random = new Random(1);
+        for (int txCount : TX_COUNTS) {
+            List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+            for (int i = 0; i < txCount; i++) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                leaves.add(new Sha256Hash(hash));
+            }
+            byte[] nodes = new byte[txCount * 32];
+            Sha256Hash expected = listRoot(leaves);
+            Preconditions.checkState(expected.equals(MerkleTree.computeRoot(leaves)));
+
+            // Warm up.
+            for (int i = 0; i < rounds / 10 + 1; i++) {
+                listRoot(leaves);
+                flatRoot(leaves, nodes, false);
+                flatRoot(leaves, nodes, true);
+            }
+
+            long startBytes = allocatedBytes(), start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                listRoot(leaves);
+            report("List", txCount, rounds, System.nanoTime() - start, allocatedBytes() - startBytes);
+
+            startBytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                flatRoot(leaves, nodes, false);
+            report("Flat", txCount, rounds, System.nanoTime() - start, allocatedBytes() - startBytes);
+
+            startBytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                flatRoot(leaves, nodes, true);
+            report("Parallel", txCount, rounds, System.nanoTime() - start, allocatedBytes() - startBytes);
+        }
+    }
+
+    private static Sha256Hash flatRoot(List<Sha256Hash> leaves, byte[] nodes, boolean parallel) {
+        for (int i = 0; i < leaves.size(); i++) {
+            byte[] hash = leaves.get(i).getBytes();
+            for (int j = 0; j < 32; j++)
+                nodes[i * 32 + j] = hash[31 - j];
+        }
+        return MerkleTree.computeRoot(nodes, leaves.size(), parallel);
+    }
+
+    // How Block.buildMerkleTree used to work.
+    private static Sha256Hash listRoot(List<Sha256Hash> leaves) {
+        List<byte[]> tree = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            tree.add(leaf.getBytes());
+        int levelOffset = 0;
+        for (int levelSize = leaves.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
+                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
+                tree.add(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        return new Sha256Hash(tree.get(tree.size() - 1));
+    }
+
+    // Only counts the calling thread, so parallel hashing looks cheaper than it is.
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String name, int txCount, int rounds, long nanos, long allocated) {
+        System.out.printf("%5d txns  %-8s %9.1f us per root  %9.0f bytes allocated per root%n", txCount, name,
+                nanos / 1e3 / rounds, (double) allocated / rounds);
+    }
+}
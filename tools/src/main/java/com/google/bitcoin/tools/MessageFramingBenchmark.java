@@ -0,0 +1,114 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.base.Preconditions;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures how fast large blocks can be framed for sending and read back off the wire, and how many bytes are
+ * allocated doing so, which is a good proxy for how many times each one is copied. Blocks are fed to a
+ * {@link PeerSocketHandler} in chunks of the network read buffer size, the same way
+ * {@link com.google.bitcoin.net.ConnectionHandler} does.
+ */
+public class MessageFramingBenchmark {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: MessageFramingBenchmark [transactions per block] [rounds]");
+        Preconditions.checkArgument(args.length <= 2);
+        int txCount = args.length >= 1 ? Integer.parseInt(args[0]) : 4000;
+        int rounds = args.length == 2 ? Integer.parseInt(args[1]) : 200;
+        final NetworkParameters params = UnitTestParams.get();
+        Block block = createBlock(params, txCount);
+        final BitcoinSerializer serializer = new BitcoinSerializer(params);
+
+        byte[] framed = serializer.serialize(block);
+        System.out.printf("Block of %d transactions is %d bytes on the wire%n", txCount, framed.length);
+
+        // Warm up, then measure each direction on its own.
+        final int[] received = new int[1];
+        PeerSocketHandler handler = new PeerSocketHandler(params, new InetSocketAddress("127.0.0.1", 8333)) {
+            @Override
+            protected void processMessage(Message m) throws Exception {
+                received[0]++;
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        for (int i = 0; i < rounds / 10 + 1; i++) {
+            serializer.serialize(block);
+            feed(handler, readBuffer, framed);
+        }
+
+        long startBytes = allocatedBytes(), start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            serializer.serialize(block);
+        report("Framing", rounds, framed.length, System.nanoTime() - start, allocatedBytes() - startBytes);
+
+        received[0] = 0;
+        startBytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            feed(handler, readBuffer, framed);
+        report("Receiving", rounds, framed.length, System.nanoTime() - start, allocatedBytes() - startBytes);
+        Preconditions.checkState(received[0] == rounds, "Only received %s of %s blocks", received[0], rounds);
+    }
+
+    // Copies the message into the read buffer a chunk at a time, as reading from the socket would.
+    private static void feed(PeerSocketHandler handler, ByteBuffer readBuffer, byte[] framed) {
+        int offset = 0;
+        while (offset < framed.length) {
+            int length = Math.min(readBuffer.remaining(), framed.length - offset);
+            readBuffer.put(framed, offset, length);
+            offset += length;
+            readBuffer.flip();
+            int consumed = handler.receiveBytes(readBuffer);
+            Preconditions.checkState(consumed >= 0 && readBuffer.position() == consumed);
+            readBuffer.compact();
+        }
+    }
+
+    private static Block createBlock(NetworkParameters params, int txCount) {
+        Random random = new Random(1);
+        Address to = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock().createNextBlock(to);
+        for (int i = 0; i < txCount; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            // About the size of a signature and public key.
+            byte[] scriptSig = new byte[107];
+            random.nextBytes(scriptSig);
+            tx.addInput(new TransactionInput(params, tx, scriptSig,
+                    new TransactionOutPoint(params, random.nextInt(4), new Sha256Hash(hash))));
+            tx.addOutput(BigInteger.valueOf(random.nextInt(100000000) + 1), to);
+            tx.addOutput(BigInteger.valueOf(random.nextInt(100000000) + 1), to);
+            block.addTransaction(tx);
+        }
+        return block;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String name, int rounds, int size, long nanos, long allocated) {
+        System.out.printf("%-10s %8.2f ms per block  %8.1f MB/s  %6.2f bytes allocated per byte%n", name,
+                nanos / 1e6 / rounds, (double) size * rounds / (nanos / 1e9) / 1e6,
+                (double) allocated / rounds / size);
+    }
+}
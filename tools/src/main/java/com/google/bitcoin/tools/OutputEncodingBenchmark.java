@@ -0,0 +1,95 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.store.*;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how much space {@link TransactionOutputCompressor} saves on a typical mix of unspent outputs, and how fast
+ * a full pruned block store can insert them.
+ */
+public class OutputEncodingBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: OutputEncodingBenchmark (H2|MVStore) path [count]");
+        System.out.println("       eg OutputEncodingBenchmark H2 /tmp/bench 1000000");
+        System.out.println("       The store at path is deleted and recreated");
+        Preconditions.checkArgument(args.length == 2 || args.length == 3);
+        int count = args.length == 3 ? Integer.parseInt(args[2]) : 1000000;
+        NetworkParameters params = MainNetParams.get();
+
+        List<StoredTransactionOutput> outputs = createOutputs(count);
+        long rawSize = 0, packedSize = 0;
+        long start = System.nanoTime();
+        for (StoredTransactionOutput out : outputs) {
+            rawSize += out.getValue().toByteArray().length + out.getScriptBytes().length;
+            packedSize += TransactionOutputCompressor.compress(out).length;
+        }
+        long encodeNanos = System.nanoTime() - start;
+        System.out.printf("Value and script: %.1f bytes per output as BLOBs, %.1f packed, %.0f ns to pack%n",
+                (double) rawSize / count, (double) packedSize / count, (double) encodeNanos / count);
+
+        FullPrunedBlockStore store;
+        File file;
+        if (args[0].equals("H2")) {
+            file = new File(args[1] + ".h2.db");
+            file.delete();
+            store = new H2FullPrunedBlockStore(params, args[1], 100);
+        } else if (args[0].equals("MVStore")) {
+            file = new File(args[1]);
+            file.delete();
+            store = new MVStoreFullPrunedBlockStore(params, args[1], 100);
+        } else {
+            System.err.println("Unknown store " + args[0]);
+            return;
+        }
+        // Write them in batches of about a block's worth, as FullPrunedBlockChain does.
+        start = System.currentTimeMillis();
+        for (int i = 0; i < count; i += 2000) {
+            store.beginDatabaseBatchWrite();
+            for (int j = i; j < Math.min(count, i + 2000); j++)
+                store.addUnspentTransactionOutput(outputs.get(j));
+            store.commitDatabaseBatchWrite();
+        }
+        long insertMillis = Math.max(1, System.currentTimeMillis() - start);
+        store.close();
+        System.out.printf("Inserted %d outputs in %d ms (%d per second), store is %d bytes%n",
+                count, insertMillis, count * 1000L / insertMillis, file.length());
+    }
+
+    // Roughly the mix of the main chain's unspent outputs: mostly pay to address, then pay to script hash and pay to
+    // public key, and a few others.
+    private static List<StoredTransactionOutput> createOutputs(int count) {
+        Random random = new Random(1);
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(count);
+        ECKey key = new ECKey();
+        for (int i = 0; i < count; i++) {
+            byte[] hashBytes = new byte[32];
+            random.nextBytes(hashBytes);
+            byte[] hash160 = new byte[20];
+            random.nextBytes(hash160);
+            byte[] script;
+            int kind = random.nextInt(100);
+            if (kind < 75)
+                script = ScriptBuilder.createOutputScript(new Address(MainNetParams.get(), hash160)).getProgram();
+            else if (kind < 88)
+                script = ScriptBuilder.createP2SHOutputScript(hash160).getProgram();
+            else if (kind < 96)
+                script = ScriptBuilder.createOutputScript(key).getProgram();
+            else
+                script = hash160;
+            // Values with a few significant digits, like people pay each other.
+            BigInteger value = BigInteger.valueOf((1 + random.nextInt(9999)) * (long) Math.pow(10, random.nextInt(6)));
+            outputs.add(new StoredTransactionOutput(new Sha256Hash(hashBytes), random.nextInt(4), value,
+                    random.nextInt(300000), false, script));
+        }
+        return outputs;
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long reads of a wallet take whilst another thread keeps changing it, as the block chain and peers do
+ * during sync. Reader threads ask for the balance and look up transactions and keys, as a user interface or a
+ * merchant backend polling for payments would, while a writer receives a steady stream of pending transactions.
+ * The interesting numbers are the worst case read latency and how many reads had to wait for the writer.
+ */
+public class WalletContentionBenchmark {
+    private static final int KEYS = 1000;
+    private static final int INITIAL_TRANSACTIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: WalletContentionBenchmark [readers] [seconds]");
+        Preconditions.checkArgument(args.length <= 2);
+        final int readers = args.length >= 1 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length == 2 ? Integer.parseInt(args[1]) : 10;
+
+        final NetworkParameters params = UnitTestParams.get();
+        final Wallet wallet = new Wallet(params);
+        wallet.setAcceptRiskyTransactions(true);
+        final List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < KEYS; i++)
+            keys.add(new ECKey());
+        wallet.addKeys(keys);
+        final Random random = new Random(1);
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < INITIAL_TRANSACTIONS; i++) {
+            Transaction tx = createTransaction(params, keys.get(random.nextInt(KEYS)), random);
+            wallet.receivePending(tx, null);
+            hashes.add(tx.getHash());
+        }
+        System.out.printf("%d keys, %d transactions, %d readers, %d seconds%n", KEYS, INITIAL_TRANSACTIONS, readers,
+                seconds);
+
+        final AtomicLong writes = new AtomicLong(), reads = new AtomicLong();
+        final AtomicLong readNanos = new AtomicLong(), maxReadNanos = new AtomicLong();
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(readers + 1);
+
+        new Thread("writer") {
+            @Override
+            public void run() {
+                Random random = new Random(2);
+                try {
+                    while (System.nanoTime() < end) {
+                        wallet.receivePending(createTransaction(params, keys.get(random.nextInt(KEYS)), random), null);
+                        writes.incrementAndGet();
+                    }
+                } catch (VerificationException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }.start();
+        for (int i = 0; i < readers; i++) {
+            final Random readerRandom = new Random(3 + i);
+            new Thread("reader " + i) {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end) {
+                            long start = System.nanoTime();
+                            wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+                            Preconditions.checkState(wallet.getTransaction(
+                                    hashes.get(readerRandom.nextInt(hashes.size()))) != null);
+                            ECKey key = keys.get(readerRandom.nextInt(KEYS));
+                            Preconditions.checkState(wallet.findKeyFromPubHash(key.getPubKeyHash()) != null);
+                            long nanos = System.nanoTime() - start;
+                            reads.incrementAndGet();
+                            readNanos.addAndGet(nanos);
+                            long max = maxReadNanos.get();
+                            while (nanos > max && !maxReadNanos.compareAndSet(max, nanos))
+                                max = maxReadNanos.get();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+
+        System.out.printf("%.0f writes/s%n", (double) writes.get() / seconds);
+        System.out.printf("%.0f reads/s, %.1f us average, %.1f ms worst%n", (double) reads.get() / seconds,
+                readNanos.get() / 1e3 / Math.max(1, reads.get()), maxReadNanos.get() / 1e6);
+        System.out.printf("%d snapshots built, %d reads waited for the writer%n", wallet.getReadSnapshotBuildCount(),
+                wallet.getReadSnapshotWaitCount());
+    }
+
+    // A transaction paying the key from an input the wallet knows nothing about, as a payment from someone else is.
+    private static Transaction createTransaction(NetworkParameters params, ECKey to, Random random) {
+        Transaction tx = new Transaction(params);
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0,
+                new Sha256Hash(hash))));
+        tx.addOutput(Utils.CENT, to);
+        return tx;
+    }
+}